@@ -0,0 +1,70 @@
+package editor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Opening and saving files from 1 MB to 1 GB. Opening reads all of the file
+// the way EditorModel.open does, heap-decoded below the mapping threshold and
+// mapped and indexed above it, but on the calling thread; saving is
+// EditorModel's write through a synced temp file. The files go in a temp
+// folder that is deleted afterwards.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class FileIoBenchmark {
+
+    @Param({"1", "16", "256", "1024"})
+    public int sizeMb;
+
+    private EditorModel model;
+    private Path directory;
+    private Path file;
+    private Path saved;
+    private FileFormat format;
+    private CharSequence text;
+
+    @Setup
+    public void setUp() throws IOException {
+        model = new EditorModel();
+        directory = Files.createTempDirectory("jotr-bench");
+        file = directory.resolve("in.log");
+        saved = directory.resolve("out.log");
+        // written a block at a time rather than built up as one string
+        String block = Texts.log(1 << 20);
+        try (var out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < sizeMb; i++)
+                out.write(block);
+        }
+        format = EditorModel.detectFormat(file);
+        text = model.readDocument(file, format).snapshot();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        text = null;
+        Files.deleteIfExists(saved);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        PieceTable document = model.readDocument(file, EditorModel.detectFormat(file));
+        return document.getLineCount();
+    }
+
+    @Benchmark
+    public Path save() throws IOException {
+        model.write(saved, text, format, progress -> {});
+        return saved;
+    }
+
+}
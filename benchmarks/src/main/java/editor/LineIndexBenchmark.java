@@ -0,0 +1,65 @@
+package editor;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Splitting a document into lines. The text area used to be read back as a
+// list of lines; the document now keeps line feeds in its piece tree, so
+// this covers indexing a text, looking lines up, and reading every line.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LineIndexBenchmark {
+
+    @Param({"1", "16"})
+    public int sizeMb;
+
+    private String content;
+    private PieceTable document;
+    private int[] offsets;
+    private int[] lines;
+
+    @Setup
+    public void setUp() {
+        content = Texts.log(sizeMb << 20);
+        document = Texts.edited(content, 1000);
+        Random random = new Random(3);
+        offsets = new int[1024];
+        lines = new int[1024];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = random.nextInt(document.length());
+            lines[i] = random.nextInt(document.getLineCount());
+        }
+    }
+
+    // what opening a file costs on top of reading it
+    @Benchmark
+    public int index() {
+        return new PieceTable(content).getLineCount();
+    }
+
+    // what scrolling and moving the caret cost, 1024 lookups each way
+    @Benchmark
+    public void lookUp(Blackhole blackhole) {
+        for (int i = 0; i < offsets.length; i++) {
+            blackhole.consume(document.getLineOfOffset(offsets[i]));
+            blackhole.consume(document.getLineStart(lines[i]));
+        }
+    }
+
+    // every line of the document as a string
+    @Benchmark
+    public void everyLine(Blackhole blackhole) {
+        int lineCount = document.getLineCount();
+        CharSequence text = document.snapshot();
+        for (int line = 0; line < lineCount; line++)
+            blackhole.consume(text.subSequence(document.getLineStart(line), document.getLineEnd(line)).toString());
+    }
+
+}
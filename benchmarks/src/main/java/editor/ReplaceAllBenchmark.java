@@ -0,0 +1,72 @@
+package editor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Replace All over a log: working out the replacements, which runs in
+// parallel for patterns that stay on one line, and making them in the
+// document as one edit.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplaceAllBenchmark {
+
+    @Param({"16"})
+    public int sizeMb;
+
+    // a literal, a regex with a group reference, and one that may span lines so it runs in one pass
+    @Param({"literal", "regex", "multiline"})
+    public String query;
+
+    private String content;
+    private CharSequence text;
+    private Pattern pattern;
+    private String replacement;
+
+    // a fresh document for each replace, the edit changes it
+    private PieceTable document;
+
+    @Setup
+    public void setUp() {
+        content = Texts.log(sizeMb << 20);
+        text = Texts.edited(content, 1000).snapshot();
+        SearchEngine engine = new SearchEngine();
+        switch (query) {
+            case "literal":
+                pattern = engine.compile("WARN", false, true);
+                replacement = "NOTE";
+                break;
+            case "regex":
+                pattern = engine.compile("took (\\d+)ms", true, true);
+                replacement = "took $1 ms";
+                break;
+            default:
+                pattern = engine.compile("ms\\s+2024", true, true);
+                replacement = "ms\n2025";
+                break;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newDocument() {
+        document = new PieceTable(content);
+    }
+
+    @Benchmark
+    public ReplaceBatch findReplacements() {
+        return SearchEngine.replaceAllMatches(text, pattern, replacement, () -> false);
+    }
+
+    @Benchmark
+    public int replaceInDocument() {
+        CharSequence snapshot = document.snapshot();
+        document.replace(SearchEngine.replaceAllMatches(snapshot, pattern, replacement, () -> false));
+        return document.length();
+    }
+
+}
@@ -0,0 +1,61 @@
+package editor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Find Next and Find Previous as the finder runs them, through
+// SearchEngine.findMatch over a snapshot of an edited document. The one
+// match is far from where the search starts, so most of the text is read.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    @Param({"16"})
+    public int sizeMb;
+
+    @Param({"true", "false"})
+    public boolean backward;
+
+    @Param({"literal", "regex", "literal-ignore-case"})
+    public String query;
+
+    private CharSequence text;
+    private Pattern pattern;
+    private int from;
+
+    @Setup
+    public void setUp() {
+        int length = sizeMb << 20;
+        // forward from the start to near the end, or backward the other way
+        String content = Texts.logWithNeedle(length, backward ? 0.05 : 0.95);
+        text = Texts.edited(content, 1000).snapshot();
+        from = backward ? text.length() : 0;
+
+        SearchEngine engine = new SearchEngine();
+        switch (query) {
+            case "literal":
+                pattern = engine.compile("NEEDLE failed", false, true);
+                break;
+            case "literal-ignore-case":
+                pattern = engine.compile("needle FAILED", false, false);
+                break;
+            default:
+                pattern = engine.compile("NEEDLE \\w+ with code=4\\d\\d", true, true);
+                break;
+        }
+        if (SearchEngine.findMatch(text, pattern, from, backward, false, () -> false)[0] == -1)
+            throw new IllegalStateException("no match for " + pattern);
+    }
+
+    @Benchmark
+    public int[] find() {
+        return SearchEngine.findMatch(text, pattern, from, backward, false, () -> false);
+    }
+
+}
@@ -0,0 +1,71 @@
+package editor;
+
+import java.util.Random;
+
+// Made-up text for the benchmarks, the same every run.
+final class Texts {
+
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+    private static final String[] WORDS = {
+            "request", "handled", "cache", "miss", "user", "session", "opened", "closed", "retry", "queue"
+    };
+
+    private Texts() {
+    }
+
+    // log lines of about 80 chars, up to length chars in all
+    static String log(int length) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(length + 128);
+        int line = 0;
+        while (text.length() < length) {
+            text.append("2024-05-01 12:").append(two(line / 60 % 60)).append(':').append(two(line % 60))
+                    .append('.').append(100 + random.nextInt(900)).append(' ')
+                    .append(LEVELS[random.nextInt(LEVELS.length)]).append(" [worker-").append(random.nextInt(8))
+                    .append("] ");
+            for (int i = 0; i < 4; i++)
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            text.append("took ").append(random.nextInt(500)).append("ms\n");
+            line++;
+        }
+        text.setLength(length);
+        return text.toString();
+    }
+
+    // text with one line in it the queries look for, at fraction of the way in
+    static String logWithNeedle(int length, double fraction) {
+        StringBuilder text = new StringBuilder(log(length));
+        int at = text.indexOf("\n", (int) (length * fraction)) + 1;
+        text.insert(at, "2024-05-01 12:00:00.000 ERROR [worker-0] NEEDLE failed with code=418\n");
+        text.setLength(length);
+        return text.toString();
+    }
+
+    // the document after a bout of typing, so it reads through many pieces;
+    // the line the searches look for is left as it is
+    static PieceTable edited(String text, int edits) {
+        PieceTable document = new PieceTable(text);
+        int needle = text.indexOf("NEEDLE");
+        int needleStart = needle < 0 ? text.length() : text.lastIndexOf('\n', needle) + 1;
+        int needleEnd = needle < 0 ? -1 : text.indexOf('\n', needle);
+        if (needleEnd < 0)
+            needleEnd = text.length();
+        Random random = new Random(7);
+        for (int i = 0; i < edits; i++) {
+            int at = random.nextInt(document.length());
+            if (at >= needleStart && at <= needleEnd)
+                continue;
+            document.replace(at, at, "x");
+            if (at < needleStart) {
+                needleStart++;
+                needleEnd++;
+            }
+        }
+        return document;
+    }
+
+    private static String two(int n) {
+        return n < 10 ? "0" + n : String.valueOf(n);
+    }
+
+}
@@ -0,0 +1,121 @@
+package editor;
+
+import java.util.Arrays;
+
+// Append-only storage for text typed or pasted into a document. Chunks never
+// move once allocated, so ranges referenced by older snapshots stay readable
+// from other threads while the editor keeps appending.
+final class AppendBuffer implements TextBuffer {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile char[][] chunks = new char[0][];
+    private volatile int length;
+    private final IntArray lineFeeds = new IntArray();
+
+    // appends text and returns the offset it starts at
+    int append(CharSequence text) {
+        int start = length;
+        int end = start + text.length();
+        if (end < start)
+            throw new IllegalStateException("Document is too large");
+
+        char[][] chunks = ensureCapacity(end);
+        int pos = start;
+        int from = 0;
+        while (pos < end) {
+            char[] chunk = chunks[pos >>> CHUNK_BITS];
+            int at = pos & CHUNK_MASK;
+            int count = Math.min(CHUNK_SIZE - at, end - pos);
+            copy(text, from, from + count, chunk, at);
+            for (int i = at; i < at + count; i++)
+                if (chunk[i] == '\n')
+                    lineFeeds.add(pos + i - at);
+            pos += count;
+            from += count;
+        }
+
+        length = end;
+        return start;
+    }
+
+    private char[][] ensureCapacity(int capacity) {
+        char[][] chunks = this.chunks;
+        int needed = (int) (((long) capacity + CHUNK_MASK) >>> CHUNK_BITS);
+        if (needed > chunks.length) {
+            int oldCount = chunks.length;
+            chunks = Arrays.copyOf(chunks, Math.max(needed, oldCount * 2));
+            for (int i = oldCount; i < chunks.length; i++)
+                chunks[i] = new char[CHUNK_SIZE];
+            this.chunks = chunks;
+        }
+        return chunks;
+    }
+
+    private static void copy(CharSequence text, int start, int end, char[] dst, int dstBegin) {
+        if (text instanceof String) {
+            ((String) text).getChars(start, end, dst, dstBegin);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(start, end, dst, dstBegin);
+        } else {
+            for (int i = start; i < end; i++)
+                dst[dstBegin++] = text.charAt(i);
+        }
+    }
+
+    // appends the characters in [start, end) to builder a chunk at a time
+    void appendTo(StringBuilder builder, int start, int end) {
+        char[][] chunks = this.chunks;
+        while (start < end) {
+            int at = start & CHUNK_MASK;
+            int count = Math.min(CHUNK_SIZE - at, end - start);
+            builder.append(chunks[start >>> CHUNK_BITS], at, count);
+            start += count;
+        }
+    }
+
+    @Override
+    public int lineFeedsBefore(int index) {
+        return lineFeeds.upperBound(index - 1);
+    }
+
+    @Override
+    public int lineFeedAt(int n) {
+        return lineFeeds.get(n);
+    }
+
+    // chunks are allocated ahead of the text, so this counts them whole
+    @Override
+    public long heapBytes() {
+        return 2L * CHUNK_SIZE * chunks.length + lineFeeds.heapBytes();
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length)
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        StringBuilder builder = new StringBuilder(end - start);
+        appendTo(builder, start, end);
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+}
@@ -0,0 +1,71 @@
+package editor;
+
+import javafx.animation.AnimationTimer;
+
+import java.util.concurrent.TimeUnit;
+
+// Puts a long text in place of a range of a document a chunk at a time, as
+// many chunks a pulse as fit in a few milliseconds, so pasting megabytes
+// never holds up the application thread for more than about a frame. The
+// first chunk replaces the range and the others follow on after it. Chunks
+// never split a "\r\n" or a surrogate pair, so converting their line breaks
+// one at a time gives the same text as converting all of it.
+public class ChunkedInsert extends AnimationTimer {
+
+    // texts up to this long are better put in at once
+    public static final int CHUNK_SIZE = 1 << 14;
+
+    private static final long FRAME_BUDGET = TimeUnit.MILLISECONDS.toNanos(8);
+
+    private final Document document;
+    private final String text;
+    private final FileFormat format;
+    private final Runnable onFinished;
+
+    // what the next chunk replaces, the range only for the first one
+    private int start;
+    private int end;
+    // how much of text is in
+    private int position;
+
+    public ChunkedInsert(Document document, int start, int end, String text, FileFormat format, Runnable onFinished) {
+        this.document = document;
+        this.start = start;
+        this.end = end;
+        this.text = text;
+        this.format = format;
+        this.onFinished = onFinished;
+    }
+
+    public boolean isFinished() {
+        return position == text.length();
+    }
+
+    @Override
+    public void handle(long now) {
+        long deadline = System.nanoTime() + FRAME_BUDGET;
+        do {
+            insertChunk();
+        } while (!isFinished() && System.nanoTime() < deadline);
+
+        if (isFinished()) {
+            stop();
+            onFinished.run();
+        }
+    }
+
+    private void insertChunk() {
+        int next = Math.min(text.length(), position + CHUNK_SIZE);
+        if (next < text.length()) {
+            char last = text.charAt(next - 1);
+            if (last == '\r' || Character.isHighSurrogate(last))
+                next--;
+        }
+        String chunk = format.convertLineSeparators(text.substring(position, next));
+        document.replace(start, end, chunk);
+        start += chunk.length();
+        end = start;
+        position = next;
+    }
+
+}
@@ -0,0 +1,46 @@
+package editor;
+
+// CSV records with every column in a style of its own and the separators
+// marked. A quoted field can hold line breaks, so the state a line starts in
+// is the column it is in, shifted left by one, with the lowest bit set while
+// inside quotes.
+public class CsvGrammar implements Grammar {
+
+    private final char separator;
+
+    public CsvGrammar(char separator) {
+        this.separator = separator;
+    }
+
+    @Override
+    public boolean carriesState() {
+        return true;
+    }
+
+    @Override
+    public int lex(CharSequence text, int start, int end, int state, SpanConsumer spans) {
+        int column = state >>> 1;
+        boolean quoted = (state & 1) != 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                // a doubled quote inside quotes stands for one, and toggling twice leaves it as it was
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                if (spans != null) {
+                    if (i > fieldStart)
+                        spans.accept(fieldStart, i, Style.column(column));
+                    spans.accept(i, i + 1, Style.PUNCTUATION);
+                }
+                column++;
+                fieldStart = i + 1;
+            }
+        }
+        if (spans != null && end > fieldStart)
+            spans.accept(fieldStart, end, Style.column(column));
+        // a line break outside quotes ends the record
+        return quoted ? column << 1 | 1 : 0;
+    }
+
+}
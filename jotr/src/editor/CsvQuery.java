@@ -0,0 +1,275 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+// Which rows of a CsvTable a view shows and in what order: those whose field
+// in a column contains some text, sorted by a column. The answer is a list of
+// row numbers in an OffHeapLongs, worked out on a pool of worker threads a
+// batch of rows at a time, so the heap holds a batch per worker and never
+// the whole file. Sorting is an external merge sort: each batch is sorted on
+// its own and written to the list as a run, then the runs are merged, with
+// one key per run on the heap.
+public class CsvQuery {
+
+    private static final int BATCH_ROWS = 1 << 16;
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "editor-table");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final CsvTable table;
+    private final BooleanSupplier cancelled;
+
+    // the column to filter on and the text its field must contain, or -1
+    private int filterColumn = -1;
+    private String filterText;
+
+    // the column to sort by, or -1
+    private int sortColumn = -1;
+    private boolean descending;
+
+    public CsvQuery(CsvTable table, BooleanSupplier cancelled) {
+        this.table = table;
+        this.cancelled = cancelled;
+    }
+
+    public CsvQuery filter(int column, String text) {
+        filterColumn = column;
+        filterText = text.toLowerCase();
+        return this;
+    }
+
+    public CsvQuery sort(int column, boolean descending) {
+        sortColumn = column;
+        this.descending = descending;
+        return this;
+    }
+
+    // The rows to show, or null for all of them in the order of the file.
+    // Throws CancellationException once cancelled says so.
+    public OffHeapLongs run() throws InterruptedException {
+        OffHeapLongs rows = null;
+        if (filterColumn >= 0) {
+            Metrics.Timing timing = Metrics.FILTER.start(filterText);
+            rows = filter(table.getRowCount());
+            timing.end();
+        }
+        if (sortColumn >= 0) {
+            Metrics.Timing timing = Metrics.SORT.start(table.getColumns().get(sortColumn));
+            OffHeapLongs filtered = rows;
+            try {
+                rows = sort(filtered);
+            } finally {
+                if (filtered != null)
+                    filtered.close();
+            }
+            timing.end();
+        }
+        return rows;
+    }
+
+    // the row to show at index, whether rows is a query's answer or null for all of them
+    static long rowAt(OffHeapLongs rows, long index) {
+        return rows == null ? index : rows.get(index);
+    }
+
+    // FILTERING
+
+    // a batch per worker at a time, the matches of each batch go on the list in order
+    private OffHeapLongs filter(long rowCount) throws InterruptedException {
+        OffHeapLongs matches = new OffHeapLongs();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            for (long start = 0; start < rowCount; start += (long) BATCH_ROWS * parallelism) {
+                List<Future<long[]>> batches = new ArrayList<>();
+                for (int i = 0; i < parallelism; i++) {
+                    long from = start + (long) BATCH_ROWS * i;
+                    long to = Math.min(rowCount, from + BATCH_ROWS);
+                    if (from < to)
+                        batches.add(workers.submit(() -> filterBatch(from, to)));
+                }
+                for (long[] batch : results(batches))
+                    for (long row : batch)
+                        matches.add(row);
+            }
+            return matches;
+        } catch (RuntimeException | InterruptedException e) {
+            matches.close();
+            throw e;
+        }
+    }
+
+    private long[] filterBatch(long from, long to) {
+        long[] matches = new long[(int) (to - from)];
+        int count = 0;
+        for (long row = from; row < to; row++) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            if (field(row, filterColumn).toLowerCase().contains(filterText))
+                matches[count++] = row;
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    // SORTING
+
+    private OffHeapLongs sort(OffHeapLongs rows) throws InterruptedException {
+        long rowCount = rows == null ? table.getRowCount() : rows.size();
+        OffHeapLongs runs = new OffHeapLongs(rowCount);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try {
+            for (long start = 0; start < rowCount; start += (long) BATCH_ROWS * parallelism) {
+                List<Future<Void>> batches = new ArrayList<>();
+                for (int i = 0; i < parallelism; i++) {
+                    long from = start + (long) BATCH_ROWS * i;
+                    long to = Math.min(rowCount, from + BATCH_ROWS);
+                    if (from < to)
+                        batches.add(workers.submit(() -> sortBatch(rows, runs, from, to)));
+                }
+                results(batches);
+            }
+            return merge(runs);
+        } finally {
+            runs.close();
+        }
+    }
+
+    // sorts the rows at [from, to) of rows and writes them to the same place in runs
+    private Void sortBatch(OffHeapLongs rows, OffHeapLongs runs, long from, long to) {
+        int count = (int) (to - from);
+        Key[] keys = new Key[count];
+        for (int i = 0; i < count; i++) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            long row = rowAt(rows, from + i);
+            keys[i] = new Key(row, field(row, sortColumn));
+        }
+        Arrays.sort(keys, this::compare);
+        for (int i = 0; i < count; i++)
+            runs.set(from + i, keys[i].row);
+        return null;
+    }
+
+    // the runs are each BATCH_ROWS long but the last, the queue holds the head of each one
+    private OffHeapLongs merge(OffHeapLongs runs) {
+        OffHeapLongs sorted = new OffHeapLongs();
+        PriorityQueue<Run> heads = new PriorityQueue<>((a, b) -> compare(a.head, b.head));
+        for (long start = 0; start < runs.size(); start += BATCH_ROWS) {
+            Run run = new Run(start, Math.min(runs.size(), start + BATCH_ROWS));
+            run.advance(runs);
+            heads.add(run);
+        }
+        long merged = 0;
+        while (!heads.isEmpty()) {
+            if (++merged % BATCH_ROWS == 0 && cancelled.getAsBoolean()) {
+                sorted.close();
+                throw new CancellationException();
+            }
+            Run run = heads.poll();
+            sorted.add(run.head.row);
+            if (run.advance(runs))
+                heads.add(run);
+        }
+        return sorted;
+    }
+
+    private final class Run {
+        long next;
+        final long end;
+        Key head;
+
+        Run(long start, long end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        // takes the next row of the run as its head, false once there are none
+        boolean advance(OffHeapLongs runs) {
+            if (next == end)
+                return false;
+            long row = runs.get(next++);
+            head = new Key(row, field(row, sortColumn));
+            return true;
+        }
+    }
+
+    // A field to sort by, a number if it reads as one. Numbers come before
+    // text and ties keep the order of the file, so the sort is stable.
+    private static final class Key {
+        final long row;
+        final String text;
+        final double number;
+
+        Key(long row, String text) {
+            this.row = row;
+            this.text = text;
+            this.number = parseNumber(text);
+        }
+    }
+
+    private int compare(Key a, Key b) {
+        int order;
+        boolean aNumber = !Double.isNaN(a.number);
+        boolean bNumber = !Double.isNaN(b.number);
+        if (aNumber && bNumber)
+            order = Double.compare(a.number, b.number);
+        else if (aNumber != bNumber)
+            order = aNumber ? -1 : 1;
+        else
+            order = a.text.compareToIgnoreCase(b.text);
+        if (descending)
+            order = -order;
+        return order != 0 ? order : Long.compare(a.row, b.row);
+    }
+
+    private static double parseNumber(String text) {
+        String trimmed = text.trim();
+        if (trimmed.isEmpty())
+            return Double.NaN;
+        char first = trimmed.charAt(0);
+        if (!Character.isDigit(first) && first != '-' && first != '+' && first != '.')
+            return Double.NaN;
+        try {
+            return Double.parseDouble(trimmed);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // WORKERS
+
+    // each row is read once, so they don't go through the table's cache
+    private String field(long row, int column) {
+        List<String> fields = table.readRow(row + 1);
+        return column < fields.size() ? fields.get(column) : "";
+    }
+
+    // waits for every batch, a failed or cancelled one fails the whole query
+    private static <T> List<T> results(List<Future<T>> batches) throws InterruptedException {
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> batch : batches)
+                results.add(batch.get());
+        } catch (ExecutionException e) {
+            for (Future<T> batch : batches)
+                batch.cancel(false);
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+}
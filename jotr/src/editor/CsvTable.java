@@ -0,0 +1,213 @@
+package editor;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// A comma or tab separated file of any size as a table. A background pass
+// reads the file through a PagedFile and records where each row starts in an
+// OffHeapLongs, minding quotes, as a quoted field can hold line breaks; the
+// fields of a row are only split out when it is asked for, and the rows
+// asked for last are cached. The first row names the columns. The file is
+// read as bytes, which works for UTF-8 and the single-byte charsets, where a
+// quote, separator or line feed byte is always that character.
+public class CsvTable {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int CACHED_ROWS = 256;
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // a longer row is cut short, so one broken quote can't take the whole file into a cell
+    private static final int ROW_LIMIT = 1 << 20;
+
+    private final PagedFile bytes;
+    private final char separator;
+    private final Charset charset;
+    private final long textStart;
+
+    // where each row starts, the header first, and once a row has ended where the next one starts
+    private final OffHeapLongs rowStarts = new OffHeapLongs();
+
+    private volatile List<String> columns = List.of();
+    private volatile boolean indexed;
+    private volatile boolean closed;
+
+    private final Map<Long, List<String>> cache = new LinkedHashMap<>(CACHED_ROWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, List<String>> eldest) {
+            return size() > CACHED_ROWS;
+        }
+    };
+
+    public CsvTable(PagedFile bytes, char separator, FileFormat format) throws IOException {
+        charset = format.getCharset();
+        if (!charset.equals(StandardCharsets.UTF_8) && charset.newEncoder().maxBytesPerChar() != 1)
+            throw new IOException(charset + " files can't be shown as a table");
+        this.bytes = bytes;
+        this.separator = separator;
+        textStart = format.getBomBytes().length;
+    }
+
+    // ',' for a .csv file, a tab for a .tsv one, and 0 for anything else
+    public static char separatorFor(Path file) {
+        String name = file == null ? "" : file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".csv"))
+            return ',';
+        if (name.endsWith(".tsv"))
+            return '\t';
+        return 0;
+    }
+
+    public PagedFile getBytes() {
+        return bytes;
+    }
+
+    public char getSeparator() {
+        return separator;
+    }
+
+    // the names in the first row, empty until it has been read
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    // the rows under the header that have been read so far
+    public long getRowCount() {
+        return Math.max(0, rowStarts.size() - 2);
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    // gives up indexing and lets go of the index; the file is the caller's
+    public void close() {
+        closed = true;
+        rowStarts.close();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    // INDEXING
+
+    // Runs the indexing pass on executor, calling onProgress from that thread
+    // every so often and once more when the whole file is indexed. close()
+    // can let go of the index while a chunk is still going into it, what that
+    // breaks in the pass is of no interest once the table is closed.
+    public void index(Executor executor, Runnable onProgress) {
+        executor.execute(() -> {
+            try {
+                indexRows(onProgress);
+            } catch (RuntimeException e) {
+                if (!closed)
+                    throw e;
+                return;
+            }
+            indexed = !closed;
+            onProgress.run();
+        });
+    }
+
+    private void indexRows(Runnable onProgress) {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long size = bytes.size();
+        long lastProgress = System.nanoTime();
+        boolean quoted = false;
+        rowStarts.add(textStart);
+
+        for (long position = textStart; position < size && !closed; ) {
+            int count = bytes.read(position, chunk, 0, chunk.length);
+            if (count == 0)
+                return;
+            for (int i = 0; i < count; i++) {
+                // a doubled quote inside quotes stands for one, and toggling twice leaves it as it was
+                if (chunk[i] == '"')
+                    quoted = !quoted;
+                else if (chunk[i] == '\n' && !quoted)
+                    rowEnded(position + i + 1);
+            }
+            position += count;
+
+            if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL) {
+                onProgress.run();
+                lastProgress = System.nanoTime();
+            }
+        }
+        // the last row need not end with a line break
+        if (!closed && rowStarts.get(rowStarts.size() - 1) < size)
+            rowEnded(size);
+    }
+
+    private void rowEnded(long nextStart) {
+        if (closed)
+            return;
+        rowStarts.add(nextStart);
+        if (rowStarts.size() == 2)
+            columns = readRow(0);
+    }
+
+    // READING
+
+    // the fields of a row under the header, as many as it has
+    public List<String> getRow(long row) {
+        synchronized (cache) {
+            List<String> fields = cache.get(row);
+            if (fields != null)
+                return fields;
+        }
+        List<String> fields = readRow(row + 1);
+        synchronized (cache) {
+            cache.put(row, fields);
+        }
+        return fields;
+    }
+
+    // one field of a row under the header, empty if the row is shorter
+    public String getField(long row, int column) {
+        List<String> fields = getRow(row);
+        return column < fields.size() ? fields.get(column) : "";
+    }
+
+    // reads and splits a row counting the header, without going through the
+    // cache, for passes over every row
+    List<String> readRow(long index) {
+        long start = rowStarts.get(index);
+        int length = (int) Math.min(ROW_LIMIT, rowStarts.get(index + 1) - start);
+        byte[] row = new byte[length];
+        length = bytes.read(start, row, 0, length);
+        while (length > 0 && (row[length - 1] == '\n' || row[length - 1] == '\r'))
+            length--;
+        return split(new String(row, 0, length, charset));
+    }
+
+    private List<String> split(String row) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < row.length() && row.charAt(i + 1) == '"')
+                    field.append(row.charAt(++i));
+                else
+                    quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+}
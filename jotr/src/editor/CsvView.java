@@ -0,0 +1,364 @@
+package editor;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.ObservableListBase;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.util.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Read-only view of a CsvTable. The rows are a TableView's items, which
+// only makes cells for the rows in the viewport and reads their fields from
+// the table as they scroll in, so a file of any size scrolls at the same
+// cost. Clicking a column header sorts by it and the bar above filters by a
+// column; either runs as a CsvQuery in the background, and the rows shown
+// switch over once it is done. Both wait for the whole file to be indexed.
+public class CsvView extends VBox {
+
+    private static final ExecutorService querier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-table-query");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final TableView<Long> tableView = new TableView<>();
+
+    private final ChoiceBox<String> filterColumn = new ChoiceBox<>();
+
+    private final TextField filterField = new TextField();
+
+    private final Label status = new Label();
+
+    private final ObjectProperty<Font> font = new SimpleObjectProperty<>(this, "font", Font.font("Monospaced", 14));
+
+    // the row of the file selected, counted under the header, or -1
+    private final ReadOnlyLongWrapper selectedRow = new ReadOnlyLongWrapper(this, "selectedRow", -1);
+
+    // catches up with the rows indexed while the table is still being read
+    private final Timeline indexRefresh = new Timeline(new KeyFrame(Duration.millis(200), event -> refresh()));
+
+    private CsvTable table;
+
+    // the rows shown, or null for all of them in the order of the file
+    private OffHeapLongs rows;
+
+    private RowList items;
+
+    // what the rows shown were asked for with, so asking again does nothing
+    private String shownQuery = "";
+    private boolean filtered;
+
+    private Query query;
+
+    // set while the items are replaced, which clears the sort order and sorts again
+    private boolean settingItems;
+
+
+    // Constructor
+
+    public CsvView() {
+        getStyleClass().add("csv-view");
+
+        filterField.setPromptText("Filter, then Enter");
+        filterField.setOnAction(event -> runQuery());
+        filterColumn.getSelectionModel().selectedIndexProperty().addListener(observable -> {
+            if (!filterField.getText().isEmpty())
+                runQuery();
+        });
+        status.setMinWidth(Label.USE_PREF_SIZE);
+        HBox.setHgrow(filterField, Priority.ALWAYS);
+        HBox filterBar = new HBox(5, new Label("Filter"), filterColumn, filterField, status);
+        filterBar.setAlignment(Pos.CENTER_LEFT);
+        filterBar.setPadding(new Insets(3, 5, 3, 5));
+
+        // the rows are only ever sorted by a query, never by the table view itself
+        tableView.setSortPolicy(tableView -> {
+            runQuery();
+            return true;
+        });
+        tableView.setPlaceholder(new Label(""));
+        tableView.getSelectionModel().selectedItemProperty().addListener((observable, oldRow, row) ->
+                selectedRow.set(row == null ? -1 : row));
+        VBox.setVgrow(tableView, Priority.ALWAYS);
+        getChildren().addAll(filterBar, tableView);
+
+        indexRefresh.setCycleCount(Animation.INDEFINITE);
+        font.addListener(observable -> tableView.setStyle(String.format("-fx-font-family: \"%s\"; -fx-font-size: %.1fpx;",
+                getFont().getFamily(), getFont().getSize())));
+    }
+
+
+    // Table
+
+    public CsvTable getTable() {
+        return table;
+    }
+
+    // null shows nothing
+    public void setTable(CsvTable table) {
+        cancelQuery();
+        this.table = table;
+        tableView.getColumns().clear();
+        tableView.getSortOrder().clear();
+        filterColumn.getItems().clear();
+        filterField.clear();
+        shownQuery = "";
+        filtered = false;
+        showRows(null);
+        if (table == null || table.isIndexed())
+            indexRefresh.stop();
+        else
+            indexRefresh.play();
+        refresh();
+    }
+
+    // the columns once the header is read, and the rows indexed so far
+    private void refresh() {
+        if (table == null)
+            return;
+        if (tableView.getColumns().isEmpty() && !table.getColumns().isEmpty())
+            addColumns(table.getColumns());
+        if (rows == null)
+            items.setSize(table.getRowCount());
+        if (table.isIndexed())
+            indexRefresh.stop();
+        boolean indexed = table.isIndexed();
+        filterColumn.setDisable(!indexed);
+        filterField.setDisable(!indexed);
+        for (TableColumn<Long, ?> column : tableView.getColumns())
+            column.setSortable(indexed && column.getUserData() != null);
+        updateStatus();
+    }
+
+    private void addColumns(List<String> names) {
+        CsvTable table = this.table;
+        TableColumn<Long, String> number = new TableColumn<>("#");
+        number.setCellValueFactory(cell -> new ReadOnlyStringWrapper(String.format("%,d", cell.getValue() + 1)));
+        number.setSortable(false);
+        tableView.getColumns().add(number);
+
+        for (int i = 0; i < names.size(); i++) {
+            int index = i;
+            TableColumn<Long, String> column = new TableColumn<>(names.get(i));
+            column.setUserData(index);
+            column.setPrefWidth(120);
+            column.setCellValueFactory(cell -> new ReadOnlyStringWrapper(table.getField(cell.getValue(), index)));
+            tableView.getColumns().add(column);
+        }
+        filterColumn.getItems().setAll(names);
+        filterColumn.getSelectionModel().select(0);
+    }
+
+    private void updateStatus() {
+        if (query != null)
+            return;
+        long rowCount = table == null ? 0 : table.getRowCount();
+        if (table != null && !table.isIndexed())
+            status.setText(String.format("Reading, %,d rows so far", rowCount));
+        else if (rows != null && filtered)
+            status.setText(String.format("%,d of %,d rows", rows.size(), rowCount));
+        else
+            status.setText(String.format("%,d rows", rowCount));
+    }
+
+
+    // Rows
+
+    public ReadOnlyLongProperty selectedRowProperty() {
+        return selectedRow.getReadOnlyProperty();
+    }
+
+    public long getSelectedRow() {
+        return selectedRow.get();
+    }
+
+    // the fields of the selected row joined by the separator, or nothing
+    public String getSelectedText() {
+        long row = getSelectedRow();
+        if (table == null || row < 0)
+            return "";
+        return String.join(String.valueOf(table.getSeparator()), table.getRow(row));
+    }
+
+    // the number of rows shown, filtered or not
+    public long getShownRowCount() {
+        return items == null ? 0 : items.size();
+    }
+
+    // selects the index-th row shown and scrolls to it
+    public void selectShownRow(int index) {
+        tableView.getSelectionModel().clearAndSelect(index);
+        tableView.scrollTo(index);
+        tableView.requestFocus();
+    }
+
+    public void focusFilter() {
+        filterField.requestFocus();
+        filterField.selectAll();
+    }
+
+    private void showRows(OffHeapLongs rows) {
+        if (this.rows != null)
+            this.rows.close();
+        this.rows = rows;
+        items = new RowList(rows);
+        items.setSize(rows != null ? rows.size() : table == null ? 0 : table.getRowCount());
+        List<TableColumn<Long, ?>> sortOrder = new ArrayList<>(tableView.getSortOrder());
+        settingItems = true;
+        tableView.setItems(items);
+        tableView.getSortOrder().setAll(sortOrder);
+        settingItems = false;
+        updateStatus();
+    }
+
+    // the query's rows, or the rows of the file while it is still being read
+    private static final class RowList extends ObservableListBase<Long> {
+        private final OffHeapLongs rows;
+        private int size;
+
+        RowList(OffHeapLongs rows) {
+            this.rows = rows;
+        }
+
+        // only ever grows, the way the rows of the file come in
+        void setSize(long rowCount) {
+            int newSize = (int) Math.min(Integer.MAX_VALUE, rowCount);
+            if (newSize <= size)
+                return;
+            beginChange();
+            nextAdd(size, newSize);
+            size = newSize;
+            endChange();
+        }
+
+        @Override
+        public Long get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            return CsvQuery.rowAt(rows, index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+
+    // Querying
+
+    // Runs the sort of the table view and the filter of the bar unless they
+    // are what is shown already; nothing of either shows the rows as they are.
+    private void runQuery() {
+        if (settingItems || table == null || !table.isIndexed())
+            return;
+        int sortColumn = -1;
+        boolean descending = false;
+        if (!tableView.getSortOrder().isEmpty()) {
+            TableColumn<Long, ?> column = tableView.getSortOrder().get(0);
+            sortColumn = (Integer) column.getUserData();
+            descending = column.getSortType() == TableColumn.SortType.DESCENDING;
+        }
+        String text = filterField.getText();
+        int filter = text.isEmpty() ? -1 : filterColumn.getSelectionModel().getSelectedIndex();
+
+        String wanted = (sortColumn >= 0 ? "sort " + sortColumn + (descending ? " down " : " up ") : "")
+                + (filter >= 0 ? "filter " + filter + " " + text : "");
+        if (wanted.equals(shownQuery))
+            return;
+        cancelQuery();
+        shownQuery = wanted;
+        filtered = filter >= 0;
+        if (wanted.isEmpty()) {
+            showRows(null);
+            return;
+        }
+
+        Query query = new Query();
+        this.query = query;
+        CsvQuery csvQuery = new CsvQuery(table, () -> query.cancelled);
+        if (filter >= 0)
+            csvQuery.filter(filter, text);
+        if (sortColumn >= 0)
+            csvQuery.sort(sortColumn, descending);
+        status.setText(sortColumn >= 0 ? "Sorting..." : "Filtering...");
+        query.run(csvQuery);
+    }
+
+    private void cancelQuery() {
+        if (query != null)
+            query.cancelled = true;
+        query = null;
+    }
+
+    private class Query {
+        private volatile boolean cancelled;
+
+        void run(CsvQuery csvQuery) {
+            querier.execute(() -> {
+                OffHeapLongs found;
+                try {
+                    found = csvQuery.run();
+                } catch (CancellationException | InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    Metrics.failed("Table query", e);
+                    Platform.runLater(() -> {
+                        if (cancelled)
+                            return;
+                        query = null;
+                        status.setText("The query failed");
+                    });
+                    return;
+                }
+                Platform.runLater(() -> {
+                    if (cancelled) {
+                        if (found != null)
+                            found.close();
+                        return;
+                    }
+                    query = null;
+                    showRows(found);
+                });
+            });
+        }
+    }
+
+
+    // Properties
+
+    public final ObjectProperty<Font> fontProperty() {
+        return font;
+    }
+
+    public final Font getFont() {
+        return font.get();
+    }
+
+    public final void setFont(Font font) {
+        this.font.set(font);
+    }
+
+}
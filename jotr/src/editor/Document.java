@@ -0,0 +1,72 @@
+package editor;
+
+// Authoritative text of an open file. Reads go through CharSequence views that
+// share the underlying buffers, so nothing here copies the whole document.
+public interface Document extends CharSequence {
+
+    // replaces the characters in [start, end) with text and notifies listeners
+    void replace(int start, int end, CharSequence text);
+
+    // makes every replacement in the batch as a single edit spanning them all
+    void replace(ReplaceBatch batch);
+
+    default void insert(int offset, CharSequence text) {
+        replace(offset, offset, text);
+    }
+
+    default void delete(int start, int end) {
+        replace(start, end, "");
+    }
+
+    // LINES: a line ends at '\n', and a '\r' right before it is part of the line break
+
+    int getLineCount();
+
+    int getLineStart(int line);
+
+    int getLineOfOffset(int offset);
+
+    // offset right after the line's last character, before its line break
+    default int getLineEnd(int line) {
+        if (line + 1 >= getLineCount())
+            return length();
+        int end = getLineStart(line + 1) - 1;
+        if (end > getLineStart(line) && charAt(end - 1) == '\r')
+            end--;
+        return end;
+    }
+
+    // immutable view of the current text, it stays valid after later edits
+    // and can be read from any thread; until the next edit the same view is
+    // returned, so comparing snapshots by identity tells whether anything changed
+    CharSequence snapshot();
+
+    default boolean contentEquals(CharSequence other) {
+        if (other.length() != length())
+            return false;
+        for (int i = 0; i < other.length(); i++)
+            if (charAt(i) != other.charAt(i))
+                return false;
+        return true;
+    }
+
+    // lets go of anything cached that can be worked out again, e.g. while the document isn't shown
+    default void releaseMemory() {
+    }
+
+    // roughly how much heap the text takes up, for seeing where memory goes
+    default long heapBytes() {
+        return 0;
+    }
+
+    // whether the text it was opened with had bytes its charset couldn't
+    // decode, which read as U+FFFD and would be saved as such
+    default boolean isLossy() {
+        return false;
+    }
+
+    void addListener(DocumentListener listener);
+
+    void removeListener(DocumentListener listener);
+
+}
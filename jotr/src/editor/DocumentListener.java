@@ -0,0 +1,8 @@
+package editor;
+
+@FunctionalInterface
+public interface DocumentListener {
+
+    void documentChanged(Edit edit);
+
+}
@@ -0,0 +1,210 @@
+package editor;
+
+import javafx.beans.binding.Bindings;
+import javafx.scene.control.Tab;
+
+import java.nio.file.Path;
+
+// One open document of a window: its tab, its file, its undo history and
+// where the caret was. A tab that isn't showing can be unloaded; a file with
+// nothing unsaved and nothing to undo is let go of entirely and read back
+// from disk when the tab is shown again, anything else only drops what its
+// document has cached. A tab can also follow its file as it grows, take in
+// a long paste a chunk at a time, and show a delimited file as a table.
+public class DocumentTab {
+
+    private final Tab tab = new Tab();
+
+    // null while unloaded
+    private TextFile textFile;
+    private UndoManager undoManager;
+
+    // set once the tab has followed its file, the document reads through it
+    private FileFollower follower;
+
+    // a long paste still going in
+    private ChunkedInsert insert;
+
+    // enough to read the file back after unloading, the way it was shown
+    private Path file;
+    private String fileName;
+    private boolean table;
+
+    private int anchor;
+    private int caretPosition;
+    private int topLine;
+
+    public DocumentTab(TextFile textFile) {
+        tab.setUserData(this);
+        setTextFile(textFile);
+        undoManager = new UndoManager(textFile.getDocument());
+    }
+
+    public Tab getTab() {
+        return tab;
+    }
+
+    public TextFile getTextFile() {
+        return textFile;
+    }
+
+    // another TextFile for the same document, e.g. after Save As; the undo history carries on
+    public void setTextFile(TextFile textFile) {
+        if (this.textFile != null) {
+            // the new TextFile journals the document's edits now
+            this.textFile.discardChanges();
+            this.textFile.dispose();
+        }
+        this.textFile = textFile;
+        file = textFile.getFile();
+        fileName = textFile.getFileName().getValue();
+        table = textFile.isTable();
+        tab.textProperty().bind(Bindings.when(textFile.modifiedProperty()).then("*").otherwise("")
+                .concat(textFile.getFileName()));
+    }
+
+    public UndoManager getUndoManager() {
+        return undoManager;
+    }
+
+    public boolean isFollowing() {
+        return follower != null && !follower.isStopped();
+    }
+
+    // shows the follower's document from now on, in place of the one the tab had
+    public void follow(FileFollower follower) {
+        FileFollower previous = this.follower;
+        this.follower = follower;
+        setTextFile(follower.getTextFile());
+        if (undoManager != null)
+            undoManager.dispose();
+        undoManager = new UndoManager(textFile.getDocument());
+        if (previous != null)
+            previous.dispose();
+    }
+
+    // the file read again another way, as a table or as text; the undo history starts over
+    public void reopen(TextFile textFile) {
+        if (follower != null)
+            follower.dispose();
+        follower = null;
+        setTextFile(textFile);
+        if (undoManager != null)
+            undoManager.dispose();
+        undoManager = new UndoManager(textFile.getDocument());
+    }
+
+    // keeps the text read so far
+    public void stopFollowing() {
+        if (follower != null)
+            follower.stop();
+    }
+
+    // The text goes in place of [start, end) over the next frames; until it's
+    // all in the document can't be edited or saved, and undo takes all of it
+    // out in one go.
+    public void insertInChunks(int start, int end, String text, Runnable onFinished) {
+        TextFile textFile = this.textFile;
+        UndoManager undoManager = this.undoManager;
+        textFile.loadingProperty().set(true);
+        undoManager.beginGroup();
+        insert = new ChunkedInsert(textFile.getDocument(), start, end, text, textFile.getFormat(), () -> {
+            insert = null;
+            undoManager.endGroup();
+            textFile.loadingProperty().set(false);
+            onFinished.run();
+        });
+        insert.start();
+    }
+
+    // null for an untitled document, kept while the tab is unloaded
+    public Path getFile() {
+        return file;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isLoaded() {
+        return textFile != null;
+    }
+
+    public boolean isModified() {
+        return textFile != null && textFile.isModified();
+    }
+
+    // an untitled tab nobody has typed in yet, opening a file can take its place
+    public boolean isBlank() {
+        return textFile != null && file == null && textFile.getDocument().length() == 0 && !undoManager.canUndo();
+    }
+
+    public void saveCaret(TextView textView) {
+        anchor = textView.getAnchor();
+        caretPosition = textView.getCaretPosition();
+        topLine = textView.getTopLine();
+    }
+
+    public void restoreCaret(TextView textView) {
+        textView.selectRange(anchor, caretPosition);
+        textView.scrollToTopLine(topLine);
+    }
+
+    // where the caret and the view were as of the last saveCaret, for the session to remember
+    public SessionStore.FileState getFileState() {
+        return new SessionStore.FileState(anchor, caretPosition, topLine);
+    }
+
+    public void setFileState(SessionStore.FileState state) {
+        anchor = state.getAnchor();
+        caretPosition = state.getCaretPosition();
+        topLine = state.getTopLine();
+    }
+
+    // UNLOADING
+
+    public void unload() {
+        if (textFile == null)
+            return;
+        if (file == null || textFile.isModified() || textFile.isLoading()
+                || undoManager.canUndo() || undoManager.canRedo()) {
+            textFile.getDocument().releaseMemory();
+            return;
+        }
+
+        tab.textProperty().unbind();
+        tab.setText(fileName);
+        undoManager.dispose();
+        undoManager = null;
+        textFile.dispose();
+        textFile = null;
+        if (follower != null)
+            follower.dispose();
+        follower = null;
+    }
+
+    // reads the file back if the tab was unloaded, returns false if that failed
+    public boolean load(EditorModel model) {
+        if (textFile != null)
+            return true;
+        IOResult<TextFile> io = model.open(file, table);
+        if (!io.isOk() || !io.hasData())
+            return false;
+        setTextFile(io.getData());
+        undoManager = new UndoManager(textFile.getDocument());
+        return true;
+    }
+
+    public void dispose() {
+        if (insert != null)
+            insert.stop();
+        if (follower != null)
+            follower.dispose();
+        if (textFile == null)
+            return;
+        tab.textProperty().unbind();
+        undoManager.dispose();
+        textFile.dispose();
+    }
+
+}
@@ -0,0 +1,48 @@
+package editor;
+
+// A single change to a document: the text in [offset, offset + removed.length())
+// was replaced by inserted. Both sides are immutable views, not copies.
+public class Edit {
+    private final int offset;
+    private final CharSequence removed;
+    private final CharSequence inserted;
+    private final boolean external;
+
+    public Edit(int offset, CharSequence removed, CharSequence inserted) {
+        this(offset, removed, inserted, false);
+    }
+
+    // external edits bring in text from the file itself, e.g. while it is
+    // still being indexed, rather than changes made by the user
+    public Edit(int offset, CharSequence removed, CharSequence inserted, boolean external) {
+        this.offset = offset;
+        this.removed = removed;
+        this.inserted = inserted;
+        this.external = external;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public CharSequence getRemoved() {
+        return removed;
+    }
+
+    public CharSequence getInserted() {
+        return inserted;
+    }
+
+    public int getRemovedLength() {
+        return removed.length();
+    }
+
+    public int getInsertedLength() {
+        return inserted.length();
+    }
+
+    public boolean isExternal() {
+        return external;
+    }
+
+}
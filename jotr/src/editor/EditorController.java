@@ -1,12 +1,22 @@
 package editor;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.binding.Bindings;
+import javafx.beans.binding.BooleanBinding;
+import javafx.beans.binding.StringBinding;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
 import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
 import javafx.scene.input.KeyCodeCombination;
@@ -14,10 +24,16 @@ import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.HBox;
 import javafx.scene.text.Font;
 import javafx.stage.*;
+import javafx.util.Duration;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 
@@ -25,16 +41,58 @@ import static javafx.scene.input.KeyCode.*;
 
 public class EditorController {
 
+    // tabs beyond the ones used most recently are unloaded
+    private static final int LOADED_TABS = 3;
+
+    // at most this many bytes of a binary file are copied
+    private static final int HEX_COPY_LIMIT = 1 << 20;
+
     private final EditorModel model;
 
+    private final Stage window;
+
+    private final Runnable onNewWindow;
+
+    @FXML
+    private TabPane tabPane;
+
+    @FXML
+    private TextView textView;
+
+    // takes the text view's place for a binary file
+    @FXML
+    private HexView hexView;
+
+    // what Find last looked for in a binary file, for F3
+    private byte[] hexPattern;
+
+    // takes the text view's place for a delimited file shown as a table
     @FXML
-    private TextArea textArea;
+    private CsvView csvView;
+
+    // the selected tab, its file and its undo history
+    private DocumentTab currentTab;
 
     private TextFile currentTextFile;
 
+    private UndoManager undoManager;
+
+    // most recently shown first
+    private final Deque<DocumentTab> recentTabs = new ArrayDeque<>();
+
     private FileChooser fileChooser;
 
-    private Stage finderStage;
+    private Stage finderStage, fileFinderStage;
+
+    private final SearchEngine searchEngine = new SearchEngine();
+
+    private final MatchIndex matchIndex = new MatchIndex();
+
+    // colours the shown document by a grammar picked for its file
+    private final SyntaxHighlighter syntaxHighlighter = new SyntaxHighlighter();
+
+    // the last finder opened, it keeps the query and options for F3
+    private FinderController finderController;
 
     @FXML
     private HBox statusBar;
@@ -48,35 +106,100 @@ public class EditorController {
     @FXML
     private Label zoomLabel;
 
+    @FXML
+    private Label lineSeparatorLabel;
+
+    @FXML
+    private Label encodingLabel;
+
+    @FXML
+    private ProgressBar saveProgress;
+
+    // what the editor has been spending its time on, refreshed while it is shown
+    @FXML
+    private Label metricsLabel;
+
+    private final Timeline metricsRefresh = new Timeline(new KeyFrame(Duration.seconds(1), event -> updateMetrics()));
+
+    // when the pulse being laid out started, and a zoom waiting for it to finish
+    private long pulseStart;
+
+    private Metrics.Timing zoomTiming;
+
+    private int pendingSaves;
+
     private SimpleIntegerProperty zoom;
 
+    private StringBinding caretText;
+
+    private final SimpleStringProperty title = new SimpleStringProperty(this, "title");
+
+    // false for the run that only lists the classes startup loads, it leaves the session alone
+    private boolean remembersSession = true;
+
+    // the files the window had open when it closed, for EditorMain to remember
+    private List<Path> sessionFiles;
+
+    @FXML
+    private CheckMenuItem followCmd, metricsCmd, tableCmd, wordWrapCmd;
+
     @FXML
     private MenuItem
-            newCmd, newWindowCmd, openCmd, saveCmd, saveAsCmd, exitCmd,
-            undoCmd, cutCmd, copyCmd, pasteCmd, deleteCmd,
-            findCmd, findNextCmd, findPreviousCmd, replaceCmd, goToCmd, selectAllCmd,
+            newCmd, newWindowCmd, openCmd, saveCmd, saveAsCmd, closeTabCmd, exitCmd,
+            undoCmd, redoCmd, cutCmd, copyCmd, pasteCmd, deleteCmd,
+            findCmd, findNextCmd, findPreviousCmd, replaceCmd, findInFilesCmd, goToCmd, selectAllCmd,
             zoomInCmd, zoomOutCmd, restoreZoomCmd;
 
 
     // Constructor
 
-    public EditorController(EditorModel model) {
+    public EditorController(EditorModel model, Stage window, Runnable onNewWindow) {
         this.model = model;
+        this.window = window;
+        this.onNewWindow = onNewWindow;
+    }
+
+
+    public ReadOnlyStringProperty titleProperty() {
+        return title;
     }
 
 
     // Initializer
 
     public void initialize() {
-        // initialize current file to null values
-        currentTextFile = new TextFile(null, Collections.singletonList(""));
+        //line and column come from the document's line index, so this stays cheap in huge files
+        caretText = Bindings.createStringBinding(() -> {
+            if (hexView.isVisible())
+                return String.format("Offset 0x%X (%,d)", hexView.getCaretPosition(), hexView.getCaretPosition());
+            if (csvView.isVisible())
+                return csvView.getSelectedRow() < 0 ? "" : String.format("Row %,d", csvView.getSelectedRow() + 1);
+            Document document = textView.getDocument();
+            int position = textView.getCaretPosition();
+            int line = document.getLineOfOffset(position);
+            return String.format("Ln %d, Col %d", line + 1, position - document.getLineStart(line) + 1);
+        }, textView.caretPositionProperty(), hexView.caretPositionProperty(), hexView.visibleProperty(),
+                csvView.selectedRowProperty(), csvView.visibleProperty());
+        caretLabel.textProperty().bind(caretText);
+        hexView.fontProperty().bind(textView.fontProperty());
+        csvView.fontProperty().bind(textView.fontProperty());
+
+        //the tabs only hold documents, the one text view shows the selected tab's
+        tabPane.getSelectionModel().selectedItemProperty().addListener((observable, oldTab, newTab) -> {
+            if (newTab != null)
+                showTab((DocumentTab) newTab.getUserData());
+        });
+        textView.setSyntaxHighlighter(syntaxHighlighter);
+        // typing after the caret was moved, even back to where it was, is an undo step of its own
+        textView.setOnCaretMoved(() -> {
+            if (undoManager != null)
+                undoManager.breakCoalescing();
+        });
+        addTab(newTextFile());
 
         //initialize file chooser to keep track of last location used
         fileChooser = new FileChooser();
 
-        //TODO: Find a way to get Line and Column
-        caretLabel.textProperty().bind(textArea.caretPositionProperty().asString("Pos %d :("));
-
         //initialize and set limits to zoom property
         zoom = new SimpleIntegerProperty(this, "zoom") {
             @Override
@@ -86,9 +209,47 @@ public class EditorController {
             }
         };
 
-        //set zoom value to 100 and bind it to zoomLabel
-        zoom.setValue(100);
+        //the text view has no context menu of its own
+        ContextMenu contextMenu = new ContextMenu(
+                contextMenuItem("Undo", this::onUndo),
+                contextMenuItem("Redo", this::onRedo),
+                new SeparatorMenuItem(),
+                contextMenuItem("Cut", this::onCut),
+                contextMenuItem("Copy", this::onCopy),
+                contextMenuItem("Paste", this::onPaste),
+                contextMenuItem("Delete", this::onDelete),
+                new SeparatorMenuItem(),
+                contextMenuItem("Select All", this::onSelectAll));
+        textView.setOnContextMenuRequested(event ->
+                contextMenu.show(textView, event.getScreenX(), event.getScreenY()));
+
+        //the save progress only takes up room while a save is running
+        saveProgress.managedProperty().bind(saveProgress.visibleProperty());
+
+        //every pulse is timed, a zoom ends with the first one laid out in the new font
+        metricsLabel.managedProperty().bind(metricsLabel.visibleProperty());
+        metricsRefresh.setCycleCount(Animation.INDEFINITE);
+        tabPane.sceneProperty().addListener((observable, oldScene, scene) -> {
+            if (scene == null)
+                return;
+            scene.addPreLayoutPulseListener(() -> pulseStart = System.nanoTime());
+            scene.addPostLayoutPulseListener(() -> {
+                Metrics.pulse(System.nanoTime() - pulseStart);
+                if (zoomTiming != null) {
+                    zoomTiming.end();
+                    zoomTiming = null;
+                }
+            });
+        });
+
+        //zoom and word wrap are as the last session left them, zoom is shown in zoomLabel
+        SessionStore session = model.getSession();
+        zoom.setValue(session.getInt("zoom", 100));
+        if (zoom.intValue() != 100)
+            applyZoom();
         zoomLabel.textProperty().bind(zoom.asString("%d%%"));
+        textView.setWrapText(session.getBoolean("wordWrap", false));
+        wordWrapCmd.setSelected(textView.isWrapText());
 
         //----------Key Combinations----------//
 
@@ -98,9 +259,11 @@ public class EditorController {
         openCmd.setAccelerator(new KeyCodeCombination(O, KeyCombination.CONTROL_DOWN));
         saveCmd.setAccelerator(new KeyCodeCombination(S, KeyCombination.CONTROL_DOWN));
         saveAsCmd.setAccelerator(new KeyCodeCombination(S, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
+        closeTabCmd.setAccelerator(new KeyCodeCombination(W, KeyCombination.CONTROL_DOWN));
         exitCmd.setAccelerator(new KeyCodeCombination(E, KeyCombination.CONTROL_DOWN));
         //edit menu
         undoCmd.setAccelerator(new KeyCodeCombination(Z, KeyCombination.CONTROL_DOWN));
+        redoCmd.setAccelerator(new KeyCodeCombination(Y, KeyCombination.CONTROL_DOWN));
         cutCmd.setAccelerator(new KeyCodeCombination(X, KeyCombination.CONTROL_DOWN));
         copyCmd.setAccelerator(new KeyCodeCombination(C, KeyCombination.CONTROL_DOWN));
         pasteCmd.setAccelerator(new KeyCodeCombination(V, KeyCombination.CONTROL_DOWN));
@@ -109,12 +272,21 @@ public class EditorController {
         findNextCmd.setAccelerator(new KeyCodeCombination(F3));
         findPreviousCmd.setAccelerator(new KeyCodeCombination(F3, KeyCombination.SHIFT_DOWN));
         replaceCmd.setAccelerator(new KeyCodeCombination(H, KeyCombination.CONTROL_DOWN));
+        findInFilesCmd.setAccelerator(new KeyCodeCombination(F, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
         goToCmd.setAccelerator(new KeyCodeCombination(G, KeyCombination.CONTROL_DOWN));
         selectAllCmd.setAccelerator(new KeyCodeCombination(A, KeyCombination.CONTROL_DOWN));
         //zoom menu
         zoomInCmd.setAccelerator(new KeyCodeCombination(ADD, KeyCombination.CONTROL_DOWN));
         zoomOutCmd.setAccelerator(new KeyCodeCombination(SUBTRACT, KeyCombination.CONTROL_DOWN));
         restoreZoomCmd.setAccelerator(new KeyCodeCombination(DIGIT0, KeyCombination.CONTROL_DOWN));
+        metricsCmd.setAccelerator(new KeyCodeCombination(P, KeyCombination.CONTROL_DOWN, KeyCombination.SHIFT_DOWN));
+    }
+
+
+    private static MenuItem contextMenuItem(String text, Runnable action) {
+        MenuItem item = new MenuItem(text);
+        item.setOnAction(event -> action.run());
+        return item;
     }
 
 
@@ -124,97 +296,374 @@ public class EditorController {
 
     @FXML
     private void onNew() {
-        if (hasNoTextAreaChanges() || savePrompt()) {
-            textArea.clear();
-            //reinitialize current text file
-            currentTextFile = new TextFile(null, Collections.singletonList(""));
-        }
+        addTab(newTextFile());
     }
 
     @FXML
     private void onNewWindow() {
-        //TODO: Find a way to make it a separate process
-        Platform.runLater(() -> {
-            try {
-                new EditorMain().start(new Stage());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+        onNewWindow.run();
     }
 
     @FXML
     private void onOpen() {
-        if (hasNoTextAreaChanges() || savePrompt()) {
-            fileChooser.getExtensionFilters().addAll(
-                    new FileChooser.ExtensionFilter("Text Documents", "*.txt"),
-                    new FileChooser.ExtensionFilter("All Files", "*.*"));
-            File file = fileChooser.showOpenDialog(null);
-            if (file != null) {
-                IOResult<TextFile> io = model.open(file.toPath());
-
-                if (io.isOk() && io.hasData()) {
-                    currentTextFile = io.getData();
-                    textArea.clear();
-                    currentTextFile.getContent().forEach(line -> textArea.appendText(line + "\n"));
-                    fileChooser.setInitialDirectory(currentTextFile.getFile().getParent().toFile());
-                } else {
-                    System.out.println("Failed");
-                }
-            }
+        fileChooser.getExtensionFilters().setAll(
+                new FileChooser.ExtensionFilter("Text Documents", "*.txt"),
+                new FileChooser.ExtensionFilter("All Files", "*.*"));
+        File file = fileChooser.showOpenDialog(window);
+        if (file != null && openFile(file.toPath()))
+            fileChooser.setInitialDirectory(currentTextFile.getFile().getParent().toFile());
+    }
+
+    private boolean openFile(Path file) {
+        // the failure is already recorded by the open's timing
+        IOResult<TextFile> io = model.open(file);
+        if (!io.isOk() || !io.hasData()) {
+            errorAlert("Could not open " + file.getFileName(), io.getError());
+            return false;
+        }
+        //the file takes the place of an untitled tab nobody has typed in
+        DocumentTab blank = currentTab.isBlank() ? currentTab : null;
+        addTab(io.getData());
+        if (blank != null)
+            removeTab(blank);
+
+        //the caret goes back to where it was when the file was last closed
+        SessionStore.FileState state = model.getSession().getFileState(file);
+        if (state != null) {
+            DocumentTab tab = currentTab;
+            tab.setFileState(state);
+            whenLoaded(tab, () -> tab.restoreCaret(textView));
         }
+        return true;
     }
 
     @FXML
-    private boolean onSave() {
-        boolean fileWasSaved = true;
-        try {
-            currentTextFile = new TextFile(currentTextFile.getFile(), getTextAreaAsList());
-            model.save(currentTextFile);
-        } catch (Exception e) {
-            fileWasSaved = false;
-            onSaveAs();
-        }
-        return fileWasSaved;
+    private void onSave() {
+        save(() -> {});
     }
 
     @FXML
-    private boolean onSaveAs() {
-        boolean fileWasChosen = true;
-        try {
-            fileChooser.getExtensionFilters().addAll(
-                    new FileChooser.ExtensionFilter("Text Documents", "*.txt"),
-                    new FileChooser.ExtensionFilter("All Files", "*.*"));
-            File file = fileChooser.showSaveDialog(null);
+    private void onSaveAs() {
+        saveAs(() -> {});
+    }
+
+    @FXML
+    private void onCloseTab() {
+        closeTab(currentTab);
+    }
 
-            currentTextFile = new TextFile(file.toPath(), getTextAreaAsList());
-            model.save(currentTextFile);
+    // closes the window once every tab's unsaved changes are saved or discarded,
+    // the application ends with its last window
+    @FXML
+    public void onExit() {
+        whenChangesHandled(documentTabs().iterator(), () -> {
+            rememberSession();
+            if (finderStage != null)
+                finderStage.close();
+            if (fileFinderStage != null)
+                fileFinderStage.close();
+            searchEngine.cancel();
+            metricsRefresh.stop();
+            matchIndex.setDocument(null);
+            syntaxHighlighter.setDocument(null, null);
+            hexView.setFile(null);
+            csvView.setTable(null);
+            for (DocumentTab tab : documentTabs())
+                tab.dispose();
+            window.close();
+        });
+    }
 
-            fileChooser.setInitialDirectory(currentTextFile.getFile().getParent().toFile());
-        } catch (NullPointerException e) {
+    // the files of the window for the next start, and where the caret was in each
+    private void rememberSession() {
+        if (!remembersSession)
+            return;
+        List<Path> files = new ArrayList<>();
+        for (DocumentTab tab : documentTabs()) {
+            if (tab.getFile() == null)
+                continue;
+            files.add(tab.getFile());
+            rememberFileState(tab);
+        }
+        sessionFiles = files;
+    }
+
+    // null until the window closes, and for a window that leaves the session alone
+    List<Path> getSessionFiles() {
+        return sessionFiles;
+    }
+
+    private void rememberFileState(DocumentTab tab) {
+        if (tab.getFile() == null || !remembersSession)
+            return;
+        if (tab == currentTab)
+            tab.saveCaret(textView);
+        model.getSession().putFileState(tab.getFile(), tab.getFileState());
+    }
+
+    // Saving happens in the background, so whatever comes after a save
+    // (closing, opening another file...) is passed along as onSaved and
+    // only runs once the file has been written.
+
+    private void save(Runnable onSaved) {
+        if (currentTextFile.isViewOnly())
+            return;
+        if (currentTextFile.getFile() == null) {
+            saveAs(onSaved);
+            return;
+        }
+
+        TextFile textFile = currentTextFile;
+        if (textFile.isLossy() && !textFile.isLossAccepted()) {
+            if (!lossySavePrompt(textFile))
+                return;
+            textFile.acceptLoss();
+        }
+        pendingSaves++;
+        saveProgress.setProgress(0);
+        saveProgress.setVisible(true);
+        model.save(textFile, io -> {
+            saveProgress.setProgress(io.getProgress());
+            if (!io.isDone())
+                return;
+
+            saveProgress.setVisible(--pendingSaves > 0);
+            if (io.isOk())
+                onSaved.run();
+            else
+                saveFailedAlert(textFile, io.getError());
+        });
+    }
+
+    private void saveAs(Runnable onSaved) {
+        fileChooser.getExtensionFilters().setAll(
+                new FileChooser.ExtensionFilter("Text Documents", "*.txt"),
+                new FileChooser.ExtensionFilter("All Files", "*.*"));
+        File file = fileChooser.showSaveDialog(window);
+        if (file == null) {
             System.out.println("No file was selected!");
-            fileWasChosen = false;
+            return;
         }
-        return fileWasChosen;
+
+        // the new file only matches the document once the save is done
+        TextFile textFile = new TextFile(file.toPath(), currentTextFile.getDocument(), currentTextFile.getFormat());
+        textFile.markModified();
+        model.journal(textFile);
+        currentTab.setTextFile(textFile);
+        showTab(currentTab);
+        fileChooser.setInitialDirectory(file.getParentFile());
+        save(onSaved);
     }
 
-    @FXML
-    public void onExit() {
-        if (hasNoTextAreaChanges() || savePrompt())
-            model.exit();
+    // a file whose bytes didn't all decode would be saved with U+FFFD in their place
+    private boolean lossySavePrompt(TextFile textFile) {
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("Jotr");
+        alert.setHeaderText("Save " + textFile.getFileName().getValue() + " anyway?");
+        alert.setContentText("Some of its bytes aren't valid " + textFile.getFormat().getEncodingName()
+                + " and show as \uFFFD. Saving writes \uFFFD in their place, so those bytes are lost.");
+        Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        alert.initOwner(window);
+        Optional<ButtonType> result = alert.showAndWait();
+        return result.isPresent() && result.get() == ButtonType.OK;
+    }
+
+    private void saveFailedAlert(TextFile textFile, Exception error) {
+        errorAlert("Could not save " + textFile.getFileName().getValue(), error);
+    }
+
+    private void errorAlert(String header, Exception error) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Jotr");
+        alert.setHeaderText(header);
+        alert.setContentText(String.valueOf(error));
+        Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        stage.show();
+    }
+
+    // Tabs
+
+    private void addTab(TextFile textFile) {
+        DocumentTab tab = new DocumentTab(textFile);
+        tab.getTab().setOnCloseRequest(event -> {
+            event.consume();
+            closeTab(tab);
+        });
+        tabPane.getTabs().add(tab.getTab());
+        tabPane.getSelectionModel().select(tab.getTab());
+    }
+
+    private TextFile newTextFile() {
+        TextFile textFile = new TextFile(null, new PieceTable(""));
+        model.journal(textFile);
+        return textFile;
+    }
+
+    // documents recovered from their journals, they take the place of an untitled tab nobody has typed in
+    public void addRecovered(List<TextFile> textFiles) {
+        if (textFiles.isEmpty())
+            return;
+        DocumentTab blank = currentTab != null && currentTab.isBlank() ? currentTab : null;
+        for (TextFile textFile : textFiles)
+            addTab(textFile);
+        if (blank != null)
+            removeTab(blank);
+    }
+
+    // Files given on the command line or handed over by a later launch; one
+    // that is open already has its tab selected. The window comes to the front.
+    public void openFiles(List<Path> files) {
+        for (Path file : files) {
+            DocumentTab tab = findTab(file);
+            if (tab != null)
+                tabPane.getSelectionModel().select(tab.getTab());
+            else
+                openFile(file);
+        }
+        window.setIconified(false);
+        window.toFront();
+        window.requestFocus();
+    }
+
+    private DocumentTab findTab(Path file) {
+        for (DocumentTab tab : documentTabs())
+            if (tab.getFile() != null && tab.getFile().equals(file))
+                return tab;
+        return null;
+    }
+
+    private void closeTab(DocumentTab tab) {
+        tabPane.getSelectionModel().select(tab.getTab());
+        whenChangesHandled(() -> removeTab(tab));
+    }
+
+    // a window always has a tab, closing the last one leaves an empty one behind
+    private void removeTab(DocumentTab tab) {
+        rememberFileState(tab);
+        if (tabPane.getTabs().size() == 1)
+            addTab(newTextFile());
+        if (tab == currentTab)
+            currentTab = null;
+        recentTabs.remove(tab);
+        tab.dispose();
+        tabPane.getTabs().remove(tab.getTab());
+    }
+
+    private List<DocumentTab> documentTabs() {
+        List<DocumentTab> tabs = new ArrayList<>();
+        for (Tab tab : tabPane.getTabs())
+            tabs.add((DocumentTab) tab.getUserData());
+        return tabs;
+    }
+
+    // Shows the tab's document in the text view, reading it back from disk
+    // first if it was unloaded. Only the last few tabs shown stay loaded.
+    private void showTab(DocumentTab tab) {
+        if (currentTab != null && currentTab != tab)
+            currentTab.saveCaret(textView);
+        currentTab = tab;
+        if (!tab.load(model)) {
+            loadFailedAlert(tab);
+            // not while the tab pane is still changing its selection
+            Platform.runLater(() -> removeTab(tab));
+            return;
+        }
+
+        TextFile textFile = tab.getTextFile();
+        currentTextFile = textFile;
+        undoManager = tab.getUndoManager();
+
+        // "*name - Memobook" while there are unsaved changes
+        title.bind(Bindings.when(textFile.modifiedProperty()).then("*").otherwise("")
+                .concat(textFile.getFileName()).concat(" - Memobook"));
+
+        textView.setLineSeparator(textFile.getFormat().getLineSeparator());
+        lineSeparatorLabel.setText(textFile.isBinary() ? "" : textFile.getFormat().getLineSeparatorName());
+        encodingLabel.setText(textFile.isBinary() ? "Binary" : textFile.getFormat().getEncodingName());
+
+        // a binary file is only viewed, as hex, and a delimited one can be viewed as a table
+        boolean binary = textFile.isBinary();
+        boolean viewOnly = textFile.isViewOnly();
+        textView.setVisible(!viewOnly);
+        textView.setManaged(!viewOnly);
+        hexView.setVisible(binary);
+        hexView.setManaged(binary);
+        csvView.setVisible(textFile.isTable());
+        csvView.setManaged(textFile.isTable());
+        PagedFile bytes = binary ? textFile.getBytes() : null;
+        if (hexView.getFile() != bytes)
+            hexView.setFile(bytes);
+        if (csvView.getTable() != textFile.getTable())
+            csvView.setTable(textFile.getTable());
+
+        // a file that is still loading can't be edited or saved yet
+        BooleanBinding readOnly = textFile.loadingProperty().or(new SimpleBooleanProperty(viewOnly));
+        textView.editableProperty().bind(readOnly.not());
+        saveCmd.disableProperty().bind(readOnly);
+        saveAsCmd.disableProperty().bind(readOnly);
+        replaceCmd.setDisable(viewOnly);
+        undoCmd.disableProperty().bind(undoManager.canUndoProperty().not());
+        redoCmd.disableProperty().bind(undoManager.canRedoProperty().not());
+        followCmd.setSelected(tab.isFollowing());
+        followCmd.setDisable(textFile.getFile() == null || viewOnly);
+        tableCmd.setSelected(textFile.isTable());
+        tableCmd.setDisable(CsvTable.separatorFor(textFile.getFile()) == 0);
+
+        Document document = textFile.getDocument();
+        if (textView.getDocument() != document) {
+            textView.setDocument(document);
+            matchIndex.setDocument(document);
+            syntaxHighlighter.setDocument(document, Grammar.forFile(textFile.getFile(), document));
+            tab.restoreCaret(textView);
+        }
+        caretText.invalidate();
+
+        recentTabs.remove(tab);
+        recentTabs.push(tab);
+        while (recentTabs.size() > LOADED_TABS)
+            recentTabs.removeLast().unload();
+    }
+
+    private void loadFailedAlert(DocumentTab tab) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle("Jotr");
+        alert.setHeaderText("Could not read " + tab.getFileName() + " again");
+        Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        alert.initOwner(window);
+        alert.show();
     }
 
     // Save Prompt
 
-    private List<String> getTextAreaAsList() {
-        return Arrays.asList(textArea.getText().split("\n"));
+    private boolean hasNoUnsavedChanges() {
+        return !currentTextFile.isModified();
     }
 
-    private boolean hasNoTextAreaChanges() {
-        return getTextAreaAsList().equals(currentTextFile.getContent());
+    // runs then once any unsaved changes are saved or discarded
+    private void whenChangesHandled(Runnable then) {
+        if (hasNoUnsavedChanges())
+            then.run();
+        else
+            savePrompt(then);
     }
 
-    private boolean savePrompt() {
+    // the same for every tab in turn, selecting each one that has unsaved changes
+    private void whenChangesHandled(Iterator<DocumentTab> tabs, Runnable then) {
+        while (tabs.hasNext()) {
+            DocumentTab tab = tabs.next();
+            if (tab.isModified()) {
+                tabPane.getSelectionModel().select(tab.getTab());
+                savePrompt(() -> whenChangesHandled(tabs, then));
+                return;
+            }
+        }
+        then.run();
+    }
+
+    private void savePrompt(Runnable then) {
         // create alert
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
         alert.setTitle("Jotr");
@@ -229,17 +678,17 @@ public class EditorController {
 
         // change window icon and show alert
         Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
-        stage.getIcons().add(new Image(getClass().getResourceAsStream("resources/icon.png")));
-        alert.initOwner(stage.getOwner());
+        stage.getIcons().add(EditorMain.icon());
+        alert.initOwner(window);
         Optional<ButtonType> result = alert.showAndWait();
 
         // interpret user choice
-        if (result.isPresent() && result.get().equals(alert.getButtonTypes().get(0))) {
-                if (currentTextFile.getFile() == null)
-                    return onSaveAs();
-                else return onSave();
+        if (result.isPresent() && result.get().equals(alert.getButtonTypes().get(0)))
+            save(then);
+        else if (result.isPresent() && result.get().equals(alert.getButtonTypes().get(1))) {
+            currentTextFile.discardChanges();
+            then.run();
         }
-        return result.isPresent() && result.get().equals(alert.getButtonTypes().get(1));
     }
 
 
@@ -249,7 +698,22 @@ public class EditorController {
 
     @FXML
     private void onUndo() {
-        textArea.undo();
+        if (!textView.isEditable())
+            return;
+        selectEdit(undoManager.undo());
+    }
+
+    @FXML
+    private void onRedo() {
+        if (!textView.isEditable())
+            return;
+        selectEdit(undoManager.redo());
+    }
+
+    // selects the text an undo or redo put back
+    private void selectEdit(Edit edit) {
+        if (edit != null)
+            textView.selectRange(edit.getOffset(), edit.getOffset() + edit.getInsertedLength());
     }
 
     @FXML
@@ -257,57 +721,347 @@ public class EditorController {
         final Clipboard clipboard = Clipboard.getSystemClipboard();
         final ClipboardContent content = new ClipboardContent();
 
-        content.putString(textArea.getSelectedText());
+        // the bytes selected in a binary file go as hex, and the row selected in a table as a line
+        if (currentTextFile.isBinary())
+            content.putString(hexView.getSelectedHex(HEX_COPY_LIMIT));
+        else if (currentTextFile.isTable())
+            content.putString(csvView.getSelectedText());
+        else
+            content.putString(textView.getSelectedText().toString());
         clipboard.setContent(content);
     }
 
     @FXML
     private void onCut() {
         onCopy();
-        textArea.deleteText(textArea.getSelection().getStart(), textArea.getSelection().getEnd());
+        onDelete();
     }
 
     @FXML
     private void onPaste() {
-        textArea.insertText(textArea.getCaretPosition(), Clipboard.getSystemClipboard().getString());
+        String clipboardText = Clipboard.getSystemClipboard().getString();
+        if (!textView.isEditable() || clipboardText == null)
+            return;
+        if (clipboardText.length() <= ChunkedInsert.CHUNK_SIZE) {
+            textView.replaceSelection(currentTextFile.getFormat().convertLineSeparators(clipboardText));
+            return;
+        }
+
+        // too long to put in at once without the window freezing; the caret
+        // goes to the end of the selection so that it stays after the text
+        IndexRange selection = textView.getSelection();
+        textView.positionCaret(selection.getEnd());
+        DocumentTab tab = currentTab;
+        tab.insertInChunks(selection.getStart(), selection.getEnd(), clipboardText, () -> {
+            if (tab == currentTab)
+                textView.scrollToCaret();
+        });
     }
 
     @FXML
     private void onDelete() {
-        textArea.deleteText(textArea.getSelection().getStart(), textArea.getSelection().getEnd());
+        if (textView.isEditable())
+            textView.replaceSelection("");
     }
 
     @FXML
     private void onFind() throws Exception {
-        openFinder(FinderMode.FIND);
+        if (currentTextFile.isBinary())
+            findBytes();
+        else if (currentTextFile.isTable())
+            csvView.focusFilter();
+        else
+            openFinder(FinderMode.FIND);
     }
 
-    //TODO: close find window when replace is opened
+    @FXML
+    private void onFindNext() throws Exception {
+        if (currentTextFile.isBinary() && hexPattern != null)
+            hexView.find(hexPattern, false, this::bytesNotFoundAlert);
+        else if (finderController == null || currentTextFile.isViewOnly())
+            onFind();
+        else
+            finderController.findNext();
+    }
+
+    @FXML
+    private void onFindPrevious() throws Exception {
+        if (currentTextFile.isBinary() && hexPattern != null)
+            hexView.find(hexPattern, true, this::bytesNotFoundAlert);
+        else if (finderController == null || currentTextFile.isViewOnly())
+            onFind();
+        else
+            finderController.findPrevious();
+    }
 
     @FXML
     private void onReplace() throws Exception {
-        if (finderStage != null) finderStage.close();
         openFinder(FinderMode.REPLACE);
     }
 
-    private void openFinder(FinderMode mode) throws Exception {
-        if (finderStage != null) finderStage.close();
-        finderStage = new Stage();
+    @FXML
+    private void onFindInFiles() throws Exception {
+        openFinder(FinderMode.FIND_IN_FILES);
+    }
+
+    // Finders are loaded the first time they are opened and only shown again
+    // after that; Find and Replace are one finder that switches between them.
+    // Opening one closes the other.
+    private void openFinder(FinderMode mode) throws IOException {
+        Metrics.Timing timing = Metrics.FINDER.start(mode);
+        Stage stage;
+        if (mode == FinderMode.FIND_IN_FILES) {
+            if (finderStage != null)
+                finderStage.close();
+            if (fileFinderStage == null)
+                fileFinderStage = loadFinder(mode);
+            stage = fileFinderStage;
+            stage.setTitle("Find in Files");
+        } else {
+            if (fileFinderStage != null)
+                fileFinderStage.close();
+            if (finderStage == null)
+                finderStage = loadFinder(mode);
+            stage = finderStage;
+            stage.setTitle(mode == FinderMode.FIND ? "Find" : "Replace");
+            finderController.setMode(mode);
+            stage.sizeToScene();
+        }
+        stage.show();
+        stage.toFront();
+        timing.end();
+    }
+
+    private Stage loadFinder(FinderMode mode) throws IOException {
+        Stage stage = new Stage();
         FXMLLoader loader = new FXMLLoader(getClass().getResource("finderUI.fxml"));
-        loader.setControllerFactory(t -> new FinderController(finderStage, textArea, mode));
-        finderStage.setTitle(mode == FinderMode.FIND ? "Find" : "Replace");
-        finderStage.getIcons().add(new Image(getClass().getResourceAsStream("resources/icon.png")));
-        finderStage.setScene(new Scene(loader.load()));
-        finderStage.resizableProperty().setValue(false);
-        finderStage.initOwner(EditorMain.getPrimaryWindow());
-        finderStage.initStyle(StageStyle.UNIFIED);
-        finderStage.initModality(Modality.NONE);
-        finderStage.show();
+        loader.setControllerFactory(t -> {
+            if (mode == FinderMode.FIND_IN_FILES)
+                return new FinderController(stage, textView, searchEngine, searchDirectory(), this::showHit);
+            finderController = new FinderController(stage, textView, mode, searchEngine, matchIndex);
+            return finderController;
+        });
+        stage.getIcons().add(EditorMain.icon());
+        stage.setScene(new Scene(loader.load()));
+        //find and replace start with the last session's query and options, and keep them each time they close
+        if (mode != FinderMode.FIND_IN_FILES) {
+            FinderController controller = finderController;
+            controller.restoreOptions(model.getSession());
+            stage.addEventHandler(WindowEvent.WINDOW_HIDDEN, event -> {
+                if (remembersSession)
+                    controller.saveOptions(model.getSession());
+            });
+        }
+        stage.resizableProperty().setValue(false);
+        stage.initOwner(window);
+        stage.initStyle(StageStyle.UNIFIED);
+        stage.initModality(Modality.NONE);
+        return stage;
+    }
+
+    // what a run that lists the classes startup loads does once the window is
+    // up: opens the finder, which most sessions soon do, and closes again
+    void closeAfterStartup() {
+        remembersSession = false;
+        try {
+            openFinder(FinderMode.FIND);
+        } catch (IOException e) {
+            Metrics.failed("Open Finder", e);
+        }
+        Platform.runLater(this::onExit);
+    }
+
+    // the folder of the file being edited, or the home folder
+    private Path searchDirectory() {
+        Path file = currentTextFile.getFile();
+        if (file != null && file.toAbsolutePath().getParent() != null)
+            return file.toAbsolutePath().getParent();
+        return Paths.get(System.getProperty("user.home"));
+    }
+
+    // opens the file of a find in files hit, or goes to its tab, and selects the match
+    private void showHit(FileSearch.Hit hit) {
+        DocumentTab tab = findTab(hit.getFile());
+        if (tab != null)
+            tabPane.getSelectionModel().select(tab.getTab());
+        else if (!openFile(hit.getFile()))
+            return;
+        selectHit(currentTab, hit);
+        window.toFront();
+    }
+
+    // a large file is still loading when it opens, the hit is selected once its line is there
+    private void selectHit(DocumentTab tab, FileSearch.Hit hit) {
+        whenLoaded(tab, () -> {
+            // the file may have changed since it was searched
+            Document document = tab.getTextFile().getDocument();
+            if (hit.getLine() >= document.getLineCount())
+                return;
+            int start = Math.min(document.getLineStart(hit.getLine()) + hit.getColumn(),
+                    document.getLineEnd(hit.getLine()));
+            textView.selectRange(start, Math.min(start + hit.getLength(), document.length()));
+        });
+    }
+
+    // runs action once the tab's file is all in, if the tab is still the one shown by then
+    private void whenLoaded(DocumentTab tab, Runnable action) {
+        TextFile textFile = tab.getTextFile();
+        if (textFile == null || tab != currentTab)
+            return;
+        if (textFile.isLoading()) {
+            textFile.loadingProperty().addListener(new InvalidationListener() {
+                @Override
+                public void invalidated(Observable observable) {
+                    if (textFile.isLoading())
+                        return;
+                    textFile.loadingProperty().removeListener(this);
+                    whenLoaded(tab, action);
+                }
+            });
+            return;
+        }
+        action.run();
+    }
+
+    // BINARY FILES
+
+    // asks for the bytes to look for and finds the next place they are in the file
+    private void findBytes() {
+        TextInputDialog dialog = new TextInputDialog(hexPattern == null ? "" : hexText(hexPattern));
+        dialog.setTitle("Find Bytes");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Hex bytes, or \"text\":");
+        Stage stage = (Stage) dialog.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        dialog.initOwner(window);
+
+        Optional<String> result = dialog.showAndWait();
+        if (result.isEmpty())
+            return;
+        byte[] pattern = HexView.parsePattern(result.get());
+        if (pattern == null || pattern.length == 0) {
+            binaryAlert("Find Bytes", "Type pairs of hex digits, such as 4D 5A, or text in quotes");
+            findBytes();
+            return;
+        }
+        hexPattern = pattern;
+        hexView.find(pattern, false, this::bytesNotFoundAlert);
+    }
+
+    private static String hexText(byte[] bytes) {
+        StringBuilder text = new StringBuilder();
+        for (byte b : bytes)
+            text.append(text.length() == 0 ? "" : " ").append(String.format("%02X", b));
+        return text.toString();
+    }
+
+    private void bytesNotFoundAlert() {
+        binaryAlert("Find Bytes", "Cannot find " + hexText(hexPattern));
+    }
+
+    // moves to an offset in a binary file, in hex with 0x in front or else decimal
+    private void goToOffset() {
+        TextInputDialog dialog = new TextInputDialog(String.format("0x%X", hexView.getCaretPosition()));
+        dialog.setTitle("Go To Offset");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Offset:");
+        Stage stage = (Stage) dialog.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        dialog.initOwner(window);
+
+        Optional<String> result = dialog.showAndWait();
+        if (result.isEmpty())
+            return;
+        try {
+            String text = result.get().trim().replace("_", "").replace(",", "");
+            long offset = text.startsWith("0x") || text.startsWith("0X")
+                    ? Long.parseLong(text.substring(2), 16) : Long.parseLong(text);
+            if (offset < 0 || offset >= currentTextFile.getBytes().size())
+                throw new NumberFormatException();
+            hexView.seek(offset);
+        } catch (NumberFormatException e) {
+            binaryAlert("Go To Offset", "The offset is beyond the end of the file");
+            goToOffset();
+        }
+    }
+
+    private void binaryAlert(String title, String message) {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.initOwner(window);
+        alert.showAndWait();
+    }
+
+    // TABLES
+
+    // moves to a row of the ones a table shows, counted as the view has them sorted and filtered
+    private void goToRow() {
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Go To Row");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Row:");
+        Stage stage = (Stage) dialog.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        dialog.initOwner(window);
+
+        Optional<String> result = dialog.showAndWait();
+        if (result.isEmpty())
+            return;
+        try {
+            long row = Long.parseLong(result.get().trim().replace("_", "").replace(",", ""));
+            if (row < 1 || row > csvView.getShownRowCount())
+                throw new NumberFormatException();
+            csvView.selectShownRow((int) (row - 1));
+        } catch (NumberFormatException e) {
+            binaryAlert("Go To Row", "The row is beyond the rows shown");
+            goToRow();
+        }
+    }
+
+    @FXML
+    private void onGoTo() {
+        if (currentTextFile.isBinary()) {
+            goToOffset();
+            return;
+        }
+        if (currentTextFile.isTable()) {
+            goToRow();
+            return;
+        }
+        Document document = textView.getDocument();
+        TextInputDialog dialog = new TextInputDialog(
+                String.valueOf(document.getLineOfOffset(textView.getCaretPosition()) + 1));
+        dialog.setTitle("Go To Line");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Line number:");
+        Stage stage = (Stage) dialog.getDialogPane().getScene().getWindow();
+        stage.getIcons().add(EditorMain.icon());
+        dialog.initOwner(window);
+
+        Optional<String> result = dialog.showAndWait();
+        if (result.isEmpty())
+            return;
+        try {
+            int line = Integer.parseInt(result.get().trim());
+            if (line < 1 || line > document.getLineCount())
+                throw new NumberFormatException();
+            textView.positionCaret(document.getLineStart(line - 1));
+        } catch (NumberFormatException e) {
+            Alert alert = new Alert(Alert.AlertType.INFORMATION);
+            alert.setTitle("Go To Line");
+            alert.setHeaderText(null);
+            alert.setContentText("The line number is beyond the total number of lines");
+            alert.initOwner(window);
+            alert.showAndWait();
+            onGoTo();
+        }
     }
 
     @FXML
     private void onSelectAll() {
-        textArea.selectAll();
+        textView.selectAll();
     }
 
 
@@ -332,7 +1086,8 @@ public class EditorController {
 
     @FXML
     private void onWordWrap() {
-        textArea.setWrapText(!textArea.isWrapText());
+        textView.setWrapText(!textView.isWrapText());
+        model.getSession().put("wordWrap", textView.isWrapText());
     }
 
     @FXML
@@ -341,16 +1096,81 @@ public class EditorController {
         statusBar.managedProperty().bind(statusBar.visibleProperty());
     }
 
+    @FXML
+    private void onFollow() {
+        DocumentTab tab = currentTab;
+        if (tab.isFollowing()) {
+            tab.stopFollowing();
+            return;
+        }
+        // only checked once it actually follows
+        followCmd.setSelected(false);
+        whenChangesHandled(() -> follow(tab));
+    }
+
+    // Reads the tab's file again and keeps reading what is written to it.
+    // A failure, also when following again after the file was truncated,
+    // stops following; the model has already recorded it.
+    private void follow(DocumentTab tab) {
+        IOResult<FileFollower> io = model.follow(tab.getTextFile().getFile());
+        if (!io.isOk() || !io.hasData()) {
+            tab.stopFollowing();
+            if (tab == currentTab)
+                followCmd.setSelected(false);
+            errorAlert("Could not follow " + tab.getFileName(), io.getError());
+            return;
+        }
+
+        FileFollower follower = io.getData();
+        // the view stays at the end for as long as the caret is there
+        follower.setOnUpdate(() -> {
+            if (tab == currentTab && textView.getCaretPosition() == textView.getDocument().length())
+                textView.scrollToCaret();
+        });
+        // truncated or rotated, start over with what the file holds now
+        follower.setOnReset(() -> follow(tab));
+        tab.follow(follower);
+        if (tab == currentTab)
+            showTab(tab);
+        follower.start();
+    }
+
+    // Shows a .csv or .tsv file as a table, or the table as text again. The
+    // file is read again either way, so unsaved changes are dealt with first.
+    @FXML
+    private void onTable() {
+        DocumentTab tab = currentTab;
+        boolean asTable = tableCmd.isSelected();
+        // only checked once it shows as a table
+        tableCmd.setSelected(!asTable);
+        whenChangesHandled(() -> {
+            // the failure is already recorded by the open's timing, the tab stays as it was
+            IOResult<TextFile> io = model.open(tab.getFile(), asTable);
+            if (!io.isOk() || !io.hasData()) {
+                if (tab == currentTab)
+                    tableCmd.setSelected(tab.getTextFile().isTable());
+                errorAlert("Could not open " + tab.getFileName() + (asTable ? " as a table" : " as text"),
+                        io.getError());
+                return;
+            }
+            tab.reopen(io.getData());
+            if (tab == currentTab)
+                showTab(tab);
+        });
+    }
+
     // change zoom
 
     private void changeZoom(int sizeChange) {
+        zoomTiming = Metrics.ZOOM.start(zoom.intValue() + sizeChange + "%");
         zoom.setValue(zoom.intValue() + sizeChange);
+        applyZoom();
+        model.getSession().put("zoom", zoom.intValue());
+    }
+
+    private void applyZoom() {
         double newSize = (int) (defaultFont.getSize() * zoom.floatValue() / 100f);
-        textArea.setFont(new Font(defaultFont.getName(), newSize));
-        // fix for caret visual glitch
-        int caretPos = textArea.getCaretPosition();
-        textArea.positionCaret(0);
-        textArea.positionCaret(caretPos);
+        textView.setFont(new Font(defaultFont.getName(), newSize));
     }
 
 
@@ -365,11 +1185,51 @@ public class EditorController {
         alert.setTitle("About Memobook");
         alert.setContentText("A simple text editor for my final project.");
         Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
-        stage.getIcons().add(new Image(getClass().getResourceAsStream("resources/icon.png")));
+        stage.getIcons().add(EditorMain.icon());
         stage.show();
     }
 
 
     // STATUS BAR
 
+    @FXML
+    private void onMetrics() {
+        metricsLabel.setVisible(metricsCmd.isSelected());
+        if (metricsCmd.isSelected()) {
+            updateMetrics();
+            metricsRefresh.play();
+        } else {
+            metricsRefresh.stop();
+        }
+    }
+
+    // "Open 210.0 MB/s, Save 95.0 MB/s, Search p50 1.2 ms p99 40.0 ms, Document 12.5 MB of 80.0 MB heap,
+    // 3 frames dropped, Startup 850.0 ms, Finder 12.0 ms"
+    private void updateMetrics() {
+        LatencyHistogram search = Metrics.SEARCH.getLatency();
+        long documentBytes = currentTextFile.getDocument().heapBytes() + undoManager.getMemoryUsed();
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder text = new StringBuilder()
+                .append("Open ").append(megabytes(Metrics.OPEN.getThroughput())).append("/s, ")
+                .append("Save ").append(megabytes(Metrics.SAVE.getThroughput())).append("/s, ")
+                .append("Search p50 ").append(millis(search.getPercentile(50)))
+                .append(" p99 ").append(millis(search.getPercentile(99))).append(", ")
+                .append("Document ").append(megabytes(documentBytes))
+                .append(" of ").append(megabytes(runtime.totalMemory() - runtime.freeMemory())).append(" heap, ")
+                .append(Metrics.getDroppedFrames()).append(" frames dropped, ")
+                .append("Startup ").append(millis(Metrics.STARTUP.getMax())).append(", ")
+                .append("Finder ").append(millis(Metrics.FINDER.getLatency().getPercentile(50)));
+        if (Metrics.getFailures() > 0)
+            text.append(", ").append(Metrics.getFailures()).append(" failed");
+        metricsLabel.setText(text.toString());
+    }
+
+    private static String megabytes(double bytes) {
+        return String.format("%.1f MB", bytes / (1 << 20));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
 }
@@ -1,42 +1,176 @@
 package editor;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
-import javafx.stage.Window;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class EditorMain extends Application {
 
-    private static Window primaryWindow;
-    private static EditorController controller;
+    // taken in main before JavaFX starts, null when this isn't the one running instance
+    private static SingleInstance instance;
+
+    // set when main couldn't tell whether another instance is running, which
+    // may be recording the same journals and session
+    private static boolean unsure;
+
+    // shared by every window, so saves still queue up one at a time
+    private final EditorModel model = new EditorModel();
+
+    private int openWindows;
+
+    // the files of every window closed so far, remembered once the last one closes
+    private final Set<Path> sessionFiles = new LinkedHashSet<>();
+    private boolean remembersSession;
+
+    // where files handed over by later launches go
+    private EditorController lastFocused;
+
+    private boolean started;
+
+    // decoded once, every window and dialog shows the same one
+    private static Image icon;
+
+    static Image icon() {
+        if (icon == null)
+            icon = new Image(EditorMain.class.getResourceAsStream("resources/icon.png"));
+        return icon;
+    }
 
     @Override
     public void start(Stage primaryStage) throws Exception{
+        // A run that only starts up, opens the finder and ends, which the
+        // image build uses to list the classes to put in its CDS archive.
+        if (getParameters().getUnnamed().contains("--exit-after-startup")) {
+            EditorController controller = openWindow(primaryStage);
+            Platform.runLater(controller::closeAfterStartup);
+            return;
+        }
+
+        // the files the last session had open and the ones asked for now, and
+        // whatever was left unsaved when the application last ended without
+        // closing its documents once that has been read back
+        if (unsure)
+            model.getSession().setReadOnly();
+        EditorController controller = openWindow(primaryStage);
+        if (!unsure)
+            model.recover(controller::addRecovered);
+        List<Path> files = new ArrayList<>();
+        for (Path file : model.getSession().getOpenFiles())
+            if (Files.isRegularFile(file))
+                files.add(file);
+        files.addAll(files(getParameters().getUnnamed()));
+        controller.openFiles(files);
+        if (instance != null)
+            instance.listen(handedOver -> Platform.runLater(() -> openHandedOver(handedOver)));
+
+        // the window can take a keystroke once it has been laid out for the first time
+        primaryStage.getScene().addPostLayoutPulseListener(() -> {
+            if (!started) {
+                started = true;
+                Metrics.startedUp();
+            }
+        });
+    }
+
+    // a launch without files wants a window, one with files gets them in the window used last
+    private void openHandedOver(List<Path> files) {
+        try {
+            if (files.isEmpty() || lastFocused == null)
+                openWindow(new Stage()).openFiles(files);
+            else
+                lastFocused.openFiles(files);
+        } catch (IOException e) {
+            Metrics.failed("New window", e);
+        }
+    }
+
+    // Every window gets a controller of its own, and closing the last one ends
+    // the application once any saves still running are written.
+    private EditorController openWindow(Stage stage) throws IOException {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("editorUI.fxml"));
-        controller = new EditorController(new EditorModel());
+        EditorController controller = new EditorController(model, stage, () -> {
+            try {
+                openWindow(new Stage());
+            } catch (IOException e) {
+                Metrics.failed("New window", e);
+            }
+        });
         loader.setControllerFactory(t -> controller);
-        primaryStage.setScene(new Scene(loader.load()));
-
-        primaryStage.setTitle("Memobook"); //TODO: Make it so filename shows in window title
-        Image appIcon = new Image(getClass().getResourceAsStream("resources/icon.png"));
-        primaryStage.getIcons().add(appIcon);
+        stage.setScene(new Scene(loader.load()));
 
-        primaryWindow = primaryStage;
+        stage.titleProperty().bind(controller.titleProperty());
+        stage.getIcons().add(icon());
 
-        primaryStage.setOnCloseRequest(windowEvent -> {
+        stage.setOnCloseRequest(windowEvent -> {
             windowEvent.consume();
             controller.onExit();
         });
-        primaryStage.show();
+        stage.setOnHidden(windowEvent -> {
+            if (lastFocused == controller)
+                lastFocused = null;
+            if (controller.getSessionFiles() != null) {
+                sessionFiles.addAll(controller.getSessionFiles());
+                remembersSession = true;
+            }
+            if (--openWindows == 0) {
+                if (remembersSession)
+                    model.getSession().setOpenFiles(new ArrayList<>(sessionFiles));
+                if (instance != null)
+                    instance.close();
+                model.exit();
+            }
+        });
+        stage.focusedProperty().addListener((observable, wasFocused, focused) -> {
+            if (focused)
+                lastFocused = controller;
+        });
+        lastFocused = controller;
+        openWindows++;
+        stage.show();
+        return controller;
     }
 
-    public static void main(String[] args) {
-        launch(args);
+    // the arguments that aren't options, as absolute paths
+    private static List<Path> files(List<String> args) {
+        List<Path> files = new ArrayList<>();
+        for (String arg : args)
+            if (!arg.startsWith("--"))
+                files.add(Paths.get(arg).toAbsolutePath());
+        return files;
     }
 
-    public static Window getPrimaryWindow() {
-        return primaryWindow;
+    // A launch while another instance is running hands it the files and is
+    // done, or ends with an error if it can't. One that can't tell whether
+    // another instance runs starts up without recovering journals or
+    // writing the session, either could belong to the other instance.
+    public static void main(String[] args) {
+        if (!Arrays.asList(args).contains("--exit-after-startup")) {
+            try {
+                instance = SingleInstance.claim();
+            } catch (IOException e) {
+                Metrics.failed("Single instance", e);
+                unsure = true;
+            }
+            if (instance == null && !unsure) {
+                if (SingleInstance.handOver(files(Arrays.asList(args))))
+                    return;
+                System.err.println("jotr is already running but didn't take the files");
+                System.exit(1);
+            }
+        }
+        launch(args);
     }
 }
@@ -1,34 +1,415 @@
 package editor;
 
+import javafx.application.Platform;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 
 public class EditorModel {
 
+    private static final int READ_CHUNK = 1 << 16;
+    private static final int WRITE_CHUNK = 1 << 16;
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // smaller files are cheaper to read straight onto the heap
+    private static final long MAP_THRESHOLD = 4L << 20;
+
+    // larger comma or tab separated files open as a table rather than as text
+    private static final long TABLE_THRESHOLD = 256L << 20;
+
+    private final ExecutorService background = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "editor-background");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // saves run one at a time, in the order they were asked for
+    private final ExecutorService saver = Executors.newSingleThreadExecutor(runnable ->
+            new Thread(runnable, "editor-save"));
+
+    // journals of unsaved edits are written one at a time on a thread of their own
+    private final Path journalDirectory = Paths.get(System.getProperty("user.home"), ".jotr", "journal");
+    private final ScheduledExecutorService journalWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // what is remembered between runs, written on the journal thread as well
+    private final SessionStore session = new SessionStore(journalWriter,
+            Paths.get(System.getProperty("user.home"), ".jotr", "session"));
+
+    // Files are decoded and encoded a chunk at a time through these, reading on
+    // the application thread and writing on the save thread; a read on any
+    // other thread gets a buffer of its own. None of the supported charsets
+    // takes more than 3 bytes for a char.
+    private final ByteBuffer readBytes = ByteBuffer.allocateDirect(READ_CHUNK);
+    private final CharBuffer writeChars = CharBuffer.allocate(WRITE_CHUNK);
+    private final ByteBuffer writeBytes = ByteBuffer.allocateDirect(WRITE_CHUNK * 3);
+
     // FILE MENU
 
-    public void save(TextFile textFile) {
+    // Writes the document as it is now on a background thread and returns
+    // straight away; edits made meanwhile are left for the next save. The text
+    // goes to a temp file next to the target, which is synced and then moved
+    // over the target, so a failed save never leaves a truncated file behind.
+    // The text is encoded the way the file was read, BOM and all, and the line
+    // breaks are written as they are in the document, so an unedited file
+    // comes out byte for byte the same. Progress and the result are passed to
+    // onUpdate on the application thread.
+    public void save(TextFile textFile, Consumer<IOResult<Path>> onUpdate) {
+        Path file = Objects.requireNonNull(textFile.getFile());
+        ModificationTracker.Checkpoint checkpoint = textFile.checkpoint();
+
+        saver.execute(() -> {
+            Metrics.Timing timing = Metrics.SAVE.start(file);
+            try {
+                long written = write(file, checkpoint.getContent(), textFile.getFormat(), progress ->
+                        Platform.runLater(() -> onUpdate.accept(IOResult.inProgress(progress))));
+                timing.end(written);
+                Platform.runLater(() -> {
+                    textFile.markSaved(checkpoint);
+                    onUpdate.accept(new IOResult<>(file, true));
+                });
+            } catch (IOException | RuntimeException e) {
+                timing.fail(e);
+                Platform.runLater(() -> onUpdate.accept(IOResult.failed(e)));
+            }
+        });
+    }
+
+    // the work of a save, on the calling thread; returns how many bytes were written
+    long write(Path file, CharSequence text, FileFormat format, DoubleConsumer onProgress)
+            throws IOException {
+        // write through links, the link itself should stay where it is
+        Path target = Files.exists(file) ? file.toRealPath() : file.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName(), ".tmp");
+        long written;
         try {
-            Files.write(textFile.getFile(), textFile.getContent());
-        } catch (IOException e) {
-            e.printStackTrace();
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                CharsetEncoder encoder = format.getCharset().newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+                CharBuffer chars = writeChars;
+                ByteBuffer bytes = writeBytes;
+                bytes.clear();
+                channel.write(ByteBuffer.wrap(format.getBomBytes()));
+                long lastProgress = System.nanoTime();
+
+                int length = text.length();
+                for (int start = 0; start < length; ) {
+                    int end = Math.min(start + WRITE_CHUNK, length);
+                    // keep surrogate pairs in one chunk
+                    if (end < length && Character.isHighSurrogate(text.charAt(end - 1)))
+                        end--;
+
+                    chars.clear();
+                    for (int i = start; i < end; i++)
+                        chars.put(text.charAt(i));
+                    chars.flip();
+                    CoderResult result = encoder.encode(chars, bytes, end == length);
+                    if (result.isUnmappable())
+                        throw new IOException("The text has characters that can't be saved as "
+                                + format.getEncodingName());
+                    if (result.isError())
+                        result.throwException();
+                    if (end == length)
+                        encoder.flush(bytes);
+                    bytes.flip();
+                    while (bytes.hasRemaining())
+                        channel.write(bytes);
+                    bytes.clear();
+                    start = end;
+
+                    long now = System.nanoTime();
+                    if (now - lastProgress > PROGRESS_INTERVAL) {
+                        lastProgress = now;
+                        onProgress.accept((double) start / length);
+                    }
+                }
+                channel.force(true);
+                written = channel.size();
+            }
+
+            // the temp file is created private, give it the permissions of the file it replaces
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ignored) {
+                }
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
         }
+        return written;
     }
 
     public IOResult<TextFile> open(Path file) {
+        return open(file, null);
+    }
+
+    // The charset and line breaks are worked out from the start of the file
+    // and kept with the TextFile for saving. A file that only turns out not
+    // to be UTF-8 past the start is read as ISO-8859-1 instead, which gives
+    // back any bytes unchanged; a file too large to read twice, or in a
+    // charset its BOM settled, is lossy instead. A file that turns out to be
+    // binary opens for viewing as hex, which reads nothing up front, so a
+    // binary file is only timed, its throughput would count bytes nobody read.
+    // A delimited file opens as a table if asTable says so, or if it is null
+    // and the file is large.
+    public IOResult<TextFile> open(Path file, Boolean asTable) {
+        Metrics.Timing timing = Metrics.OPEN.start(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = channel.size();
+            ByteBuffer sample = readSample(channel);
+            FileFormat format = FileFormat.detect(sample, sample.limit() == size);
+            if (FileFormat.isBinary(sample, format)) {
+                TextFile textFile = new TextFile(new PagedFile(file));
+                timing.end();
+                return new IOResult<>(textFile, true);
+            }
+
+            char separator = CsvTable.separatorFor(file);
+            if (separator != 0 && (asTable == null ? size >= TABLE_THRESHOLD : asTable))
+                return new IOResult<>(openTable(file, separator, format, timing), true);
+
+            TextFile textFile;
+            if (size >= MAP_THRESHOLD) {
+                textFile = openMapped(file, new MappedText(file, format), format, timing);
+            } else {
+                HeapText text = read(channel, size, format);
+                if (text.isLossy() && !format.hasBom() && format.getCharset().equals(StandardCharsets.UTF_8)) {
+                    format = new FileFormat(StandardCharsets.ISO_8859_1, false, format.getLineSeparator());
+                    text = read(channel, size, format);
+                }
+                textFile = new TextFile(file, new PieceTable(text), format);
+                timing.end(size);
+            }
+            journal(textFile).readFrom(attributes.size(), attributes.lastModifiedTime().toMillis());
+            return new IOResult<>(textFile, true);
+        } catch (IOException e) {
+            timing.fail(e);
+            return IOResult.failed(e);
+        }
+    }
+
+    // Returns straight away with an empty document. The file is indexed in the
+    // background and its text is appended to the document as it becomes
+    // available; the open is timed until the whole file is in. The index of
+    // the last time the file was opened is used if it hasn't changed since,
+    // and a new one is kept for the next time.
+    private TextFile openMapped(Path file, MappedText text, FileFormat format, Metrics.Timing timing) {
+        PieceTable document = new PieceTable(text);
+        TextFile textFile = new TextFile(file, document, format);
+        textFile.loadingProperty().set(true);
+
+        Runnable onProgress = () -> {
+            // on the indexing thread, which only sees it indexed the last time round
+            if (text.isIndexed())
+                timing.end(text.getSize());
+            Platform.runLater(() -> {
+                document.appendOriginal();
+                textFile.loadingProperty().set(!text.isIndexed());
+            });
+        };
+        background.execute(() -> {
+            if (session.restoreIndex(file, format, text)) {
+                onProgress.run();
+                return;
+            }
+            text.index(Runnable::run, onProgress);
+            session.keepIndex(file, format, text);
+        });
+        return textFile;
+    }
+
+    public SessionStore getSession() {
+        return session;
+    }
+
+    // Returns straight away with no rows, which come in as the file is
+    // indexed in the background; the open is timed until they are all in.
+    private TextFile openTable(Path file, char separator, FileFormat format, Metrics.Timing timing) throws IOException {
+        PagedFile bytes = new PagedFile(file);
+        CsvTable table;
         try {
-            List<String> lines = Files.readAllLines(file);
-            return new IOResult<>(new TextFile(file, lines), true);
+            table = new CsvTable(bytes, separator, format);
+        } catch (IOException e) {
+            bytes.close();
+            throw e;
+        }
+        TextFile textFile = new TextFile(table, format);
+        textFile.loadingProperty().set(true);
+
+        table.index(background, () -> {
+            if (table.isIndexed())
+                timing.end(bytes.size());
+            Platform.runLater(() -> textFile.loadingProperty().set(!table.isIndexed()));
+        });
+        return textFile;
+    }
+
+    // all of the file before returning, for a journal to replay its edits onto
+    PieceTable readDocument(Path file, FileFormat format) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD)
+                return new PieceTable(read(channel, size, format));
+        }
+        MappedText text = new MappedText(file, format);
+        if (!session.restoreIndex(file, format, text))
+            text.index(Runnable::run, () -> {});
+        return new PieceTable(text);
+    }
+
+    // what open() takes the file's format to be
+    static FileFormat detectFormat(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return detectFormat(channel);
+        }
+    }
+
+    // from the first bytes of the file
+    private static FileFormat detectFormat(FileChannel channel) throws IOException {
+        ByteBuffer sample = readSample(channel);
+        return FileFormat.detect(sample, sample.limit() == channel.size());
+    }
+
+    private static ByteBuffer readSample(FileChannel channel) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(channel.size(), FileFormat.SAMPLE_SIZE));
+        channel.position(0);
+        while (sample.hasRemaining()) {
+            if (channel.read(sample) < 0)
+                break;
+        }
+        sample.flip();
+        return sample;
+    }
+
+    // Decodes the text after the BOM a chunk at a time into a buffer with room
+    // for all of it, so the String at the end is the only copy made. Bytes
+    // that aren't valid in the charset read as U+FFFD and make the text lossy.
+    private HeapText read(FileChannel channel, long size, FileFormat format) throws IOException {
+        CharsetDecoder decoder = format.getCharset().newDecoder();
+        boolean lossy = false;
+        // a replacement takes the place of at least one byte
+        CharBuffer chars = CharBuffer.allocate((int) Math.ceil(size * Math.max(1, decoder.maxCharsPerByte())));
+        ByteBuffer bytes = Platform.isFxApplicationThread() ? readBytes : ByteBuffer.allocateDirect(READ_CHUNK);
+        bytes.clear();
+        channel.position(format.getBomBytes().length);
+
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            endOfInput = channel.read(bytes) < 0;
+            bytes.flip();
+            CoderResult result;
+            while ((result = decoder.decode(bytes, chars, endOfInput)).isError()) {
+                lossy = true;
+                chars.put(decoder.replacement());
+                bytes.position(bytes.position() + result.length());
+            }
+            bytes.compact();
+        }
+        decoder.flush(chars);
+        return new HeapText(chars.flip().toString(), lossy);
+    }
+
+    // Opens the file to follow it as it grows. The follower reads it in the
+    // background, starting once the caller has hooked up to it.
+    public IOResult<FileFollower> follow(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new IOResult<>(new FileFollower(file, detectFormat(channel)), true);
+        } catch (IOException e) {
+            Metrics.failed("Follow " + file, e);
+            return IOResult.failed(e);
+        }
+    }
+
+    // JOURNALS
+
+    // keeps a journal of the file's unsaved edits from now on
+    public Journal journal(TextFile textFile) {
+        Journal journal = new Journal(journalWriter, journalDirectory.resolve(UUID.randomUUID() + ".journal"),
+                textFile);
+        textFile.setJournal(journal);
+        return journal;
+    }
+
+    // The documents whose unsaved edits were left in a journal, when the
+    // application didn't get to close them, passed to onRecovered on the
+    // application thread. Replaying a journal reads and indexes its file,
+    // so that happens in the background. Journals that can't be replayed,
+    // or that another running editor is still writing, are left alone.
+    public void recover(Consumer<List<TextFile>> onRecovered) {
+        background.execute(() -> {
+            List<TextFile> recovered = recover();
+            Platform.runLater(() -> onRecovered.accept(recovered));
+        });
+    }
+
+    List<TextFile> recover() {
+        List<TextFile> recovered = new ArrayList<>();
+        if (!Files.isDirectory(journalDirectory))
+            return recovered;
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(journalDirectory, "*.journal")) {
+            for (Path journal : journals) {
+                try {
+                    TextFile textFile = Journal.recover(journal, journalWriter, this);
+                    if (textFile != null)
+                        recovered.add(textFile);
+                } catch (IOException | RuntimeException e) {
+                    Metrics.failed("Recover " + journal, e);
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            return new IOResult<>(null, false);
+            Metrics.failed("Recover", e);
         }
+        return recovered;
     }
 
+    // waits for saves that are still being written, and for the journals to
+    // be synced, before leaving
     public void exit() {
-        System.exit(0);
+        saver.execute(() -> {
+            journalWriter.shutdown();
+            try {
+                journalWriter.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            System.exit(0);
+        });
     }
 
 }
@@ -0,0 +1,164 @@
+package editor;
+
+import javafx.application.Platform;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keeps the document of a followed file up to date as the file grows, like
+// tail -f. A thread of its own waits for the file's directory to change, and
+// polls as well since not every file system reports changes. It takes in the
+// new bytes through MappedText.grow(), so only where the appended text lies
+// goes into the document, never a copy of it. The document is updated at most
+// once a frame however fast the file grows. When the file shrinks or another
+// file takes its place, as when a log is rotated, onReset is called on the
+// application thread: what was read so far no longer matches the file.
+public class FileFollower {
+
+    private static final long POLL_INTERVAL = 500;
+    private static final long FRAME_INTERVAL = 1000 / 30;
+
+    private final Path file;
+    private final MappedText text;
+    private final PieceTable document;
+    private final TextFile textFile;
+    private final Object fileKey;
+    private final WatchService watcher;
+    private final Thread thread;
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+    private volatile boolean stopped;
+
+    private Runnable onUpdate = () -> {};
+    private Runnable onReset = () -> {};
+
+    public FileFollower(Path file, FileFormat format) throws IOException {
+        this.file = file;
+        text = MappedText.following(file, format);
+        document = new PieceTable(text);
+        textFile = new TextFile(file, document, format);
+        fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        watcher = file.getFileSystem().newWatchService();
+        file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        thread = new Thread(this::run, "editor-follow");
+        thread.setDaemon(true);
+    }
+
+    public TextFile getTextFile() {
+        return textFile;
+    }
+
+    // called on the application thread after text was appended
+    public void setOnUpdate(Runnable onUpdate) {
+        this.onUpdate = onUpdate;
+    }
+
+    // called on the application thread when the file was truncated or replaced
+    public void setOnReset(Runnable onReset) {
+        this.onReset = onReset;
+    }
+
+    // the document can't be edited while it follows the file
+    public void start() {
+        textFile.loadingProperty().set(true);
+        thread.start();
+    }
+
+    // The text read so far stays, and can be edited. Closing the watch service
+    // wakes the thread up; interrupting it would close the file channel under
+    // a read, and the document still reads through that channel.
+    public void stop() {
+        stopped = true;
+        textFile.loadingProperty().set(false);
+        document.appendOriginal();
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Metrics.failed("Stop following " + file, e);
+        }
+    }
+
+    // stops following and closes the file, once nothing reads the document any more
+    public void dispose() {
+        stop();
+        try {
+            text.close();
+        } catch (IOException e) {
+            Metrics.failed("Close " + file, e);
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    private void run() {
+        try {
+            while (!stopped) {
+                BasicFileAttributes attributes = attributes();
+                // missing for a moment while a log is rotated
+                if (attributes != null && (!Objects.equals(attributes.fileKey(), fileKey)
+                        || attributes.size() < text.getSize())) {
+                    reset();
+                    return;
+                }
+
+                if (attributes != null && text.grow(this::update)) {
+                    update();
+                    // more is likely on its way, take it in with the next frame
+                    Thread.sleep(FRAME_INTERVAL);
+                } else {
+                    WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        } catch (IOException e) {
+            if (!stopped)
+                Metrics.failed("Follow " + file, e);
+        }
+    }
+
+    private BasicFileAttributes attributes() throws IOException {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    // only one update is queued at a time, later ones are folded into it
+    private void update() {
+        if (!updatePending.compareAndSet(false, true))
+            return;
+        Platform.runLater(() -> {
+            updatePending.set(false);
+            if (stopped)
+                return;
+            document.appendOriginal();
+            onUpdate.run();
+        });
+    }
+
+    private void reset() {
+        Platform.runLater(() -> {
+            if (!stopped)
+                onReset.run();
+        });
+    }
+
+}
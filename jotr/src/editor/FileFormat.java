@@ -0,0 +1,174 @@
+package editor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+// How a file's text is stored: its charset, whether it starts with a byte
+// order mark, and which line break new lines get. The document keeps the
+// text exactly as decoded, '\r' included, so writing it back with the same
+// format gives the same bytes.
+public final class FileFormat {
+
+    public static final FileFormat DEFAULT = new FileFormat(StandardCharsets.UTF_8, false, "\n");
+
+    // how much of the start of a file is looked at to tell its format
+    public static final int SAMPLE_SIZE = 1 << 16;
+
+    private static final byte[] UTF_8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] UTF_16BE_BOM = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xFF, (byte) 0xFE};
+
+    private final Charset charset;
+    private final boolean bom;
+    private final String lineSeparator;
+
+    public FileFormat(Charset charset, boolean bom, String lineSeparator) {
+        this.charset = charset;
+        this.bom = bom;
+        this.lineSeparator = lineSeparator;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public boolean hasBom() {
+        return bom;
+    }
+
+    // the bytes the file starts with before its text, empty without a BOM
+    public byte[] getBomBytes() {
+        if (!bom)
+            return new byte[0];
+        if (charset.equals(StandardCharsets.UTF_16BE))
+            return UTF_16BE_BOM.clone();
+        if (charset.equals(StandardCharsets.UTF_16LE))
+            return UTF_16LE_BOM.clone();
+        return UTF_8_BOM.clone();
+    }
+
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    // for the status bar
+    public String getEncodingName() {
+        String name = charset.equals(StandardCharsets.UTF_16BE) ? "UTF-16 BE"
+                : charset.equals(StandardCharsets.UTF_16LE) ? "UTF-16 LE"
+                : charset.name();
+        return bom && charset.equals(StandardCharsets.UTF_8) ? name + " with BOM" : name;
+    }
+
+    public String getLineSeparatorName() {
+        return lineSeparator.equals("\r\n") ? "CRLF" : "LF";
+    }
+
+    // text with its line breaks, whichever kind, turned into this format's
+    public String convertLineSeparators(String text) {
+        if (text.indexOf('\n') < 0)
+            return text;
+        String lines = text.replace("\r\n", "\n");
+        return lineSeparator.equals("\n") ? lines : lines.replace("\n", lineSeparator);
+    }
+
+    // DETECTION
+
+    // Works out the format of a file from the first bytes of it; sample is
+    // read from its position to its limit, and whole tells whether that is
+    // all of the file. A BOM settles the charset. Without one the sample is
+    // UTF-16 if every other byte is mostly zero, UTF-8 if it decodes as such,
+    // and ISO-8859-1, which any bytes decode to and from unchanged, otherwise.
+    public static FileFormat detect(ByteBuffer sample, boolean whole) {
+        Charset charset;
+        boolean bom = true;
+        if (startsWith(sample, UTF_8_BOM)) {
+            charset = StandardCharsets.UTF_8;
+        } else if (startsWith(sample, UTF_16BE_BOM)) {
+            charset = StandardCharsets.UTF_16BE;
+        } else if (startsWith(sample, UTF_16LE_BOM)) {
+            charset = StandardCharsets.UTF_16LE;
+        } else {
+            bom = false;
+            charset = guessCharset(sample, whole);
+        }
+
+        ByteBuffer text = sample.duplicate();
+        if (bom)
+            text.position(text.position() + (charset.equals(StandardCharsets.UTF_8) ? 3 : 2));
+        return new FileFormat(charset, bom, guessLineSeparator(text, charset));
+    }
+
+    // NUL bytes only turn up in text as part of UTF-16, a sample holding any
+    // in another charset is of a binary file
+    public static boolean isBinary(ByteBuffer sample, FileFormat format) {
+        Charset charset = format.getCharset();
+        if (charset.equals(StandardCharsets.UTF_16BE) || charset.equals(StandardCharsets.UTF_16LE))
+            return false;
+        for (int i = sample.position(); i < sample.limit(); i++)
+            if (sample.get(i) == 0)
+                return true;
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, byte[] prefix) {
+        if (buffer.remaining() < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (buffer.get(buffer.position() + i) != prefix[i])
+                return false;
+        return true;
+    }
+
+    private static Charset guessCharset(ByteBuffer sample, boolean whole) {
+        // NUL is valid UTF-8 too, so this goes first
+        int units = sample.remaining() / 2;
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i < units * 2; i += 2) {
+            if (sample.get(sample.position() + i) == 0)
+                evenZeros++;
+            if (sample.get(sample.position() + i + 1) == 0)
+                oddZeros++;
+        }
+        if (units > 0 && evenZeros > units * 0.4 && oddZeros < units * 0.05)
+            return StandardCharsets.UTF_16BE;
+        if (units > 0 && oddZeros > units * 0.4 && evenZeros < units * 0.05)
+            return StandardCharsets.UTF_16LE;
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate(sample.remaining());
+        // a sample cut off in the middle of a character still underflows
+        CoderResult result = decoder.decode(sample.duplicate(), chars, whole);
+        return result.isError() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+    }
+
+    // whichever of "\r\n" and "\n" ends more lines in the sample, "\n" for a tie
+    private static String guessLineSeparator(ByteBuffer text, Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(text.remaining());
+        decoder.decode(text, chars, false);
+        chars.flip();
+
+        int crlf = 0;
+        int lf = 0;
+        for (int i = 0; i < chars.limit(); i++) {
+            if (chars.get(i) != '\n')
+                continue;
+            if (i > 0 && chars.get(i - 1) == '\r')
+                crlf++;
+            else
+                lf++;
+        }
+        return crlf > lf ? "\r\n" : "\n";
+    }
+
+}
@@ -0,0 +1,516 @@
+package editor;
+
+import javafx.application.Platform;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Looks for a pattern in every file under a directory. One thread walks the
+// tree and hands the files to a pool with a thread per core; a semaphore
+// keeps the walker only a few files ahead, so a tree of any size takes the
+// same memory. Before any file is decoded its bytes are checked for a
+// literal that every match has to contain, which rules out most files at the
+// cost of a byte scan. The rest are decoded a slice of lines at a time and
+// run through the regex. The first match on each line is a hit; hits are
+// handed to onHits on the application thread in batches as they are found,
+// with at most one batch waiting.
+public class FileSearch {
+
+    // past this many hits the search stops
+    public static final int HIT_LIMIT = 1 << 16;
+
+    // smaller files are read into a buffer, mapping them costs more than it saves
+    private static final int MAP_THRESHOLD = 1 << 16;
+
+    // how much of a file is decoded at once, give or take a line
+    private static final int SLICE_BYTES = 1 << 20;
+
+    // a line longer than this is cut into slices, and a match across a cut is missed
+    private static final int LINE_LIMIT = 1 << 22;
+
+    private static final int PREVIEW_BEFORE = 40;
+    private static final int PREVIEW_LENGTH = 200;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    // how many files the walker may hand out before it waits
+    private static final int QUEUED_FILES = THREADS * 4;
+
+    private static final ExecutorService walker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-find-in-files-walker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService scanners = Executors.newFixedThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "editor-find-in-files");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ThreadLocal<ByteBuffer> readBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAP_THRESHOLD));
+
+    private final Path directory;
+    private final Pattern pattern;
+    // null when no literal could be worked out of the query
+    private final String literal;
+    private final boolean matchCase;
+
+    private final Consumer<List<Hit>> onHits;
+    private final Runnable onDone;
+
+    private final Semaphore queued = new Semaphore(QUEUED_FILES);
+    private final Queue<Hit> found = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean deliveryPending = new AtomicBoolean();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger filesSearched = new AtomicInteger();
+    private final AtomicInteger filesMatched = new AtomicInteger();
+    private final LongAdder bytesSearched = new LongAdder();
+
+    private volatile boolean cancelled;
+    private volatile boolean full;
+
+    public FileSearch(Path directory, String query, boolean regex, boolean matchCase, Pattern pattern,
+                      Consumer<List<Hit>> onHits, Runnable onDone) {
+        this.directory = directory;
+        // ^ and $ go by lines, as in grep
+        this.pattern = Pattern.compile(pattern.pattern(), pattern.flags() | Pattern.MULTILINE);
+        this.literal = requiredLiteral(query, regex);
+        this.matchCase = matchCase;
+        this.onHits = onHits;
+        this.onDone = onDone;
+    }
+
+    public void start() {
+        walker.execute(this::walk);
+    }
+
+    // no hits are handed over after this, and onDone isn't called
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public int getFilesSearched() {
+        return filesSearched.get();
+    }
+
+    public int getFilesMatched() {
+        return filesMatched.get();
+    }
+
+    // true when the search stopped at the hit limit
+    public boolean isTruncated() {
+        return full;
+    }
+
+    // a line a match was found on
+    public static class Hit {
+        private final Path file;
+        private final String name;
+        private final int line;
+        private final int column;
+        private final int length;
+        private final String preview;
+
+        Hit(Path file, String name, int line, int column, int length, String preview) {
+            this.file = file;
+            this.name = name;
+            this.line = line;
+            this.column = column;
+            this.length = length;
+            this.preview = preview;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        // counted from 0
+        public int getLine() {
+            return line;
+        }
+
+        // chars from the start of the line to the match
+        public int getColumn() {
+            return column;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        // "logs/app.log:12: the line", the path relative to the directory searched
+        @Override
+        public String toString() {
+            return name + ":" + (line + 1) + ": " + preview;
+        }
+    }
+
+    // Walking
+
+    private void walk() {
+        Metrics.Timing timing = Metrics.FIND_IN_FILES.start(directory);
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if (isStopped())
+                        return FileVisitResult.TERMINATE;
+                    // .git and the like
+                    Path name = dir.getFileName();
+                    if (!dir.equals(directory) && name != null && name.toString().startsWith("."))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (isStopped())
+                        return FileVisitResult.TERMINATE;
+                    if (!attributes.isRegularFile() || attributes.size() == 0 || attributes.size() > Integer.MAX_VALUE)
+                        return FileVisitResult.CONTINUE;
+                    queued.acquireUninterruptibly();
+                    scanners.execute(() -> {
+                        try {
+                            if (!isStopped())
+                                search(file);
+                        } catch (InternalError e) {
+                            // the file was truncated under its mapping
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return isStopped() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ignored) {
+            // whatever was walked before the failure was searched
+        }
+
+        // every permit back means every file handed out is done
+        queued.acquireUninterruptibly(QUEUED_FILES);
+        queued.release(QUEUED_FILES);
+        if (!cancelled)
+            timing.end(bytesSearched.sum());
+        Platform.runLater(() -> {
+            deliver();
+            if (!cancelled)
+                onDone.run();
+        });
+    }
+
+    private boolean isStopped() {
+        return cancelled || full;
+    }
+
+    // Searching a file
+
+    private void search(Path file) {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return;
+            if (size < MAP_THRESHOLD) {
+                bytes = readBuffer.get();
+                bytes.clear();
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0)
+                        break;
+                }
+                bytes.flip();
+            } else {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // gone, or not readable
+            return;
+        }
+        filesSearched.incrementAndGet();
+        bytesSearched.add(bytes.limit());
+
+        ByteBuffer sample = bytes.duplicate();
+        sample.limit(Math.min(bytes.limit(), FileFormat.SAMPLE_SIZE));
+        FileFormat format = FileFormat.detect(sample, sample.limit() == bytes.limit());
+        Charset charset = format.getCharset();
+        boolean utf16 = charset.equals(StandardCharsets.UTF_16BE) || charset.equals(StandardCharsets.UTF_16LE);
+        if (FileFormat.isBinary(sample, format))
+            return;
+
+        int start = format.getBomBytes().length;
+        if (literal != null) {
+            if (!charset.newEncoder().canEncode(literal))
+                return;
+            byte[] literalBytes = literal.getBytes(charset);
+            if (!matchCase)
+                for (int i = 0; i < literalBytes.length; i++)
+                    literalBytes[i] = fold(literalBytes[i]);
+            if (!contains(bytes, start, bytes.limit(), literalBytes))
+                return;
+        }
+
+        List<Hit> hits = scan(file, bytes, start, charset, utf16);
+        if (hits.isEmpty())
+            return;
+        filesMatched.incrementAndGet();
+        found.addAll(hits);
+        if (deliveryPending.compareAndSet(false, true))
+            Platform.runLater(this::deliver);
+    }
+
+    // Decodes the file a slice at a time, each ending at a line break, and
+    // notes the first match on every line.
+    private List<Hit> scan(Path file, ByteBuffer bytes, int start, Charset charset, boolean utf16) {
+        String name = directory.relativize(file).toString();
+        List<Hit> hits = new ArrayList<>();
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(0);
+        Matcher matcher = pattern.matcher("");
+        int unit = utf16 ? 2 : 1;
+
+        int line = 0;
+        // chars of the current line in the slices before this one
+        int carried = 0;
+        int lastHitLine = -1;
+        for (int position = start; position < bytes.limit() && !isStopped(); ) {
+            int end = sliceEnd(bytes, position, charset, utf16);
+            ByteBuffer slice = bytes.duplicate();
+            slice.position(position).limit(end);
+            // none of the charsets detected has more chars than bytes
+            if (chars.capacity() < end - position)
+                chars = CharBuffer.allocate(end - position);
+            chars.clear();
+            decoder.reset();
+            decoder.decode(slice, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+
+            int lineStart = 0;
+            int counted = 0;
+            matcher.reset(chars);
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start())
+                    continue;
+                for (; counted < matcher.start(); counted++) {
+                    if (chars.get(counted) == '\n') {
+                        line++;
+                        lineStart = counted + 1;
+                        carried = 0;
+                    }
+                }
+                if (line == lastHitLine)
+                    continue;
+                lastHitLine = line;
+                hits.add(new Hit(file, name, line, carried + matcher.start() - lineStart,
+                        matcher.end() - matcher.start(), preview(chars, lineStart, matcher.start())));
+                if (hitCount.incrementAndGet() >= HIT_LIMIT) {
+                    full = true;
+                    return hits;
+                }
+            }
+            for (; counted < chars.limit(); counted++) {
+                if (chars.get(counted) == '\n') {
+                    line++;
+                    lineStart = counted + 1;
+                    carried = 0;
+                }
+            }
+            carried += chars.limit() - lineStart;
+            position = end;
+        }
+        return hits;
+    }
+
+    // Right after the first line break past SLICE_BYTES from position, or at
+    // a character boundary LINE_LIMIT past that when the line goes on.
+    private static int sliceEnd(ByteBuffer bytes, int position, Charset charset, boolean utf16) {
+        int limit = bytes.limit();
+        if (limit - position <= SLICE_BYTES)
+            return limit;
+        int from = position + SLICE_BYTES;
+        int cut = (int) Math.min(limit, (long) from + LINE_LIMIT);
+        if (utf16) {
+            boolean bigEndian = charset.equals(StandardCharsets.UTF_16BE);
+            from -= (from - position) & 1;
+            for (int i = from; i + 1 < cut; i += 2) {
+                int low = bigEndian ? i + 1 : i;
+                if (bytes.get(low) == '\n' && bytes.get(bigEndian ? i : i + 1) == 0)
+                    return i + 2;
+            }
+            cut -= (cut - position) & 1;
+            // not between the halves of a surrogate pair
+            int high = bigEndian ? cut - 2 : cut - 1;
+            if (cut < limit && (bytes.get(high) & 0xFC) == 0xD8)
+                cut -= 2;
+            return cut;
+        }
+        for (int i = from; i < cut; i++)
+            if (bytes.get(i) == '\n')
+                return i + 1;
+        // not inside a UTF-8 sequence
+        while (cut < limit && cut > from && (bytes.get(cut) & 0xC0) == 0x80)
+            cut--;
+        return cut;
+    }
+
+    // the line around a match, cut down to a bit before it and a bit more after
+    private static String preview(CharBuffer chars, int lineStart, int matchStart) {
+        int start = Math.max(lineStart, matchStart - PREVIEW_BEFORE);
+        int end = start;
+        while (end < chars.limit() && end - start < PREVIEW_LENGTH && chars.get(end) != '\n' && chars.get(end) != '\r')
+            end++;
+        return chars.subSequence(start, end).toString().replace('\t', ' ');
+    }
+
+    // Delivery
+
+    private void deliver() {
+        deliveryPending.set(false);
+        List<Hit> hits = new ArrayList<>();
+        for (Hit hit; (hit = found.poll()) != null; )
+            hits.add(hit);
+        if (!cancelled && !hits.isEmpty())
+            onHits.accept(hits);
+    }
+
+    // Prefilter
+
+    // Whether [from, to) of bytes holds literal. Without match case, literal
+    // comes folded and each byte is folded before comparing: the regex only
+    // folds ASCII letters, and in every charset detected their bytes are
+    // never part of another character.
+    private boolean contains(ByteBuffer bytes, int from, int to, byte[] literal) {
+        byte first = literal[0];
+        int last = to - literal.length;
+        for (int i = from; i <= last; i++) {
+            byte b = bytes.get(i);
+            if ((matchCase ? b : fold(b)) != first)
+                continue;
+            int j = 1;
+            while (j < literal.length) {
+                byte next = bytes.get(i + j);
+                if ((matchCase ? next : fold(next)) != literal[j])
+                    break;
+                j++;
+            }
+            if (j == literal.length)
+                return true;
+            if (cancelled)
+                return false;
+        }
+        return false;
+    }
+
+    private static byte fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+    }
+
+    // The longest run of characters every match of the query contains, or
+    // null. From a regex only characters outside groups, classes and
+    // quantifiers are taken, and alternation or inline flags give up on it
+    // altogether, so it may miss a literal but never makes one up.
+    static String requiredLiteral(String query, boolean regex) {
+        if (query.isEmpty())
+            return null;
+        if (!regex)
+            return query;
+        if (query.contains("|") || query.contains("(?") || query.contains("\\Q"))
+            return null;
+
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < query.length(); ) {
+            char c = query.charAt(i);
+            int next = i + 1;
+            boolean isLiteral = false;
+            if (c == '\\') {
+                if (next == query.length())
+                    return null;
+                c = query.charAt(next++);
+                // \d, \n, \1 and the like stand for something else
+                isLiteral = !Character.isLetterOrDigit(c);
+            } else if (c == '[') {
+                next = classEnd(query, i);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == '{') {
+                int close = query.indexOf('}', i);
+                next = close < 0 ? query.length() : close + 1;
+            } else {
+                isLiteral = ".^$*+?".indexOf(c) < 0;
+            }
+
+            // a quantifier makes the character optional, except +
+            char quantifier = next < query.length() ? query.charAt(next) : 0;
+            boolean optional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+            if (isLiteral && depth == 0 && !optional)
+                run.append(c);
+            if (!isLiteral || depth != 0 || optional || quantifier == '+') {
+                if (run.length() > longest.length())
+                    longest = run.toString();
+                run.setLength(0);
+            }
+            i = next;
+        }
+        if (run.length() > longest.length())
+            longest = run.toString();
+        return longest.isEmpty() ? null : longest;
+    }
+
+    // right after the ] closing the class opened at open
+    private static int classEnd(String query, int open) {
+        int i = open + 1;
+        if (i < query.length() && query.charAt(i) == '^')
+            i++;
+        // a ] straight after the opening one is part of the class
+        if (i < query.length() && query.charAt(i) == ']')
+            i++;
+        int nesting = 1;
+        for (; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '[')
+                nesting++;
+            else if (c == ']' && --nesting == 0)
+                return i + 1;
+        }
+        return query.length();
+    }
+
+}
@@ -1,23 +1,34 @@
 package editor;
 
+import javafx.beans.InvalidationListener;
 import javafx.fxml.FXML;
+import javafx.scene.Node;
 import javafx.scene.control.*;
-import javafx.scene.image.Image;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
 import javafx.scene.layout.HBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
-enum FinderMode {FIND, REPLACE}
+enum FinderMode {FIND, REPLACE, FIND_IN_FILES}
 
 public class FinderController {
 
     private final Stage finderStage;
 
-    private final FinderMode mode;
+    private FinderMode mode;
 
-    private final TextArea textArea;
+    private final TextView textView;
 
     @FXML
     private TextField findField;
@@ -54,23 +65,136 @@ public class FinderController {
     @FXML
     private Button replaceAllButton;
 
-    public FinderController(Stage stage, TextArea textArea, FinderMode mode) {
+    @FXML
+    private Label matchCountLabel;
+
+    @FXML
+    private Button findNextButton;
+
+    @FXML
+    private HBox directoryBox;
+
+    @FXML
+    private TextField directoryField;
+
+    @FXML
+    private Button findAllButton;
+
+    @FXML
+    private Button browseButton;
+
+    @FXML
+    private ListView<FileSearch.Hit> resultsList;
+
+    private final SearchEngine searchEngine;
+
+    // null when finding in files
+    private final MatchIndex matchIndex;
+
+    // finding in files: where to start, and what opens a hit in the editor
+    private Path directory;
+
+    private Consumer<FileSearch.Hit> onOpenHit;
+
+    private FileSearch fileSearch;
+
+    private final Runnable matchCountListener = this::updateMatchCount;
+
+    private final InvalidationListener selectionListener = observable -> updateMatchCount();
+
+    public FinderController(Stage stage, TextView textView, FinderMode mode,
+                            SearchEngine searchEngine, MatchIndex matchIndex) {
         this.finderStage = stage;
-        this.textArea = textArea;
+        this.textView = textView;
         this.mode = mode;
+        this.searchEngine = searchEngine;
+        this.matchIndex = matchIndex;
+    }
+
+    // a finder that looks through the files under directory rather than the document
+    public FinderController(Stage stage, TextView textView, SearchEngine searchEngine,
+                            Path directory, Consumer<FileSearch.Hit> onOpenHit) {
+        this(stage, textView, FinderMode.FIND_IN_FILES, searchEngine, null);
+        this.directory = directory;
+        this.onOpenHit = onOpenHit;
     }
     
     public void initialize() {
-        if (mode == FinderMode.FIND) {
-            replaceFieldBox.setVisible(false);
-            replaceFieldBox.managedProperty().setValue(false);
-            replaceButton.setVisible(false);
-            replaceButton.managedProperty().setValue(false);
-            replaceAllButton.setVisible(false);
-            replaceAllButton.managedProperty().setValue(false);
-        } else {
-            directionToggleBox.setVisible(false);
-            directionToggleBox.managedProperty().setValue(false);
+        if (mode == FinderMode.FIND_IN_FILES) {
+            hide(replaceFieldBox, replaceButton, replaceAllButton, wrapAroundCheckBox, findNextButton,
+                    directionToggleBox);
+            initializeFindInFiles();
+            return;
+        }
+        hide(directoryBox, findAllButton, browseButton, resultsList);
+        setMode(mode);
+
+        // a search for something the user has since changed is no use, and
+        // the highlighted matches follow the query as it is typed
+        InvalidationListener queryChanged = observable -> {
+            searchEngine.cancel();
+            updateMatchIndex();
+        };
+        findField.textProperty().addListener(queryChanged);
+        regExCheckBox.selectedProperty().addListener(queryChanged);
+        matchCaseCheckBox.selectedProperty().addListener(queryChanged);
+        directionDown.selectedProperty().addListener(observable -> searchEngine.cancel());
+
+        // matches are only highlighted while the finder is open, F3 keeps using them after;
+        // the finder is shown again rather than loaded again, with what it last looked for selected
+        finderStage.setOnShowing(event -> {
+            textView.setHighlights(matchIndex);
+            matchIndex.addListener(matchCountListener);
+            textView.caretPositionProperty().addListener(selectionListener);
+            textView.anchorProperty().addListener(selectionListener);
+            findField.selectAll();
+            updateMatchIndex();
+        });
+        finderStage.setOnHidden(event -> {
+            searchEngine.cancel();
+            textView.setHighlights(null);
+            matchIndex.removeListener(matchCountListener);
+            textView.caretPositionProperty().removeListener(selectionListener);
+            textView.anchorProperty().removeListener(selectionListener);
+        });
+    }
+
+    // the query and options of the last session, and keeping them for the next
+    public void restoreOptions(SessionStore session) {
+        findField.setText(session.get("find.query", ""));
+        replaceField.setText(session.get("find.replacement", ""));
+        regExCheckBox.setSelected(session.getBoolean("find.regex", false));
+        matchCaseCheckBox.setSelected(session.getBoolean("find.matchCase", false));
+        wrapAroundCheckBox.setSelected(session.getBoolean("find.wrapAround", wrapAroundCheckBox.isSelected()));
+    }
+
+    public void saveOptions(SessionStore session) {
+        session.put(Map.of(
+                "find.query", findField.getText(),
+                "find.replacement", replaceField.getText(),
+                "find.regex", regExCheckBox.isSelected(),
+                "find.matchCase", matchCaseCheckBox.isSelected(),
+                "find.wrapAround", wrapAroundCheckBox.isSelected()));
+    }
+
+    // Find and Replace differ only in the fields and buttons they show;
+    // Replace has no direction to choose and always searches down
+    public void setMode(FinderMode mode) {
+        this.mode = mode;
+        setShown(mode == FinderMode.REPLACE, replaceFieldBox, replaceButton, replaceAllButton);
+        setShown(mode == FinderMode.FIND, directionToggleBox);
+        if (mode != FinderMode.FIND)
+            directionDown.setSelected(true);
+    }
+
+    private static void hide(Node... nodes) {
+        setShown(false, nodes);
+    }
+
+    private static void setShown(boolean shown, Node... nodes) {
+        for (Node node : nodes) {
+            node.setVisible(shown);
+            node.setManaged(shown);
         }
     }
 
@@ -80,68 +204,108 @@ public class FinderController {
 
     @FXML
     private void onFindNext() {
-        int[] selectionBounds = findMatchBounds(textArea.getCaretPosition());
-
-        if (selectionBounds[0] == -1) {
-            notFoundAlert();
-        } else {
-            textArea.selectRange(selectionBounds[0], selectionBounds[1]);
-        }
+        find(directionUp.isSelected());
     }
 
-    public int[] findMatchBounds(int startIndex) {
-        int[] bounds = new int[] {-1, 0};
-        String textAreaContent = textArea.getText();
-        String findFieldText = findField.getText();
-        int flags = 0;
-
-        //TODO: Find a better way to search backwards
-        if (directionUp.isSelected()) {
-            int endIndex = startIndex <= -1 ? startIndex * -1 : textArea.getSelection().getStart();
-            startIndex = 0;
-            textAreaContent = textAreaContent.substring(startIndex, endIndex);
-            if (!regExCheckBox.isSelected()) {
-                if (!matchCaseCheckBox.isSelected()) {
-                    textAreaContent = textAreaContent.toLowerCase();
-                    findFieldText = findFieldText.toLowerCase();
-                }
-                startIndex = textAreaContent.lastIndexOf(findFieldText);
-                startIndex = startIndex == -1 ? 0 : startIndex;
-            } else {
-                findFieldText += "(?!.*" + findFieldText + ")";
-            }
-        }
+    // F3 and Shift+F3, also once the finder is closed
+    public void findNext() {
+        find(false);
+    }
 
-        if (!matchCaseCheckBox.isSelected())
-            flags = flags | Pattern.CASE_INSENSITIVE;
+    public void findPrevious() {
+        find(true);
+    }
 
-        if (!regExCheckBox.isSelected())
-            flags = flags | Pattern.LITERAL;
+    private void find(boolean backward) {
+        if (!compilePattern())
+            return;
+        matchIndex.setPattern(pattern);
+
+        int from = backward ? textView.getSelection().getStart() : textView.getCaretPosition();
+        if (matchIndex.isExact()) {
+            // every match is known, so this is a binary search
+            int index = backward ? matchIndex.previousMatch(from) : matchIndex.nextMatch(from);
+            if (index == -1 && wrapAroundCheckBox.isSelected() && matchIndex.size() > 0)
+                index = backward ? matchIndex.size() - 1 : 0;
+            if (index == -1)
+                notFoundAlert();
+            else
+                textView.selectRange(matchIndex.getStart(index), matchIndex.getEnd(index));
+            return;
+        }
 
-        pattern = Pattern.compile(findFieldText, flags);
+        findMatchBounds(from, backward, bounds -> {
+            if (bounds[0] == -1) {
+                notFoundAlert();
+            } else {
+                textView.selectRange(bounds[0], bounds[1]);
+            }
+        });
+    }
 
-        Matcher matcher = pattern.matcher(textAreaContent);
+    private void updateMatchIndex() {
+        Pattern pattern = null;
+        if (!findField.getText().isEmpty()) {
+            try {
+                pattern = searchEngine.compile(findField.getText(), regExCheckBox.isSelected(),
+                        matchCaseCheckBox.isSelected());
+            } catch (PatternSyntaxException ignored) {
+                // reported when the user actually searches
+            }
+        }
+        matchIndex.setPattern(pattern);
+        updateMatchCount();
+    }
 
-        if(matcher.find(startIndex)) {
-            bounds[0] = matcher.start();
-            bounds[1] = matcher.end();
+    // "3 of 12" when a match is selected, otherwise how many there are
+    private void updateMatchCount() {
+        if (matchIndex.getPattern() == null) {
+            matchCountLabel.setText("");
+        } else if (!matchIndex.isReady()) {
+            matchCountLabel.setText("Counting...");
+        } else {
+            IndexRange selection = textView.getSelection();
+            int index = matchIndex.indexOf(selection.getStart(), selection.getEnd());
+            String total = matchIndex.size() + (matchIndex.isTruncated() ? "+" : "");
+            if (index != -1)
+                matchCountLabel.setText((index + 1) + " of " + total);
+            else
+                matchCountLabel.setText(total + (matchIndex.size() == 1 ? " match" : " matches"));
+        }
+    }
 
-        } else if (wrapAroundCheckBox.isSelected()) {
-            Matcher newMatcher = pattern.matcher(textArea.getText());
+    // searches off the application thread; onFound gets {-1, 0} if nothing matched
+    private void findMatchBounds(int from, boolean backward, Consumer<int[]> onFound) {
+        if (!compilePattern())
+            return;
+
+        Document document = textView.getDocument();
+        CharSequence snapshot = document.snapshot();
+        searchEngine.find(snapshot, pattern, from, backward, wrapAroundCheckBox.isSelected(), bounds -> {
+            // the text changed under the search, look again in what is there now
+            if (textView.getDocument() == document && document.snapshot() != snapshot)
+                findMatchBounds(Math.min(from, document.length()), backward, onFound);
+            else if (textView.getDocument() == document)
+                onFound.accept(bounds);
+        });
+    }
 
-            if (newMatcher.find()) {
-                if (directionDown.isSelected())
-                    bounds = findMatchBounds(0);
-                else
-                    bounds = findMatchBounds(textArea.getText().length() * -1);
-            }
+    private boolean compilePattern() {
+        try {
+            pattern = searchEngine.compile(findField.getText(), regExCheckBox.isSelected(),
+                    matchCaseCheckBox.isSelected());
+            return true;
+        } catch (PatternSyntaxException e) {
+            alert(e.getDescription());
+            return false;
         }
-
-        return bounds;
     }
 
     @FXML
     private void onCancel() {
+        searchEngine.cancel();
+        if (fileSearch != null)
+            fileSearch.cancel();
         finderStage.close();
     }
 
@@ -151,33 +315,146 @@ public class FinderController {
 
     @FXML
     private void onReplace() {
-        if (textArea.selectedTextProperty().length().intValue() != 0) {
-            String textToReplace = textArea.getSelectedText();
+        IndexRange selection = textView.getSelection();
+        if (selection.getLength() != 0 && textView.isEditable() && compilePattern()) {
+            CharSequence textToReplace = textView.getDocument().subSequence(selection.getStart(), selection.getEnd());
             Matcher matcher = pattern.matcher(textToReplace);
             String textReplacement = matcher.replaceFirst(replaceField.getText());
 
-            textArea.replaceSelection(textReplacement);
+            textView.replaceSelection(textReplacement);
         }
         onFindNext();
     }
 
+    // the replacements are worked out in the background and made as one edit,
+    // which is also a single undo step; timed until the edit is made, or
+    // until the run is given up
     @FXML
     private void onReplaceAll() {
-        findMatchBounds(0);
-        String textToReplace = textArea.getText();
-        Matcher matcher = pattern.matcher(textToReplace);
-        String textReplacement = matcher.replaceAll(replaceField.getText());
+        if (!textView.isEditable() || !compilePattern())
+            return;
+        replaceAll(Metrics.REPLACE_ALL.start(pattern));
+    }
+
+    private void replaceAll(Metrics.Timing timing) {
+        Document document = textView.getDocument();
+        CharSequence snapshot = document.snapshot();
+        searchEngine.replaceAll(snapshot, pattern, replaceField.getText(), batch -> {
+            if (textView.getDocument() != document || !textView.isEditable()) {
+                timing.end();
+                return;
+            }
+            // the text changed in the meantime, work it out again
+            if (document.snapshot() != snapshot) {
+                if (compilePattern())
+                    replaceAll(timing);
+                else
+                    timing.end();
+                return;
+            }
+            document.replace(batch);
+            timing.end(2L * snapshot.length());
+            alert(batch.size() == 1 ? "Replaced 1 occurrence" : "Replaced " + batch.size() + " occurrences");
+        }, error -> {
+            timing.fail(error);
+            alert(error.getMessage());
+        }, timing::end);
+    }
+
+    /* * * * * * * * * * * *\
+     *  FIND IN FILES MODE  *
+    \* * * * * * * * * * * */
+
+    private void initializeFindInFiles() {
+        directoryField.setText(directory.toString());
+        findAllButton.setDefaultButton(true);
+        // hits show up while the search goes on, changing the query starts over
+        InvalidationListener queryChanged = observable -> cancelFileSearch();
+        findField.textProperty().addListener(queryChanged);
+        regExCheckBox.selectedProperty().addListener(queryChanged);
+        matchCaseCheckBox.selectedProperty().addListener(queryChanged);
+        directoryField.textProperty().addListener(queryChanged);
+
+        resultsList.setOnMouseClicked(event -> {
+            if (event.getButton() == MouseButton.PRIMARY && event.getClickCount() == 2)
+                openSelectedHit();
+        });
+        resultsList.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.ENTER) {
+                event.consume();
+                openSelectedHit();
+            }
+        });
+        finderStage.setOnHidden(event -> cancelFileSearch());
+    }
+
+    @FXML
+    private void onFindAll() {
+        if (findField.getText().isEmpty() || !compilePattern())
+            return;
+        Path directory = Paths.get(directoryField.getText().trim());
+        if (!Files.isDirectory(directory)) {
+            alert("Cannot find the folder \"" + directoryField.getText() + "\"");
+            return;
+        }
+
+        cancelFileSearch();
+        resultsList.getItems().clear();
+        matchCountLabel.setText("Searching...");
+        FileSearch search = new FileSearch(directory, findField.getText(), regExCheckBox.isSelected(),
+                matchCaseCheckBox.isSelected(), pattern, hits -> {
+            resultsList.getItems().addAll(hits);
+            matchCountLabel.setText("Searching... " + resultsList.getItems().size() + " found");
+        }, () -> fileSearchDone(fileSearch));
+        fileSearch = search;
+        search.start();
+    }
+
+    // "12 lines in 3 of 4000 files"
+    private void fileSearchDone(FileSearch search) {
+        fileSearch = null;
+        int lines = resultsList.getItems().size();
+        String total = lines + (search.isTruncated() ? "+" : "");
+        matchCountLabel.setText(total + (lines == 1 ? " line in " : " lines in ") + search.getFilesMatched()
+                + " of " + search.getFilesSearched() + " files");
+    }
+
+    private void cancelFileSearch() {
+        if (fileSearch == null)
+            return;
+        fileSearch.cancel();
+        fileSearch = null;
+        matchCountLabel.setText("");
+    }
 
-        textArea.replaceText(0, textArea.getLength(), textReplacement);
+    @FXML
+    private void onBrowse() {
+        DirectoryChooser chooser = new DirectoryChooser();
+        File current = new File(directoryField.getText().trim());
+        if (current.isDirectory())
+            chooser.setInitialDirectory(current);
+        File chosen = chooser.showDialog(finderStage);
+        if (chosen != null)
+            directoryField.setText(chosen.getPath());
+    }
+
+    private void openSelectedHit() {
+        FileSearch.Hit hit = resultsList.getSelectionModel().getSelectedItem();
+        if (hit != null)
+            onOpenHit.accept(hit);
     }
 
     private void notFoundAlert() {
+        alert("Cannot Find \"" + findField.getText() + "\"");
+    }
+
+    private void alert(String message) {
         Alert alert = new Alert(Alert.AlertType.INFORMATION);
         alert.setHeaderText(null);
         alert.setTitle("Memobook");
-        alert.setContentText("Cannot Find \"" + findField.getText() + "\"");
+        alert.setContentText(message);
         Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
-        stage.getIcons().add(new Image(getClass().getResourceAsStream("resources/icon.png")));
+        stage.getIcons().add(EditorMain.icon());
         stage.show();
     }
 
@@ -0,0 +1,64 @@
+package editor;
+
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+
+// Splits a line of text into styled spans. A grammar whose lines depend on
+// the ones before them, like a CSV field running over several lines, hands
+// a state from each line to the next; every document starts in state 0.
+// Such a grammar is lexed on a background thread as well as the application
+// thread, so it mustn't keep anything between calls.
+public interface Grammar {
+
+    enum Style {
+        ERROR, WARNING, INFO, DEBUG, TIMESTAMP,
+        KEY, STRING, NUMBER, LITERAL, PUNCTUATION,
+        COLUMN_1, COLUMN_2, COLUMN_3, COLUMN_4, COLUMN_5, COLUMN_6;
+
+        private static final Style[] COLUMNS = {COLUMN_1, COLUMN_2, COLUMN_3, COLUMN_4, COLUMN_5, COLUMN_6};
+
+        // columns take turns through a handful of styles
+        public static Style column(int index) {
+            return COLUMNS[index % COLUMNS.length];
+        }
+    }
+
+    interface SpanConsumer {
+        void accept(int start, int end, Style style);
+    }
+
+    // Lexes [start, end) of text, one line without its line break, starting
+    // in state. Passes each styled span to spans unless it is null, and
+    // returns the state the next line starts in.
+    int lex(CharSequence text, int start, int end, int state, SpanConsumer spans);
+
+    // false if every line starts in state 0, so no line needs the ones before it lexed
+    default boolean carriesState() {
+        return false;
+    }
+
+    // JSON starts with an object or array, and logs with a timestamp
+    Pattern JSON_START = Pattern.compile("\\s*[\\[{]");
+    Pattern LOG_START = Pattern.compile("\\s*\\[?(\\d{4}-\\d{2}-\\d{2}[T ])?\\d{2}:\\d{2}:\\d{2}");
+
+    // by the file's extension, or else by how the text starts; null for plain text
+    static Grammar forFile(Path file, CharSequence text) {
+        String name = file == null ? "" : file.getFileName().toString().toLowerCase();
+        if (name.endsWith(".log"))
+            return new LogGrammar();
+        if (name.endsWith(".json"))
+            return new JsonGrammar();
+        if (name.endsWith(".csv"))
+            return new CsvGrammar(',');
+        if (name.endsWith(".tsv"))
+            return new CsvGrammar('\t');
+
+        CharSequence start = text.subSequence(0, Math.min(text.length(), 256));
+        if (JSON_START.matcher(start).lookingAt())
+            return new JsonGrammar();
+        if (LOG_START.matcher(start).lookingAt())
+            return new LogGrammar();
+        return null;
+    }
+
+}
@@ -0,0 +1,62 @@
+package editor;
+
+// Text that fits comfortably on the heap, with its line feeds indexed up front.
+final class HeapText implements TextBuffer {
+
+    private final String text;
+    private final IntArray lineFeeds = new IntArray();
+    private final boolean lossy;
+
+    HeapText(String text) {
+        this(text, false);
+    }
+
+    HeapText(String text, boolean lossy) {
+        this.text = text;
+        this.lossy = lossy;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1))
+            lineFeeds.add(i);
+    }
+
+    @Override
+    public int lineFeedsBefore(int index) {
+        return lineFeeds.upperBound(index - 1);
+    }
+
+    @Override
+    public int lineFeedAt(int n) {
+        return lineFeeds.get(n);
+    }
+
+    // a String may store Latin-1 text a byte a char, this counts two
+    @Override
+    public long heapBytes() {
+        return 2L * text.length() + lineFeeds.heapBytes();
+    }
+
+    @Override
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+}
@@ -0,0 +1,552 @@
+package editor;
+
+import javafx.application.Platform;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.Group;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
+import javafx.scene.layout.CornerRadii;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.ClosePath;
+import javafx.scene.shape.LineTo;
+import javafx.scene.shape.MoveTo;
+import javafx.scene.shape.Path;
+import javafx.scene.shape.PathElement;
+import javafx.scene.shape.Rectangle;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongConsumer;
+
+// Read-only view of a PagedFile as rows of sixteen bytes: the offset, the
+// bytes in hex and the same bytes as Latin-1 characters. Only the rows in
+// the viewport get a Text node, each filled from the page cache on layout,
+// so a file of any size scrolls at the same cost. The selection is a range
+// of bytes and always covers the one at the caret.
+public class HexView extends Region {
+
+    public static final int ROW_BYTES = 16;
+
+    private static final ExecutorService searcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-hex-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScrollBar scrollBar = new ScrollBar();
+
+    private final Group content = new Group();
+
+    private final Rectangle clip = new Rectangle();
+
+    private final Path selection = new Path();
+
+    // one per visible row, reused as the view scrolls
+    private final List<Text> rows = new ArrayList<>();
+
+    private final ObjectProperty<Font> font = new SimpleObjectProperty<>(this, "font", Font.font("Monospaced", 14));
+
+    private final ReadOnlyLongWrapper caretPosition = new ReadOnlyLongWrapper(this, "caretPosition");
+
+    private long anchor;
+
+    private PagedFile file;
+
+    // the row at the top of the viewport
+    private long topRow;
+
+    // the font's metrics, it is taken to be monospaced
+    private double charWidth;
+    private double rowHeight;
+
+    // digits in the offset column, enough for the last offset in the file
+    private int offsetDigits = 8;
+
+    private final byte[] rowBytes = new byte[ROW_BYTES];
+    private final StringBuilder rowText = new StringBuilder();
+
+    private Search search;
+
+    private boolean stale = true;
+
+
+    // Constructor
+
+    public HexView() {
+        getStyleClass().add("hex-view");
+        setFocusTraversable(true);
+        setBackground(new Background(new BackgroundFill(Color.WHITE, CornerRadii.EMPTY, Insets.EMPTY)));
+
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.valueProperty().addListener(observable -> {
+            long row = (long) scrollBar.getValue();
+            if (row != topRow) {
+                topRow = row;
+                markStale();
+            }
+        });
+        selection.setFill(Color.rgb(0, 120, 215, 0.3));
+        selection.setStroke(null);
+        content.getChildren().add(selection);
+        content.setClip(clip);
+        getChildren().addAll(content, scrollBar);
+
+        font.addListener(observable -> {
+            measureFont();
+            markStale();
+        });
+        measureFont();
+
+        addEventHandler(KeyEvent.KEY_PRESSED, this::onKeyPressed);
+        addEventHandler(MouseEvent.MOUSE_PRESSED, this::onMousePressed);
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, this::onMouseDragged);
+        addEventHandler(ScrollEvent.SCROLL, this::onScroll);
+    }
+
+
+    // File
+
+    public PagedFile getFile() {
+        return file;
+    }
+
+    // null shows nothing
+    public void setFile(PagedFile file) {
+        cancelSearch();
+        this.file = file;
+        long size = file == null ? 0 : file.size();
+        offsetDigits = Math.max(8, (64 - Long.numberOfLeadingZeros(Math.max(1, size - 1)) + 3) / 4);
+        anchor = 0;
+        caretPosition.set(0);
+        setTopRow(0);
+    }
+
+    private long rowCount() {
+        return file == null ? 0 : (file.size() + ROW_BYTES - 1) / ROW_BYTES;
+    }
+
+
+    // Selection
+
+    public ReadOnlyLongProperty caretPositionProperty() {
+        return caretPosition.getReadOnlyProperty();
+    }
+
+    public long getCaretPosition() {
+        return caretPosition.get();
+    }
+
+    public long getSelectionStart() {
+        return Math.min(anchor, caretPosition.get());
+    }
+
+    // just past the last byte selected
+    public long getSelectionEnd() {
+        return file == null || file.size() == 0 ? 0 : Math.max(anchor, caretPosition.get()) + 1;
+    }
+
+    // selects [start, end) and scrolls to it, end is at least one past start
+    public void selectRange(long start, long end) {
+        anchor = clamp(start);
+        caretPosition.set(clamp(Math.max(start, end - 1)));
+        scrollToCaret();
+        markStale();
+    }
+
+    // moves the caret to offset, bringing its row to the top
+    public void seek(long offset) {
+        selectRange(offset, offset + 1);
+        setTopRow(clamp(offset) / ROW_BYTES);
+    }
+
+    // the selected bytes in hex, at most limit of them
+    public String getSelectedHex(int limit) {
+        if (file == null)
+            return "";
+        int length = (int) Math.min(limit, getSelectionEnd() - getSelectionStart());
+        byte[] bytes = new byte[length];
+        int count = file.read(getSelectionStart(), bytes, 0, length);
+        StringBuilder hex = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                hex.append(' ');
+            appendHex(hex, bytes[i]);
+        }
+        return hex.toString();
+    }
+
+    private long clamp(long offset) {
+        long last = file == null ? 0 : Math.max(0, file.size() - 1);
+        return Math.max(0, Math.min(offset, last));
+    }
+
+    private void moveCaret(long offset, boolean extend) {
+        caretPosition.set(clamp(offset));
+        if (!extend)
+            anchor = caretPosition.get();
+        scrollToCaret();
+        markStale();
+    }
+
+    private void scrollToCaret() {
+        long row = caretPosition.get() / ROW_BYTES;
+        int fullRows = fullRows();
+        if (row < topRow)
+            setTopRow(row);
+        else if (row >= topRow + fullRows)
+            setTopRow(row - fullRows + 1);
+    }
+
+    // the scroll bar's range goes first, it would cut the row down to the old one
+    private void setTopRow(long row) {
+        topRow = Math.max(0, Math.min(row, maxTopRow()));
+        scrollBar.setMax(maxTopRow());
+        scrollBar.setValue(topRow);
+        markStale();
+    }
+
+
+    // Searching
+
+    // Selects the next occurrence of pattern after the selection, or before it
+    // going backward. The file is searched in the background; onNotFound
+    // runs if there is none.
+    public void find(byte[] pattern, boolean backward, Runnable onNotFound) {
+        if (file == null || pattern.length == 0)
+            return;
+        cancelSearch();
+        Search search = new Search();
+        this.search = search;
+        PagedFile file = this.file;
+        long from = backward ? getSelectionStart() - 1 : getSelectionStart() + 1;
+        search.run(() -> backward
+                ? file.lastIndexOf(pattern, from, () -> search.cancelled)
+                : file.indexOf(pattern, from, () -> search.cancelled), found -> {
+            if (found == -1)
+                onNotFound.run();
+            else
+                selectRange(found, found + pattern.length);
+        });
+    }
+
+    private void cancelSearch() {
+        if (search != null)
+            search.cancelled = true;
+        search = null;
+    }
+
+    private interface LongTask {
+        long run();
+    }
+
+    private class Search {
+        private volatile boolean cancelled;
+
+        void run(LongTask task, LongConsumer onResult) {
+            searcher.execute(() -> {
+                long found;
+                try {
+                    found = task.run();
+                } catch (CancellationException e) {
+                    return;
+                }
+                Platform.runLater(() -> {
+                    if (cancelled)
+                        return;
+                    search = null;
+                    onResult.accept(found);
+                });
+            });
+        }
+    }
+
+    // The bytes a query stands for: hex digits, with or without spaces, or
+    // text in double quotes, taken as UTF-8. Null if it is neither.
+    public static byte[] parsePattern(String query) {
+        String trimmed = query.trim();
+        if (trimmed.length() >= 2 && trimmed.startsWith("\"") && trimmed.endsWith("\""))
+            return trimmed.substring(1, trimmed.length() - 1).getBytes(StandardCharsets.UTF_8);
+
+        String digits = trimmed.replaceAll("\\s+", "");
+        if (digits.startsWith("0x") || digits.startsWith("0X"))
+            digits = digits.substring(2);
+        if (digits.isEmpty() || digits.length() % 2 != 0)
+            return null;
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(digits.charAt(2 * i), 16);
+            int low = Character.digit(digits.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0)
+                return null;
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+
+    // Properties
+
+    public final ObjectProperty<Font> fontProperty() {
+        return font;
+    }
+
+    public final Font getFont() {
+        return font.get();
+    }
+
+    public final void setFont(Font font) {
+        this.font.set(font);
+    }
+
+
+    // Layout
+
+    private void measureFont() {
+        Text probe = new Text("0");
+        probe.setFont(font.get());
+        charWidth = probe.getLayoutBounds().getWidth();
+        rowHeight = Math.ceil(probe.getLayoutBounds().getHeight());
+        if (rowHeight <= 0)
+            rowHeight = 1;
+    }
+
+    private void markStale() {
+        stale = true;
+        requestLayout();
+    }
+
+    // rows that fit in the viewport whole
+    private int fullRows() {
+        return Math.max(1, (int) (getHeight() / rowHeight));
+    }
+
+    private long maxTopRow() {
+        return Math.max(0, rowCount() - fullRows());
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double width = getWidth();
+        double height = getHeight();
+        double barWidth = scrollBar.prefWidth(-1);
+        scrollBar.resizeRelocate(width - barWidth, 0, barWidth, height);
+        clip.setWidth(width - barWidth);
+        clip.setHeight(height);
+
+        int fullRows = fullRows();
+        scrollBar.setMax(maxTopRow());
+        scrollBar.setVisibleAmount(fullRows);
+        scrollBar.setBlockIncrement(fullRows);
+        scrollBar.setUnitIncrement(1);
+        if (topRow > maxTopRow()) {
+            topRow = maxTopRow();
+            scrollBar.setValue(topRow);
+            stale = true;
+        }
+
+        int visibleRows = (int) Math.ceil(height / rowHeight);
+        if (rows.size() != visibleRows)
+            stale = true;
+        if (stale)
+            refresh(visibleRows);
+    }
+
+    private void refresh(int visibleRows) {
+        stale = false;
+        while (rows.size() < visibleRows) {
+            Text row = new Text();
+            row.setTextOrigin(VPos.TOP);
+            rows.add(row);
+            content.getChildren().add(row);
+        }
+        while (rows.size() > visibleRows)
+            content.getChildren().remove(rows.remove(rows.size() - 1));
+
+        List<PathElement> selected = new ArrayList<>();
+        long selectionStart = getSelectionStart();
+        long selectionEnd = getSelectionEnd();
+        long rowCount = rowCount();
+        for (int i = 0; i < rows.size(); i++) {
+            Text row = rows.get(i);
+            row.setFont(font.get());
+            row.setLayoutY(i * rowHeight);
+            long index = topRow + i;
+            if (index >= rowCount) {
+                row.setText("");
+                continue;
+            }
+            long start = index * ROW_BYTES;
+            int count = file.read(start, rowBytes, 0, ROW_BYTES);
+            row.setText(formatRow(start, count));
+
+            // the selected part of the row, in both columns
+            long from = Math.max(selectionStart, start);
+            long to = Math.min(selectionEnd, start + count);
+            if (from < to) {
+                int first = (int) (from - start);
+                int last = (int) (to - start) - 1;
+                double y = i * rowHeight;
+                addBox(selected, hexColumn(first), hexColumn(last) + 2, y);
+                addBox(selected, textColumn(first), textColumn(last) + 1, y);
+            }
+        }
+        selection.getElements().setAll(selected);
+    }
+
+    // "0000fff0  48 65 6c 6c 6f 20 77 6f  72 6c 64 0a 00 00 00 00  Hello world....."
+    private String formatRow(long start, int count) {
+        StringBuilder text = rowText;
+        text.setLength(0);
+        String offset = Long.toHexString(start);
+        for (int i = offset.length(); i < offsetDigits; i++)
+            text.append('0');
+        text.append(offset).append("  ");
+        for (int i = 0; i < ROW_BYTES; i++) {
+            if (i < count)
+                appendHex(text, rowBytes[i]);
+            else
+                text.append("  ");
+            text.append(i == ROW_BYTES / 2 - 1 ? "  " : " ");
+        }
+        text.append(' ');
+        for (int i = 0; i < count; i++) {
+            int b = rowBytes[i] & 0xFF;
+            // Latin-1 has no characters for the controls
+            text.append(b < 0x20 || b >= 0x7F && b < 0xA0 ? '.' : (char) b);
+        }
+        return text.toString();
+    }
+
+    private static void appendHex(StringBuilder text, byte b) {
+        text.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+
+    // the column the hex digits of byte i of a row start in
+    private int hexColumn(int i) {
+        return offsetDigits + 2 + i * 3 + (i >= ROW_BYTES / 2 ? 1 : 0);
+    }
+
+    // the column byte i of a row is shown in as a character
+    private int textColumn(int i) {
+        return offsetDigits + 2 + ROW_BYTES * 3 + 2 + i;
+    }
+
+    private void addBox(List<PathElement> elements, int fromColumn, int toColumn, double y) {
+        double left = fromColumn * charWidth;
+        double right = toColumn * charWidth;
+        elements.add(new MoveTo(left, y));
+        elements.add(new LineTo(right, y));
+        elements.add(new LineTo(right, y + rowHeight));
+        elements.add(new LineTo(left, y + rowHeight));
+        elements.add(new ClosePath());
+    }
+
+    @Override
+    protected double computePrefWidth(double height) {
+        return textColumn(ROW_BYTES) * charWidth + scrollBar.prefWidth(-1) + 8;
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        return rowHeight * 20;
+    }
+
+
+    // Input
+
+    private void onKeyPressed(KeyEvent event) {
+        if (file == null)
+            return;
+        long caret = caretPosition.get();
+        boolean extend = event.isShiftDown();
+        long page = (long) fullRows() * ROW_BYTES;
+        switch (event.getCode()) {
+            case LEFT:
+                moveCaret(caret - 1, extend);
+                break;
+            case RIGHT:
+                moveCaret(caret + 1, extend);
+                break;
+            case UP:
+                moveCaret(caret - ROW_BYTES, extend);
+                break;
+            case DOWN:
+                moveCaret(caret + ROW_BYTES, extend);
+                break;
+            case PAGE_UP:
+                moveCaret(caret - page, extend);
+                break;
+            case PAGE_DOWN:
+                moveCaret(caret + page, extend);
+                break;
+            case HOME:
+                moveCaret(event.isShortcutDown() ? 0 : caret - caret % ROW_BYTES, extend);
+                break;
+            case END:
+                moveCaret(event.isShortcutDown() ? file.size() - 1 : caret - caret % ROW_BYTES + ROW_BYTES - 1, extend);
+                break;
+            default:
+                return;
+        }
+        event.consume();
+    }
+
+    private void onMousePressed(MouseEvent event) {
+        if (event.getX() >= scrollBar.getLayoutX())
+            return;
+        requestFocus();
+        long offset = offsetAt(event.getX(), event.getY());
+        if (offset >= 0)
+            moveCaret(offset, event.isShiftDown());
+    }
+
+    private void onMouseDragged(MouseEvent event) {
+        if (event.getX() >= scrollBar.getLayoutX())
+            return;
+        long offset = offsetAt(event.getX(), event.getY());
+        if (offset >= 0)
+            moveCaret(offset, true);
+    }
+
+    // the byte under a point in either column, or -1
+    private long offsetAt(double x, double y) {
+        if (file == null)
+            return -1;
+        long row = topRow + (long) Math.floor(Math.max(0, y) / rowHeight);
+        int column = (int) Math.floor(x / charWidth);
+        int i;
+        if (column >= textColumn(0))
+            i = column - textColumn(0);
+        else if (column >= hexColumn(0))
+            i = Math.min(ROW_BYTES - 1, (column - hexColumn(0) - (column >= hexColumn(ROW_BYTES / 2) ? 1 : 0)) / 3);
+        else
+            i = 0;
+        return clamp(row * ROW_BYTES + Math.min(i, ROW_BYTES - 1));
+    }
+
+    private void onScroll(ScrollEvent event) {
+        if (event.getDeltaY() == 0)
+            return;
+        double rows = -event.getDeltaY() / rowHeight;
+        setTopRow(topRow + Math.round(rows));
+        event.consume();
+    }
+
+}
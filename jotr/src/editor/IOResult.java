@@ -3,16 +3,45 @@ package editor;
 public class IOResult<T> {
     private final T data;
     private final boolean ok;
+    private final double progress;
+    private final Exception error;
 
     public IOResult(T data, boolean ok) {
+        this(data, ok, 1, null);
+    }
+
+    public IOResult(T data, boolean ok, double progress, Exception error) {
         this.data = data;
         this.ok = ok;
+        this.progress = progress;
+        this.error = error;
+    }
+
+    // an operation that is still running, done the given fraction of the way
+    public static <T> IOResult<T> inProgress(double progress) {
+        return new IOResult<>(null, true, progress, null);
+    }
+
+    public static <T> IOResult<T> failed(Exception error) {
+        return new IOResult<>(null, false, 1, error);
     }
 
     public boolean isOk() {
         return ok;
     }
 
+    public boolean isDone() {
+        return !ok || progress >= 1;
+    }
+
+    public double getProgress() {
+        return progress;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
     public boolean hasData() {
         return data != null;
     }
@@ -0,0 +1,73 @@
+package editor;
+
+import java.util.Arrays;
+
+// Growable primitive int list written by one thread and read by any number of
+// others. Values are published by the volatile size, so a reader that sees a
+// size also sees every value below it.
+final class IntArray {
+
+    private volatile int[] values;
+    private volatile int size;
+
+    IntArray() {
+        this(16);
+    }
+
+    IntArray(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    // takes over values as they are
+    IntArray(int[] values) {
+        this.values = values.length == 0 ? new int[1] : values;
+        size = values.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return values[index];
+    }
+
+    void add(int value) {
+        int[] values = this.values;
+        int size = this.size;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
+            this.values = values;
+        }
+        values[size] = value;
+        this.size = size + 1;
+    }
+
+    // what the values take up on the heap, room to grow included
+    long heapBytes() {
+        return 4L * values.length;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    // index of the first value greater than key, values must be sorted
+    int upperBound(int key) {
+        int size = this.size;
+        int[] values = this.values;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
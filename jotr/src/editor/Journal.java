@@ -0,0 +1,544 @@
+package editor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Append-only journal of a document's unsaved edits, so they can be brought
+// back after a crash. The file starts with what the document was based on:
+// the file on disk, going by its size and time, or a checkpoint of the whole
+// text. Every edit after that is a record of where it happened, how much it
+// removed and what it inserted. The application thread only hands records
+// to the writer thread, which syncs them to disk at most every
+// SYNC_INTERVAL. Once the records outgrow the base the journal is compacted:
+// a new file with the text as it is now replaces the old one. While the
+// document's original text is still the file as it is on disk, the new
+// journal stays based on the file and only holds what the document puts
+// in place of parts of it, as a record per run of edited text. The journal
+// goes away as soon as the document has nothing unsaved. While a Journal
+// writes to its file it holds an exclusive lock on it, so another running
+// editor never recovers it from under it.
+public class Journal {
+
+    private static final int MAGIC = 0x4A4F5452;
+    private static final int VERSION = 1;
+
+    private static final byte BASE_FILE = 1;
+    private static final byte BASE_TEXT = 2;
+    private static final byte EDIT = 3;
+
+    // kind, offset, removed and inserted length
+    private static final int RECORD_HEADER = 13;
+
+    private static final long SYNC_INTERVAL = 500;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // compacted after this many records, or once they are larger than both this and the base
+    private static final int COMPACT_RECORDS = 1 << 16;
+    private static final long COMPACT_BYTES = 4L << 20;
+
+    // The journals this editor holds the lock of. Closing any channel to a
+    // file can let go of every lock the process has on it, so recovery
+    // doesn't even open these to try.
+    private static final Set<Path> held = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService writer;
+    private final Path path;
+    private final TextFile textFile;
+
+    // on the application thread: whether the journal file exists, and how
+    // much was recorded since its base
+    private boolean active;
+    private int records;
+    private long recordBytes;
+    private long baseBytes;
+    // the size and time of the file the document's original text was read
+    // from, or -1 once the file isn't known to still hold that text
+    private long originalSize = -1;
+    private long originalModified;
+
+    // on the writer thread
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private boolean syncPending;
+
+    public Journal(ScheduledExecutorService writer, Path path, TextFile textFile) {
+        this.writer = writer;
+        this.path = path;
+        this.textFile = textFile;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    // the document's original text is the file, as it was at this size and time
+    void readFrom(long size, long modified) {
+        originalSize = size;
+        originalModified = modified;
+    }
+
+    // RECORDING, on the application thread
+
+    // Called by the TextFile after every edit. The first edit to a file that
+    // was saved starts a journal based on the file; anything else that has no
+    // journal yet starts with a checkpoint, which already holds the edit.
+    void edited(Edit edit, boolean wasModified) {
+        if (edit.isExternal())
+            return;
+        if (!textFile.isModified()) {
+            discard();
+            return;
+        }
+        if (!active) {
+            if (wasModified || textFile.getFile() == null) {
+                checkpoint();
+                return;
+            }
+            start(null);
+        }
+
+        records++;
+        recordBytes += RECORD_HEADER + 2L * edit.getInsertedLength();
+        if (records > COMPACT_RECORDS || recordBytes > Math.max(COMPACT_BYTES, baseBytes)) {
+            checkpoint();
+            return;
+        }
+        // the inserted text is a view that later edits don't change, the writer reads it as it is
+        int offset = edit.getOffset();
+        int removedLength = edit.getRemovedLength();
+        CharSequence inserted = edit.getInserted();
+        submit(() -> writeEdit(offset, removedLength, inserted));
+    }
+
+    // After a save: with nothing left unsaved the journal goes, otherwise the
+    // file it was based on changed, so it starts over from the text.
+    void saved() {
+        originalSize = -1;
+        if (textFile.isModified())
+            checkpoint();
+        else
+            discard();
+    }
+
+    // starts over with the text as it is now, as edits to the file if it
+    // still holds the document's original text
+    void checkpoint() {
+        Document document = textFile.getDocument();
+        CharSequence text = document.snapshot();
+        if (originalSize < 0 || !(document instanceof PieceTable) || !(text instanceof PieceSequence)) {
+            start(text);
+            return;
+        }
+        PieceTable pieces = (PieceTable) document;
+        TextBuffer original = pieces.getOriginal();
+        int originalLength = pieces.getOriginalLength();
+        startBase();
+        Path file = textFile.getFile();
+        FileFormat format = textFile.getFormat();
+        long size = originalSize;
+        long modified = originalModified;
+        submit(() -> create(file, format, () -> {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.size() == size && attributes.lastModifiedTime().toMillis() == modified) {
+                putFileBase(file, size, modified);
+                putSplices((PieceSequence) text, original, originalLength);
+            } else {
+                putByte(BASE_TEXT);
+                putString(text);
+            }
+        }));
+    }
+
+    // the unsaved edits are given up on
+    public void discard() {
+        if (!active)
+            return;
+        active = false;
+        submit(() -> {
+            closeChannel(false);
+            Files.deleteIfExists(path);
+        });
+    }
+
+    // stops recording, whatever was recorded stays for the next start
+    public void close() {
+        submit(() -> closeChannel(true));
+    }
+
+    // text null to base the journal on the file
+    private void start(CharSequence text) {
+        startBase();
+        Path file = textFile.getFile();
+        FileFormat format = textFile.getFormat();
+        long size = originalSize;
+        long modified = originalModified;
+        if (text == null) {
+            submit(() -> create(file, format, () -> putFileBase(file, size, modified)));
+        } else {
+            submit(() -> create(file, format, () -> {
+                putByte(BASE_TEXT);
+                putString(text);
+            }));
+        }
+    }
+
+    private void startBase() {
+        active = true;
+        records = 0;
+        recordBytes = 0;
+        baseBytes = 2L * textFile.getDocument().length();
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    // A journal that fails to write stops, the document itself is fine.
+    private void submit(Step step) {
+        writer.execute(() -> {
+            try {
+                step.run();
+            } catch (IOException e) {
+                Metrics.failed("Journal " + path, e);
+                try {
+                    closeChannel(false);
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    // WRITING, on the writer thread
+
+    // The new file is written next to the old one and moved over it, so there
+    // is always one whole journal on disk. The new file is locked before it
+    // takes the old one's place, and the old one stays locked until then.
+    private void create(Path file, FileFormat format, Step putBase) throws IOException {
+        FileChannel previous = channel;
+        channel = null;
+        try {
+            write(file, format, putBase);
+        } finally {
+            if (previous != null)
+                previous.close();
+        }
+    }
+
+    private void write(Path file, FileFormat format, Step putBase) throws IOException {
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        if (!tryLock(channel))
+            throw new IOException(temp + " is in use");
+        held.add(path.toAbsolutePath());
+
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(VERSION);
+        putString(file == null ? "" : file.toAbsolutePath().toString());
+        putString(format.getCharset().name());
+        putByte(format.hasBom() ? (byte) 1 : 0);
+        putString(format.getLineSeparator());
+        putBase.run();
+        flush();
+        channel.force(false);
+
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // the file as it was at size and time, or as it is now for a size of -1
+    private void putFileBase(Path file, long size, long modified) throws IOException {
+        if (size < 0) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            size = attributes.size();
+            modified = attributes.lastModifiedTime().toMillis();
+        }
+        putByte(BASE_FILE);
+        putLong(size);
+        putLong(modified);
+    }
+
+    // Writes the edits that turn the first originalLength chars of the
+    // original text into text. Pieces of the original that come in order
+    // are kept where they are, anything else goes in as inserted text.
+    private void putSplices(PieceSequence text, TextBuffer original, int originalLength) throws IOException {
+        List<Splice> splices = new ArrayList<>();
+        int[] position = new int[2];
+        Splice[] pending = new Splice[1];
+        text.forEachPiece(0, text.length(), (buffer, start, end) -> {
+            int kept = position[1];
+            if (buffer != original || start < kept || end > originalLength) {
+                if (pending[0] == null)
+                    pending[0] = new Splice();
+                pending[0].add(buffer, start, end);
+                return;
+            }
+            if (start > kept || pending[0] != null)
+                position[0] = addSplice(splices, pending[0], position[0], start - kept);
+            pending[0] = null;
+            position[0] += end - start;
+            position[1] = end;
+        });
+        if (originalLength > position[1] || pending[0] != null)
+            addSplice(splices, pending[0], position[0], originalLength - position[1]);
+
+        for (Splice splice : splices) {
+            putByte(EDIT);
+            putInt(splice.offset);
+            putInt(splice.removedLength);
+            putInt(splice.insertedLength);
+            for (int i = 0; i < splice.buffers.size(); i++) {
+                CharSequence buffer = splice.buffers.get(i);
+                for (int j = splice.starts.get(i); j < splice.ends.get(i); j++) {
+                    if (this.buffer.remaining() < 2)
+                        flush();
+                    this.buffer.putChar(buffer.charAt(j));
+                }
+            }
+        }
+    }
+
+    // returns where the text after the splice starts
+    private static int addSplice(List<Splice> splices, Splice splice, int offset, int removedLength) {
+        if (splice == null)
+            splice = new Splice();
+        splice.offset = offset;
+        splice.removedLength = removedLength;
+        splices.add(splice);
+        return offset + splice.insertedLength;
+    }
+
+    // the ranges of buffers one edit puts in place of removedLength chars at offset
+    private static final class Splice {
+        int offset;
+        int removedLength;
+        int insertedLength;
+        final List<CharSequence> buffers = new ArrayList<>();
+        final IntArray starts = new IntArray();
+        final IntArray ends = new IntArray();
+
+        void add(CharSequence buffer, int start, int end) {
+            buffers.add(buffer);
+            starts.add(start);
+            ends.add(end);
+            insertedLength += end - start;
+        }
+    }
+
+    private void writeEdit(int offset, int removedLength, CharSequence inserted) throws IOException {
+        if (channel == null)
+            return;
+        buffer.clear();
+        putByte(EDIT);
+        putInt(offset);
+        putInt(removedLength);
+        putString(inserted);
+        flush();
+        scheduleSync();
+    }
+
+    // edits coming in meanwhile are synced along with this one
+    private void scheduleSync() {
+        if (syncPending)
+            return;
+        syncPending = true;
+        writer.schedule(() -> {
+            syncPending = false;
+            try {
+                if (channel != null)
+                    channel.force(false);
+            } catch (IOException e) {
+                Metrics.failed("Journal " + path, e);
+            }
+        }, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeChannel(boolean sync) throws IOException {
+        if (channel == null)
+            return;
+        FileChannel channel = this.channel;
+        this.channel = null;
+        try {
+            if (sync)
+                channel.force(false);
+        } finally {
+            channel.close();
+            held.remove(path.toAbsolutePath());
+        }
+    }
+
+    private void putByte(byte value) throws IOException {
+        if (buffer.remaining() < 1)
+            flush();
+        buffer.put(value);
+    }
+
+    private void putInt(int value) throws IOException {
+        if (buffer.remaining() < 4)
+            flush();
+        buffer.putInt(value);
+    }
+
+    private void putLong(long value) throws IOException {
+        if (buffer.remaining() < 8)
+            flush();
+        buffer.putLong(value);
+    }
+
+    // its length, then its chars as UTF-16
+    private void putString(CharSequence text) throws IOException {
+        putInt(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            if (buffer.remaining() < 2)
+                flush();
+            buffer.putChar(text.charAt(i));
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    // RECOVERY
+
+    // Rebuilds the document a journal left behind and marks it modified; the
+    // journal carries on recording it, through the channel that holds its
+    // lock. Returns null for a journal that another running editor holds. A
+    // journal based on a file that changed since can't be replayed and is
+    // left where it is. Records cut short by a crash end the replay, and the
+    // journal is then compacted straight away.
+    static TextFile recover(Path path, ScheduledExecutorService writer, EditorModel model) throws IOException {
+        if (held.contains(path.toAbsolutePath()))
+            return null;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (!tryLock(channel)) {
+                channel.close();
+                return null;
+            }
+            held.add(path.toAbsolutePath());
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(path + " is larger than 2 GB");
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (bytes.remaining() < 8 || bytes.getInt() != MAGIC || bytes.getInt() != VERSION)
+                throw new IOException(path + " is not a journal");
+
+            String fileName = getString(bytes);
+            Path file = fileName.isEmpty() ? null : Paths.get(fileName);
+            Charset charset = Charset.forName(getString(bytes));
+            boolean bom = bytes.get() != 0;
+            FileFormat format = new FileFormat(charset, bom, getString(bytes));
+
+            PieceTable document;
+            long originalSize = -1;
+            long originalModified = 0;
+            byte base = bytes.get();
+            if (base == BASE_FILE) {
+                long size = bytes.getLong();
+                long modified = bytes.getLong();
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attributes.size() != size || attributes.lastModifiedTime().toMillis() != modified)
+                    throw new IOException(file + " changed since " + path + " was written");
+                document = model.readDocument(file, format);
+                originalSize = size;
+                originalModified = modified;
+            } else if (base == BASE_TEXT) {
+                document = new PieceTable(getString(bytes));
+            } else {
+                throw new IOException(path + " is not a journal");
+            }
+
+            int records = 0;
+            long recordBytes = 0;
+            while (bytes.remaining() >= RECORD_HEADER && bytes.get(bytes.position()) == EDIT) {
+                int start = bytes.position();
+                bytes.get();
+                int offset = bytes.getInt();
+                int removedLength = bytes.getInt();
+                int insertedLength = bytes.getInt();
+                if (offset < 0 || removedLength < 0 || offset > document.length() - removedLength
+                        || insertedLength < 0 || insertedLength > bytes.remaining() / 2) {
+                    bytes.position(start);
+                    break;
+                }
+                char[] inserted = new char[insertedLength];
+                bytes.asCharBuffer().get(inserted);
+                bytes.position(bytes.position() + 2 * insertedLength);
+                document.replace(offset, offset + removedLength, new String(inserted));
+                records++;
+                recordBytes += RECORD_HEADER + 2L * insertedLength;
+            }
+
+            TextFile textFile = new TextFile(file, document, format);
+            textFile.markModified();
+            Journal journal = new Journal(writer, path, textFile);
+            journal.readFrom(originalSize, originalModified);
+            journal.active = true;
+            journal.records = records;
+            journal.recordBytes = recordBytes;
+            journal.baseBytes = 2L * document.length();
+            journal.submit(() -> journal.adopt(channel));
+            if (bytes.hasRemaining())
+                journal.checkpoint();
+            textFile.setJournal(journal);
+            return textFile;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            held.remove(path.toAbsolutePath());
+            throw e;
+        }
+    }
+
+    // carries on writing through the channel recovery locked the journal with
+    private void adopt(FileChannel channel) throws IOException {
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.channel = channel;
+        channel.position(channel.size());
+    }
+
+    // false if another editor, or another channel of this one, holds the lock
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    private static String getString(ByteBuffer bytes) throws IOException {
+        int length = bytes.getInt();
+        if (length < 0 || length > bytes.remaining() / 2)
+            throw new IOException("journal cut short");
+        char[] chars = new char[length];
+        bytes.asCharBuffer().get(chars);
+        bytes.position(bytes.position() + 2 * length);
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,70 @@
+package editor;
+
+// JSON tokens: keys, string values, numbers, true, false and null, and the
+// punctuation between them. JSON strings can't hold line breaks, so every
+// line stands on its own; a string left open runs to the end of its line.
+public class JsonGrammar implements Grammar {
+
+    @Override
+    public int lex(CharSequence text, int start, int end, int state, SpanConsumer spans) {
+        if (spans == null)
+            return 0;
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                int close = stringEnd(text, i, end);
+                spans.accept(i, close, isKey(text, close, end) ? Style.KEY : Style.STRING);
+                i = close;
+            } else if (c == '-' || c >= '0' && c <= '9') {
+                int last = i + 1;
+                while (last < end && isNumberPart(text.charAt(last)))
+                    last++;
+                spans.accept(i, last, Style.NUMBER);
+                i = last;
+            } else if (Character.isLetter(c)) {
+                int last = i + 1;
+                while (last < end && Character.isLetter(text.charAt(last)))
+                    last++;
+                String word = text.subSequence(i, last).toString();
+                if (word.equals("true") || word.equals("false") || word.equals("null"))
+                    spans.accept(i, last, Style.LITERAL);
+                i = last;
+            } else {
+                if (c == '{' || c == '}' || c == '[' || c == ']' || c == ',' || c == ':')
+                    spans.accept(i, i + 1, Style.PUNCTUATION);
+                i++;
+            }
+        }
+        return 0;
+    }
+
+    // right after the closing quote of the string opened at quote
+    private static int stringEnd(CharSequence text, int quote, int end) {
+        for (int i = quote + 1; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '"')
+                return i + 1;
+        }
+        return end;
+    }
+
+    // a string followed by a colon names a member
+    private static boolean isKey(CharSequence text, int from, int end) {
+        for (int i = from; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ':')
+                return true;
+            if (!Character.isWhitespace(c))
+                return false;
+        }
+        return false;
+    }
+
+    private static boolean isNumberPart(char c) {
+        return c >= '0' && c <= '9' || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-';
+    }
+
+}
@@ -0,0 +1,83 @@
+package editor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Durations in nanoseconds counted into buckets the way HdrHistogram does it:
+// each power of two is split into 16 buckets, so a percentile read back is
+// within about 6% of the real one whatever its size, from nanoseconds to
+// hours, in a fixed array of counts. Recording is an atomic add or two, from
+// any thread.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS >> 1;
+
+    // the first SUB_BUCKETS values get a bucket each, every power of two above them half as many
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * HALF_SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        total.add(nanos);
+        if (nanos > max.get())
+            max.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : total.sum() / count;
+    }
+
+    // The duration that percent of the recorded ones are at or under, as the
+    // top of its bucket, or 0 if nothing was recorded. Counts recorded while
+    // this adds them up may or may not be in it.
+    public long getPercentile(double percent) {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(highestInBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    // Buckets
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        // shifted down to 16..31, the shift picks the power of two and what is left the bucket in it
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestInBucket(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
@@ -0,0 +1,39 @@
+package editor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Log lines: the timestamp they start with and the first level word in them,
+// such as ERROR or WARN. Every line stands on its own.
+public class LogGrammar implements Grammar {
+
+    private static final Pattern TIMESTAMP = Pattern.compile(
+            "\\s*\\[?(\\d{4}-\\d{2}-\\d{2}[T ])?\\d{2}:\\d{2}:\\d{2}([.,]\\d+)?(Z|[+-]\\d{2}:?\\d{2})?]?");
+    private static final Pattern LEVEL = Pattern.compile(
+            "\\b(?:(FATAL|SEVERE|CRITICAL|ERROR)|(WARN|WARNING)|(INFO|NOTICE)|(DEBUG|TRACE|FINE|FINER|FINEST))\\b");
+
+    private final Matcher timestamp = TIMESTAMP.matcher("");
+    private final Matcher level = LEVEL.matcher("");
+
+    @Override
+    public int lex(CharSequence text, int start, int end, int state, SpanConsumer spans) {
+        if (spans == null)
+            return 0;
+        int levelFrom = start;
+        timestamp.reset(text).region(start, end);
+        if (timestamp.lookingAt() && timestamp.end() > timestamp.start()) {
+            spans.accept(timestamp.start(), timestamp.end(), Style.TIMESTAMP);
+            levelFrom = timestamp.end();
+        }
+        level.reset(text).region(levelFrom, end);
+        if (level.find()) {
+            Style style = level.group(1) != null ? Style.ERROR
+                    : level.group(2) != null ? Style.WARNING
+                    : level.group(3) != null ? Style.INFO
+                    : Style.DEBUG;
+            spans.accept(level.start(), level.end(), style);
+        }
+        return 0;
+    }
+
+}
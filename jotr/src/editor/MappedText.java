@@ -0,0 +1,448 @@
+package editor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Text backed by a memory-mapped file, in UTF-8, UTF-16 or a single-byte
+// charset. Nothing is decoded up front: a background pass walks the file in
+// blocks, recording the char offset each block starts at and where lines
+// start, and readers decode single blocks on demand. length() and the line
+// feeds grow as the pass advances.
+public class MappedText implements TextBuffer {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int CACHED_BLOCKS = 64;
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private volatile long size;
+    private final Charset charset;
+    // where the text starts, past any BOM
+    private final long textStart;
+
+    // the file is mapped, or when it is followed read through the channel
+    private final MappedByteBuffer[] segments;
+    private final FileChannel channel;
+
+    // Filled in by indexing and published through indexedBlocks. The arrays
+    // are replaced when they need to grow, so readers get indexedBlocks first.
+    private volatile long[] blockBytes;
+    private volatile int[] blockChars;
+    private volatile int indexedBlocks;
+    private volatile boolean indexed;
+    private volatile boolean lossy;
+    private IntArray lineFeeds = new IntArray();
+
+    private final Map<Integer, Block> cache = new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+    private volatile Block lastBlock;
+
+    private static final class Block {
+        final int start;
+        final char[] chars;
+
+        Block(int start, char[] chars) {
+            this.start = start;
+            this.chars = chars;
+        }
+    }
+
+    public MappedText(Path file, FileFormat format) throws IOException {
+        this(file, format, false);
+    }
+
+    // Text of a file that keeps growing, such as a log being written to. It
+    // starts out empty and grow() takes in the file a line at a time. It is
+    // read through a channel rather than mapped, because reading a mapping
+    // past the end of a file that was truncated in the meantime crashes.
+    public static MappedText following(Path file, FileFormat format) throws IOException {
+        return new MappedText(file, format, true);
+    }
+
+    private MappedText(Path file, FileFormat format, boolean follow) throws IOException {
+        charset = format.getCharset();
+        if (!charset.equals(StandardCharsets.UTF_8) && !isUtf16() && charset.newEncoder().maxBytesPerChar() != 1)
+            throw new IOException(charset + " files this large can't be opened");
+        textStart = format.getBomBytes().length;
+
+        if (follow) {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            segments = null;
+            size = textStart;
+        } else {
+            channel = null;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                size = channel.size();
+                // offsets into the document are ints, and none of these charsets has more chars than bytes
+                if (size > Integer.MAX_VALUE)
+                    throw new IOException(file + " is larger than 2 GB");
+
+                segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(SEGMENT_SIZE, size - position));
+                }
+            }
+        }
+
+        int blocks = (int) ((size - textStart + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        blockBytes = new long[blocks + 2];
+        blockChars = new int[blocks + 2];
+        blockBytes[0] = textStart;
+        indexed = size == textStart;
+    }
+
+    // how much of the file the text covers
+    public long getSize() {
+        return size;
+    }
+
+    // INDEXING
+
+    // runs the indexing pass on executor, calling onProgress from that thread
+    // every so often and once more when the whole file is indexed
+    public void index(Executor executor, Runnable onProgress) {
+        executor.execute(() -> {
+            indexBlocks(size, onProgress);
+            indexed = true;
+            onProgress.run();
+        });
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    // known once the pass has got to the bytes that didn't decode
+    @Override
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    // Takes in what was written to a followed file since the last call, up to
+    // the end of its last complete line, and returns whether there was any.
+    // A file that shrank is left to the caller to notice.
+    public boolean grow(Runnable onProgress) throws IOException {
+        long end = lastLineEnd(channel.size());
+        if (end <= size)
+            return false;
+        if (end > Integer.MAX_VALUE)
+            throw new IOException("the file has grown past 2 GB");
+        indexBlocks(end, onProgress);
+        size = end;
+        return true;
+    }
+
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    // Decodes the file from the end of what is indexed up to end, a block at a
+    // time, recording the char offset each block starts at and its line feeds.
+    private void indexBlocks(long end, Runnable onProgress) {
+        CharsetDecoder decoder = charset.newDecoder();
+        // aligning both ends to characters can stretch a block by a few bytes
+        CharBuffer chars = CharBuffer.allocate(BLOCK_SIZE + 4);
+        long lastProgress = System.nanoTime();
+
+        for (int block = indexedBlocks; blockBytes[block] < end; block++) {
+            if (block + 1 == blockBytes.length) {
+                blockBytes = Arrays.copyOf(blockBytes, blockBytes.length * 2);
+                blockChars = Arrays.copyOf(blockChars, blockChars.length * 2);
+            }
+            long start = blockBytes[block];
+            long blockEnd = alignToChar(Math.min(start + BLOCK_SIZE, end), end);
+            blockBytes[block + 1] = blockEnd;
+
+            chars.clear();
+            decodeNotingErrors(decoder, start, blockEnd, chars);
+            int base = blockChars[block];
+            for (int i = 0; i < chars.position(); i++)
+                if (chars.get(i) == '\n')
+                    lineFeeds.add(base + i);
+            blockChars[block + 1] = base + chars.position();
+            indexedBlocks = block + 1;
+
+            if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL) {
+                onProgress.run();
+                lastProgress = System.nanoTime();
+            }
+        }
+    }
+
+    // The index of a whole pass, for SessionStore to keep, and read back in
+    // place of running one. A file that is followed isn't indexed this way.
+
+    void writeIndex(DataOutputStream out) throws IOException {
+        int blocks = indexedBlocks;
+        out.writeInt(blocks);
+        for (int i = 0; i <= blocks; i++) {
+            out.writeLong(blockBytes[i]);
+            out.writeInt(blockChars[i]);
+        }
+        out.writeBoolean(lossy);
+        int[] lineFeeds = this.lineFeeds.toArray();
+        out.writeInt(lineFeeds.length);
+        for (int lineFeed : lineFeeds)
+            out.writeInt(lineFeed);
+    }
+
+    void readIndex(DataInputStream in) throws IOException {
+        int blocks = in.readInt();
+        long[] blockBytes = new long[blocks + 2];
+        int[] blockChars = new int[blocks + 2];
+        for (int i = 0; i <= blocks; i++) {
+            blockBytes[i] = in.readLong();
+            blockChars[i] = in.readInt();
+        }
+        if (blockBytes[0] != textStart || blockBytes[blocks] != size)
+            throw new IOException("the index doesn't cover the file");
+        boolean lossy = in.readBoolean();
+        int[] lineFeeds = new int[in.readInt()];
+        for (int i = 0; i < lineFeeds.length; i++)
+            lineFeeds[i] = in.readInt();
+
+        this.lineFeeds = new IntArray(lineFeeds);
+        this.blockBytes = blockBytes;
+        this.blockChars = blockChars;
+        indexedBlocks = blocks;
+        this.lossy = lossy;
+        indexed = true;
+    }
+
+    // just past the last line feed before position, or size if there is none after it
+    private long lastLineEnd(long position) throws IOException {
+        int unit = isUtf16() ? 2 : 1;
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long end = position - (position - textStart) % unit;
+        while (end > size) {
+            long start = Math.max(size, end - BLOCK_SIZE);
+            buffer.clear().limit((int) (end - start));
+            read(buffer, start);
+            for (long at = end - unit; at >= start; at -= unit)
+                if (isLineFeed(buffer, (int) (at - start)))
+                    return at + unit;
+            end = start;
+        }
+        return size;
+    }
+
+    private boolean isLineFeed(ByteBuffer buffer, int index) {
+        if (charset.equals(StandardCharsets.UTF_16BE))
+            return buffer.get(index) == 0 && buffer.get(index + 1) == '\n';
+        if (charset.equals(StandardCharsets.UTF_16LE))
+            return buffer.get(index) == '\n' && buffer.get(index + 1) == 0;
+        return buffer.get(index) == '\n';
+    }
+
+    @Override
+    public int lineFeedsBefore(int index) {
+        return lineFeeds.upperBound(index - 1);
+    }
+
+    @Override
+    public int lineFeedAt(int n) {
+        return lineFeeds.get(n);
+    }
+
+    // moves position forward, up to limit, so a block never starts
+    // mid-character: past UTF-8 continuation bytes, or to a whole UTF-16 unit
+    // that isn't the second half of a surrogate pair
+    private long alignToChar(long position, long limit) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            while (position < limit && (byteAt(position) & 0xC0) == 0x80)
+                position++;
+        } else if (isUtf16()) {
+            position += (position - textStart) & 1;
+            if (position + 1 < limit && Character.isLowSurrogate(unitAt(position)))
+                position += 2;
+        }
+        return Math.min(position, limit);
+    }
+
+    private boolean isUtf16() {
+        return charset.equals(StandardCharsets.UTF_16BE) || charset.equals(StandardCharsets.UTF_16LE);
+    }
+
+    private char unitAt(long position) {
+        int first = byteAt(position) & 0xFF;
+        int second = byteAt(position + 1) & 0xFF;
+        return (char) (charset.equals(StandardCharsets.UTF_16BE) ? first << 8 | second : second << 8 | first);
+    }
+
+    // READING
+
+    @Override
+    public int length() {
+        int blocks = indexedBlocks;
+        return blockChars[blocks];
+    }
+
+    @Override
+    public char charAt(int index) {
+        Block block = lastBlock;
+        if (block == null || index < block.start || index >= block.start + block.chars.length) {
+            if (index < 0 || index >= length())
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+            lastBlock = block = block(blockOf(index));
+        }
+        return block.chars[index - block.start];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length())
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length());
+        StringBuilder builder = new StringBuilder(end - start);
+        for (int i = start; i < end; i++)
+            builder.append(charAt(i));
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    // the mapping itself is outside the heap, only the index and the decoded blocks count
+    @Override
+    public long heapBytes() {
+        long bytes = 8L * blockBytes.length + 4L * blockChars.length + lineFeeds.heapBytes();
+        synchronized (cache) {
+            for (Block block : cache.values())
+                bytes += 2L * block.chars.length;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void releaseMemory() {
+        synchronized (cache) {
+            cache.clear();
+        }
+        lastBlock = null;
+    }
+
+    private int blockOf(int index) {
+        int low = 0;
+        int high = indexedBlocks - 1;
+        int[] blockChars = this.blockChars;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockChars[mid] <= index)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        return low;
+    }
+
+    private Block block(int index) {
+        synchronized (cache) {
+            Block block = cache.get(index);
+            if (block != null)
+                return block;
+        }
+
+        CharBuffer chars = CharBuffer.allocate(blockChars[index + 1] - blockChars[index]);
+        decode(newDecoder(), blockBytes[index], blockBytes[index + 1], chars);
+        Block block = new Block(blockChars[index], chars.array());
+
+        synchronized (cache) {
+            cache.put(index, block);
+        }
+        return block;
+    }
+
+    private void decode(CharsetDecoder decoder, long start, long end, CharBuffer chars) {
+        decoder.reset();
+        decoder.decode(bytes(start, (int) (end - start)), chars, true);
+        decoder.flush(chars);
+    }
+
+    // decodes the way block() does, a U+FFFD for each malformed or unmappable
+    // sequence, but notes that the text has one; decoder reports errors
+    private void decodeNotingErrors(CharsetDecoder decoder, long start, long end, CharBuffer chars) {
+        decoder.reset();
+        ByteBuffer bytes = bytes(start, (int) (end - start));
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chars, true);
+            if (!result.isError())
+                break;
+            lossy = true;
+            chars.put(decoder.replacement());
+            bytes.position(bytes.position() + result.length());
+        }
+        decoder.flush(chars);
+    }
+
+    private CharsetDecoder newDecoder() {
+        return charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private byte byteAt(long position) {
+        if (segments == null)
+            return bytes(position, 1).get(0);
+        return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+    }
+
+    // The bytes in [start, start + length), copied only when they straddle two
+    // mappings. Read through the channel, whatever a truncated file no longer
+    // has comes back as zeros.
+    private ByteBuffer bytes(long start, int length) {
+        int segment = (int) (start / SEGMENT_SIZE);
+        int offset = (int) (start % SEGMENT_SIZE);
+        if (length == 0)
+            return ByteBuffer.allocate(0);
+        if (segments == null) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                read(buffer, start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buffer.clear();
+        }
+        if (offset + length <= segments[segment].capacity())
+            return segments[segment].duplicate().position(offset).limit(offset + length);
+
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        for (long i = start; i < start + length; i++)
+            copy.put(byteAt(i));
+        return copy.flip();
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+    }
+
+}
@@ -0,0 +1,392 @@
+package editor;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Where every match of the finder's pattern is in a document, as two sorted
+// int arrays of start and end offsets. The first scan runs in the background;
+// after that each edit only rescans the lines it touched, so lookups stay
+// binary searches. The arrays have a gap at the last edit, and the matches
+// after it are kept as offsets from the end of the text, so an edit moves
+// them without touching them; only moving the gap elsewhere costs the
+// matches it passes. A pattern that can match across lines may also match
+// past the lines an edit touched, so after an edit its index is stale
+// until a background scan catches up. Empty matches are left out. Used
+// from the application thread only.
+public class MatchIndex implements DocumentListener {
+
+    // past this many matches the index stops and only covers the text it got through
+    private static final int MATCH_LIMIT = 1 << 22;
+
+    // edits touching more text than this start a new background scan
+    private static final int RESCAN_LIMIT = 1 << 16;
+    // the same for text appended at the end, such as a followed file growing
+    private static final int APPEND_RESCAN_LIMIT = 1 << 20;
+
+    private static final ExecutorService scanner = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-match-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    private Document document;
+    private Pattern pattern;
+
+    // logical index i is at i before the gap and at i + the gap's length after it
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+    private int gapStart;
+    private int gapEnd;
+    private int count;
+    // the length of the text the offsets are for, which those after the gap are kept against
+    private int textLength;
+    // whether the pattern can match a line break, so edits don't leave the index exact
+    private boolean multiline;
+    private boolean stale;
+    // matches are only known up to here, the rest of the document once the limit was hit
+    private int coveredEnd;
+    private boolean ready;
+
+    private Scan scan;
+
+    public void setDocument(Document document) {
+        if (this.document != null)
+            this.document.removeListener(this);
+        this.document = document;
+        if (document != null)
+            document.addListener(this);
+        rebuild();
+    }
+
+    // null clears the index
+    public void setPattern(Pattern pattern) {
+        if (pattern == this.pattern)
+            return;
+        this.pattern = pattern;
+        multiline = pattern != null && !SearchEngine.staysOnOneLine(pattern);
+        rebuild();
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    // false while the background scan is running
+    public boolean isReady() {
+        return ready;
+    }
+
+    // true when there were too many matches to keep them all
+    public boolean isTruncated() {
+        return ready && document != null && coveredEnd < document.length();
+    }
+
+    // whether every match is known and where it is, so a search can go by the index
+    public boolean isExact() {
+        return ready && !stale && !isTruncated();
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getStart(int index) {
+        return index < gapStart ? starts[index] : starts[index + gapEnd - gapStart] + textLength;
+    }
+
+    public int getEnd(int index) {
+        return index < gapStart ? ends[index] : ends[index + gapEnd - gapStart] + textLength;
+    }
+
+    // index of the first match starting at or after offset, or -1
+    public int nextMatch(int offset) {
+        int index = firstStartAtOrAfter(offset);
+        return index < count ? index : -1;
+    }
+
+    // index of the last match starting before offset, or -1
+    public int previousMatch(int offset) {
+        return firstStartAtOrAfter(offset) - 1;
+    }
+
+    // index of the match covering exactly [start, end), or -1
+    public int indexOf(int start, int end) {
+        int index = firstStartAtOrAfter(start);
+        return index < count && getStart(index) == start && getEnd(index) == end ? index : -1;
+    }
+
+    // calls action for each match overlapping [from, to]
+    public void forEachMatch(int from, int to, RangeConsumer action) {
+        for (int i = firstEndAfter(from); i < count && getStart(i) <= to; i++)
+            action.accept(getStart(i), getEnd(i));
+    }
+
+    public interface RangeConsumer {
+        void accept(int start, int end);
+    }
+
+    // called whenever the matches change
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : new ArrayList<>(listeners))
+            listener.run();
+    }
+
+    // Full scan
+
+    private void rebuild() {
+        if (scan != null)
+            scan.cancelled = true;
+        scan = null;
+        setMatches(new int[0], new int[0], 0);
+        coveredEnd = 0;
+        stale = false;
+        ready = pattern == null || document == null;
+
+        if (!ready)
+            startScan();
+        fireChanged();
+    }
+
+    // the matches found so far stay in place until the scan is done
+    private void startScan() {
+        if (scan != null)
+            scan.cancelled = true;
+        Scan scan = new Scan();
+        this.scan = scan;
+        CharSequence text = document.snapshot();
+        Pattern pattern = this.pattern;
+        scanner.execute(() -> scan.run(text, pattern));
+    }
+
+    private void setMatches(int[] starts, int[] ends, int textLength) {
+        this.starts = starts;
+        this.ends = ends;
+        count = starts.length;
+        gapStart = count;
+        gapEnd = count;
+        this.textLength = textLength;
+    }
+
+    private class Scan {
+        private volatile boolean cancelled;
+
+        void run(CharSequence text, Pattern pattern) {
+            IntArray starts = new IntArray();
+            IntArray ends = new IntArray();
+            int coveredEnd = text.length();
+            try {
+                Matcher matcher = pattern.matcher(new SearchEngine.CancellableText(text, () -> cancelled));
+                while (matcher.find()) {
+                    if (matcher.end() == matcher.start())
+                        continue;
+                    if (starts.size() == MATCH_LIMIT) {
+                        coveredEnd = matcher.start();
+                        break;
+                    }
+                    starts.add(matcher.start());
+                    ends.add(matcher.end());
+                }
+            } catch (CancellationException e) {
+                return;
+            }
+
+            int covered = coveredEnd;
+            Platform.runLater(() -> {
+                if (cancelled)
+                    return;
+                scan = null;
+                setMatches(starts.toArray(), ends.toArray(), text.length());
+                MatchIndex.this.coveredEnd = covered;
+                stale = false;
+                ready = true;
+                fireChanged();
+            });
+        }
+    }
+
+    // Edits
+
+    @Override
+    public void documentChanged(Edit edit) {
+        if (pattern == null)
+            return;
+        // the running scan read the text from before this edit, and a big
+        // edit, e.g. Replace All, is better scanned off the application thread
+        boolean append = edit.getRemovedLength() == 0
+                && edit.getOffset() + edit.getInsertedLength() == document.length();
+        int rescanLimit = append ? APPEND_RESCAN_LIMIT : RESCAN_LIMIT;
+        if (!ready || edit.getRemovedLength() + edit.getInsertedLength() > rescanLimit) {
+            rebuild();
+            return;
+        }
+
+        int offset = edit.getOffset();
+        int removedEnd = offset + edit.getRemovedLength();
+        int delta = edit.getInsertedLength() - edit.getRemovedLength();
+
+        // everything the scan stopped short of moves along with the edit
+        if (coveredEnd >= removedEnd)
+            coveredEnd += delta;
+        else if (coveredEnd > offset)
+            coveredEnd = offset;
+
+        // Rescan whole lines around the edit, widened to take in any old match
+        // they cut through. Matches before the range stay as they are, the ones
+        // after it shift by delta. A match that would only newly reach out of
+        // the edited lines into untouched ones shows up on the scan started below.
+        int limit = Math.min(document.length(), coveredEnd);
+        int dirtyStart = lineStart(offset);
+        int dirtyEnd = nextLineStart(offset + edit.getInsertedLength());
+        int first;
+        int last;
+        List<int[]> found = new ArrayList<>();
+        while (true) {
+            first = firstEndAfter(dirtyStart);
+            // old matches starting at or past removedEnd are the ones that shifted
+            last = firstStartAtOrAfter(Math.max(removedEnd, dirtyEnd - delta));
+
+            if (first < count && getStart(first) < dirtyStart) {
+                dirtyStart = lineStart(getStart(first));
+                continue;
+            }
+            if (last > first && Math.min(shiftedEnd(last - 1, removedEnd, delta), limit) > dirtyEnd) {
+                dirtyEnd = nextLineStart(shiftedEnd(last - 1, removedEnd, delta));
+                continue;
+            }
+
+            // a match that runs up to the end of the range might go on past it
+            if (!rescan(dirtyStart, Math.min(dirtyEnd, limit), found) || dirtyEnd >= limit)
+                break;
+            dirtyEnd = nextLineStart(Math.min(limit, dirtyEnd + (dirtyEnd - dirtyStart)));
+        }
+
+        splice(first, last, found, delta);
+        if (multiline) {
+            stale = true;
+            startScan();
+        }
+        fireChanged();
+    }
+
+    // where old match index ends in the new text, for matches the edit went through
+    // this is only an upper bound
+    private int shiftedEnd(int index, int removedEnd, int delta) {
+        int end = getEnd(index);
+        return end >= removedEnd ? end + delta : end;
+    }
+
+    // collects the matches in [start, end) of the current text, returns
+    // whether the last one runs right up to end
+    private boolean rescan(int start, int end, List<int[]> found) {
+        found.clear();
+        if (start >= end)
+            return false;
+        Matcher matcher = pattern.matcher(document.snapshot())
+                .useTransparentBounds(true)
+                .useAnchoringBounds(false)
+                .region(start, end);
+        while (matcher.find()) {
+            if (matcher.end() > matcher.start())
+                found.add(new int[] {matcher.start(), matcher.end()});
+        }
+        return !found.isEmpty() && found.get(found.size() - 1)[1] == end;
+    }
+
+    // replaces matches [first, last) with found; the ones after them are
+    // kept against the end of the text, which moves them by delta
+    private void splice(int first, int last, List<int[]> found, int delta) {
+        moveGap(first);
+        gapEnd += last - first;
+        count -= last - first;
+        if (gapEnd - gapStart < found.size())
+            growGap(found.size());
+        for (int[] match : found) {
+            starts[gapStart] = match[0];
+            ends[gapStart] = match[1];
+            gapStart++;
+        }
+        count += found.size();
+        textLength += delta;
+    }
+
+    private void moveGap(int index) {
+        while (gapStart > index) {
+            gapStart--;
+            gapEnd--;
+            starts[gapEnd] = starts[gapStart] - textLength;
+            ends[gapEnd] = ends[gapStart] - textLength;
+        }
+        while (gapStart < index) {
+            starts[gapStart] = starts[gapEnd] + textLength;
+            ends[gapStart] = ends[gapEnd] + textLength;
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    private void growGap(int needed) {
+        int tail = starts.length - gapEnd;
+        int capacity = Math.max(16, gapStart + needed + tail + ((count + needed) >> 1));
+        int[] newStarts = Arrays.copyOf(starts, capacity);
+        int[] newEnds = Arrays.copyOf(ends, capacity);
+        System.arraycopy(starts, gapEnd, newStarts, capacity - tail, tail);
+        System.arraycopy(ends, gapEnd, newEnds, capacity - tail, tail);
+        starts = newStarts;
+        ends = newEnds;
+        gapEnd = capacity - tail;
+    }
+
+    private int lineStart(int offset) {
+        return document.getLineStart(document.getLineOfOffset(Math.min(offset, document.length())));
+    }
+
+    private int nextLineStart(int offset) {
+        int line = document.getLineOfOffset(Math.min(offset, document.length())) + 1;
+        return line < document.getLineCount() ? document.getLineStart(line) : document.length();
+    }
+
+    private int firstStartAtOrAfter(int offset) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStart(mid) < offset)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int firstEndAfter(int offset) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEnd(mid) <= offset)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,224 @@
+package editor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where the editor's time goes. Each slow path is an Operation that keeps a
+// latency histogram and counters, which costs a few atomic adds a time, and
+// is also reported to Flight Recorder as an event, so a recording made with
+// -XX:StartFlightRecording shows the opens, saves and searches next to the
+// GC pauses. Pulses that take longer than a frame count as dropped frames.
+// Failures are counted and logged here instead of only being printed.
+public final class Metrics {
+
+    public static final Operation OPEN = new Operation("Open");
+    public static final Operation SAVE = new Operation("Save");
+    public static final Operation SEARCH = new Operation("Search");
+    public static final Operation REPLACE_ALL = new Operation("Replace All");
+    public static final Operation FIND_IN_FILES = new Operation("Find in Files");
+    public static final Operation ZOOM = new Operation("Zoom");
+    public static final Operation FINDER = new Operation("Open Finder");
+    public static final Operation FILTER = new Operation("Filter Table");
+    public static final Operation SORT = new Operation("Sort Table");
+
+    // from the process starting to the first window being ready to type in
+    public static final LatencyHistogram STARTUP = new LatencyHistogram();
+
+    // how long the application thread takes to lay out a pulse
+    public static final LatencyHistogram PULSES = new LatencyHistogram();
+
+    private static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos(1) / 60;
+
+    private static final LongAdder droppedFrames = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+
+    private static final System.Logger log = System.getLogger("editor");
+
+    private Metrics() {
+    }
+
+    // a pulse that took longer than a frame held up the ones that should have come during it
+    public static void pulse(long nanos) {
+        PULSES.record(nanos);
+        int dropped = (int) (nanos / FRAME_NANOS);
+        if (dropped == 0)
+            return;
+        droppedFrames.add(dropped);
+        PulseEvent event = new PulseEvent();
+        if (event.shouldCommit()) {
+            event.layoutTime = nanos;
+            event.droppedFrames = dropped;
+            event.commit();
+        }
+    }
+
+    public static void startedUp() {
+        ProcessHandle.current().info().startInstant().ifPresent(start ->
+                STARTUP.record(Duration.between(start, Instant.now()).toNanos()));
+    }
+
+    public static long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public static long getFailures() {
+        return failures.sum();
+    }
+
+    // for failures that were only printed before, and still leave the user no worse off than that
+    public static void failed(String what, Throwable error) {
+        failures.increment();
+        log.log(System.Logger.Level.WARNING, what, error);
+        FailureEvent event = new FailureEvent();
+        if (event.shouldCommit()) {
+            event.operation = what;
+            event.message = String.valueOf(error);
+            event.commit();
+        }
+    }
+
+    // Operations
+
+    // something the editor does that the user waits on, timed from start() to end()
+    public static final class Operation {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+
+        // bytes per second over every time this was ended with a size, 0 before the first
+        public double getThroughput() {
+            long nanos = this.nanos.sum();
+            return nanos == 0 ? 0 : bytes.sum() * 1e9 / nanos;
+        }
+
+        // subject is what it works on, such as a file or a query, for the recording
+        public Timing start(Object subject) {
+            return new Timing(this, subject);
+        }
+    }
+
+    // one run of an operation, ended from whichever thread it finishes on
+    public static final class Timing {
+        private final Operation operation;
+        private final long start = System.nanoTime();
+        private final OperationEvent event = new OperationEvent();
+
+        private Timing(Operation operation, Object subject) {
+            this.operation = operation;
+            if (event.isEnabled()) {
+                event.operation = operation.name;
+                event.subject = subject == null ? null : subject.toString();
+                event.begin();
+            }
+        }
+
+        public void end() {
+            end(-1);
+        }
+
+        // bytes is how much it read or wrote, for the throughput, or -1
+        public void end(long bytes) {
+            long nanos = System.nanoTime() - start;
+            operation.latency.record(nanos);
+            if (bytes >= 0) {
+                operation.bytes.add(bytes);
+                operation.nanos.add(nanos);
+            }
+            commit(bytes, false);
+        }
+
+        public void fail(Throwable error) {
+            operation.failed.increment();
+            commit(-1, true);
+            failed(operation.name, error);
+        }
+
+        private void commit(long bytes, boolean failed) {
+            if (!event.isEnabled())
+                return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.bytes = bytes;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    // Flight Recorder events
+
+    @Name("jotr.Operation")
+    @Label("Editor Operation")
+    @Category("Jotr")
+    @StackTrace(false)
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Subject")
+        @Description("The file, folder or query it worked on")
+        String subject;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("jotr.SlowPulse")
+    @Label("Slow Pulse")
+    @Description("Layout that took longer than a frame")
+    @Category("Jotr")
+    @StackTrace(false)
+    static class PulseEvent extends Event {
+        @Label("Layout Time")
+        @Timespan
+        long layoutTime;
+
+        @Label("Dropped Frames")
+        int droppedFrames;
+    }
+
+    @Name("jotr.Failure")
+    @Label("Editor Failure")
+    @Category("Jotr")
+    static class FailureEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Message")
+        String message;
+    }
+
+}
@@ -0,0 +1,118 @@
+package editor;
+
+// Tells whether a document still matches its file without comparing the text.
+// Every user edit bumps the generation, so the common answer is a single
+// comparison. Each edit also adds a fingerprint of what it inserted, less one
+// of what it removed, to a running hash; undoing subtracts the same amount,
+// so undoing back to the saved text brings the hash back to the saved value.
+// Only then is the text compared, once, to rule out a collision.
+public class ModificationTracker implements DocumentListener {
+
+    private final Document document;
+    private CharSequence savedContent;
+    private int savedLength;
+    private long savedGeneration;
+    private long savedHash;
+
+    private long generation;
+    private long hash;
+
+    public ModificationTracker(Document document) {
+        this.document = document;
+        document.addListener(this);
+        markSaved();
+    }
+
+    @Override
+    public void documentChanged(Edit edit) {
+        if (edit.isExternal()) {
+            // text coming from the file itself; it's only news if the user had edited too
+            if (generation == savedGeneration)
+                markSaved();
+            return;
+        }
+        generation++;
+        hash += fingerprint(edit.getOffset(), edit.getInserted()) - fingerprint(edit.getOffset(), edit.getRemoved());
+    }
+
+    public boolean isModified() {
+        if (generation == savedGeneration)
+            return false;
+        if (hash != savedHash || document.length() != savedLength)
+            return true;
+
+        // the edits cancel out, check the text once and remember the answer
+        if (!document.contentEquals(savedContent))
+            return true;
+        savedGeneration = generation;
+        return false;
+    }
+
+    // bumped on every user edit
+    public long getGeneration() {
+        return generation;
+    }
+
+    // the document now matches the file on disk
+    public void markSaved() {
+        markSaved(checkpoint());
+    }
+
+    // the file on disk now holds the text as it was at the checkpoint; edits
+    // made since, e.g. while the save was running, still count as unsaved
+    public void markSaved(Checkpoint checkpoint) {
+        savedContent = checkpoint.content;
+        savedLength = checkpoint.content.length();
+        savedGeneration = checkpoint.generation;
+        savedHash = checkpoint.hash;
+    }
+
+    // nothing on disk matches the document yet, e.g. before it is first saved to a new file
+    public void markModified() {
+        savedLength = -1;
+        savedGeneration = -1;
+    }
+
+    // snapshots are free, the text itself is only read if the hash ever matches again
+    public Checkpoint checkpoint() {
+        return new Checkpoint(document.snapshot(), generation, hash);
+    }
+
+    public void dispose() {
+        document.removeListener(this);
+    }
+
+    // the document's text at some point, along with where the tracker was at the time
+    public static class Checkpoint {
+        private final CharSequence content;
+        private final long generation;
+        private final long hash;
+
+        private Checkpoint(CharSequence content, long generation, long hash) {
+            this.content = content;
+            this.generation = generation;
+            this.hash = hash;
+        }
+
+        public CharSequence getContent() {
+            return content;
+        }
+    }
+
+    // Sum of a hash of every character together with its position. Being a
+    // plain sum, typing "abc" one key at a time adds up to the same as
+    // inserting "abc" at once, so an undo that reverts several merged edits
+    // in one go still cancels them out.
+    private static long fingerprint(int offset, CharSequence text) {
+        long sum = 0;
+        for (int i = 0; i < text.length(); i++) {
+            long h = (offset + i) * 0x9E3779B97F4A7C15L + text.charAt(i);
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            sum += h;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,94 @@
+package editor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Growable list of longs kept off the heap, in pages of a temporary file that
+// are mapped as the list reaches them, so the heap only holds the page table
+// however long it gets and the OS can page out what isn't being read. Like
+// IntArray it has one writer and any number of readers, values are published
+// by the volatile size; set() is for workers filling ranges of their own of
+// a list made at its full size, which publish through however they finish.
+final class OffHeapLongs implements AutoCloseable {
+
+    private static final int PAGE_BITS = 20;
+    private static final int PAGE_LONGS = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_LONGS - 1;
+
+    private final FileChannel channel;
+
+    private volatile LongBuffer[] pages = new LongBuffer[4];
+    private volatile long size;
+
+    OffHeapLongs() {
+        this(0);
+    }
+
+    // a list of size zeros, for set() to fill in
+    OffHeapLongs(long size) {
+        try {
+            Path file = Files.createTempFile("jotr", ".longs");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (long page = 0; page * PAGE_LONGS < size; page++)
+            mapPage((int) page);
+        this.size = size;
+    }
+
+    long size() {
+        return size;
+    }
+
+    long get(long index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return pages[(int) (index >>> PAGE_BITS)].get((int) (index & PAGE_MASK));
+    }
+
+    void set(long index, long value) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        pages[(int) (index >>> PAGE_BITS)].put((int) (index & PAGE_MASK), value);
+    }
+
+    void add(long value) {
+        long size = this.size;
+        int page = (int) (size >>> PAGE_BITS);
+        if ((size & PAGE_MASK) == 0)
+            mapPage(page);
+        pages[page].put((int) (size & PAGE_MASK), value);
+        this.size = size + 1;
+    }
+
+    // the pages are unmapped by the garbage collector, the file goes now
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void mapPage(int page) {
+        LongBuffer[] pages = this.pages;
+        if (page == pages.length)
+            pages = Arrays.copyOf(pages, pages.length * 2);
+        try {
+            pages[page] = channel.map(FileChannel.MapMode.READ_WRITE, (long) page * PAGE_LONGS * Long.BYTES,
+                    (long) PAGE_LONGS * Long.BYTES).asLongBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.pages = pages;
+    }
+
+}
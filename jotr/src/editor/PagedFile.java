@@ -0,0 +1,148 @@
+package editor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+// The bytes of a file of any size, read through memory-mapped pages of a
+// fixed size. A page is mapped the first time it is read, and only the ones
+// used most recently stay in the cache, so opening a file costs nothing and
+// browsing it only maps what is looked at. The cache is shared between the
+// application thread and searches, a page in use stays valid once evicted.
+public class PagedFile {
+
+    private static final int PAGE_SIZE = 1 << 20;
+    private static final int CACHED_PAGES = 64;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+
+    private final Map<Long, MappedByteBuffer> pages = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    public PagedFile(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public void close() throws IOException {
+        synchronized (pages) {
+            pages.clear();
+        }
+        channel.close();
+    }
+
+    // READING
+
+    // Copies up to length bytes from position into bytes and returns how
+    // many there were, fewer at the end of the file or once it is closed.
+    public int read(long position, byte[] bytes, int offset, int length) {
+        int count = 0;
+        while (count < length && position + count < size) {
+            ByteBuffer page = page((position + count) / PAGE_SIZE);
+            if (page == null)
+                break;
+            int inPage = (int) ((position + count) % PAGE_SIZE);
+            int n = Math.min(length - count, page.limit() - inPage);
+            page.duplicate().position(inPage).get(bytes, offset + count, n);
+            count += n;
+        }
+        return count;
+    }
+
+    // the page with the given index, mapped if it isn't cached, or null if the file can't be read
+    private ByteBuffer page(long index) {
+        synchronized (pages) {
+            MappedByteBuffer page = pages.get(index);
+            if (page == null) {
+                long start = index * PAGE_SIZE;
+                try {
+                    page = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(PAGE_SIZE, size - start));
+                } catch (IOException e) {
+                    return null;
+                }
+                pages.put(index, page);
+            }
+            return page;
+        }
+    }
+
+    // SEARCHING
+
+    // Where the first occurrence of pattern at or after from starts, or -1.
+    // Throws CancellationException once cancelled says so.
+    public long indexOf(byte[] pattern, long from, BooleanSupplier cancelled) {
+        for (long index = Math.max(0, from) / PAGE_SIZE; index * PAGE_SIZE < size; index++) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            ByteBuffer page = page(index);
+            if (page == null)
+                return -1;
+            long start = index * PAGE_SIZE;
+            int i = (int) Math.max(0, from - start);
+            for (; i < page.limit(); i++)
+                if (page.get(i) == pattern[0] && matchesAt(page, start, i, pattern))
+                    return start + i;
+        }
+        return -1;
+    }
+
+    // Where the last occurrence of pattern starting at or before from starts, or -1.
+    public long lastIndexOf(byte[] pattern, long from, BooleanSupplier cancelled) {
+        from = Math.min(from, size - pattern.length);
+        for (long index = from / PAGE_SIZE; index >= 0 && from >= 0; index--) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            ByteBuffer page = page(index);
+            if (page == null)
+                return -1;
+            long start = index * PAGE_SIZE;
+            int i = (int) Math.min(page.limit() - 1, from - start);
+            for (; i >= 0; i--)
+                if (page.get(i) == pattern[0] && matchesAt(page, start, i, pattern))
+                    return start + i;
+        }
+        return -1;
+    }
+
+    // whether pattern starts at i of the page starting at start, reading on into the next page if need be
+    private boolean matchesAt(ByteBuffer page, long start, int i, byte[] pattern) {
+        if (start + i + pattern.length > size)
+            return false;
+        if (i + pattern.length <= page.limit()) {
+            for (int j = 1; j < pattern.length; j++)
+                if (page.get(i + j) != pattern[j])
+                    return false;
+            return true;
+        }
+        byte[] bytes = new byte[pattern.length];
+        if (read(start + i, bytes, 0, bytes.length) < bytes.length)
+            return false;
+        for (int j = 1; j < pattern.length; j++)
+            if (bytes[j] != pattern[j])
+                return false;
+        return true;
+    }
+
+}
@@ -0,0 +1,86 @@
+package editor;
+
+// Read-only view over a range of a piece tree. Since tree nodes are immutable
+// the view never goes stale and can be handed to other threads. Sequential
+// reads stay cheap because the piece under the last index is remembered.
+final class PieceSequence implements CharSequence {
+
+    private final PieceTable.Node root;
+    private final int offset;
+    private final int length;
+    private Piece cached;
+
+    private static final class Piece {
+        final int start;
+        final int end;
+        final CharSequence buffer;
+        final int bufferStart;
+
+        Piece(int start, int end, CharSequence buffer, int bufferStart) {
+            this.start = start;
+            this.end = end;
+            this.buffer = buffer;
+            this.bufferStart = bufferStart;
+        }
+    }
+
+    PieceSequence(PieceTable.Node root, int start, int end) {
+        this.root = root;
+        this.offset = start;
+        this.length = end - start;
+    }
+
+    boolean spans(PieceTable.Node node) {
+        return root == node && offset == 0 && length == PieceTable.size(node);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+
+        int at = offset + index;
+        Piece piece = cached;
+        if (piece == null || at < piece.start || at >= piece.end) {
+            int[] start = new int[1];
+            PieceTable.Node node = PieceTable.pieceAt(root, at, start);
+            cached = piece = new Piece(start[0], start[0] + node.length, node.buffer, node.start);
+        }
+        return piece.buffer.charAt(piece.bufferStart + at - piece.start);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end < start || end > length)
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        return new PieceSequence(root, offset + start, offset + end);
+    }
+
+    // the pieces of this view as a tree of their own, or null if it is empty
+    PieceTable.Node pieces() {
+        return PieceTable.slice(root, offset, offset + length);
+    }
+
+    // visits the pieces covering [start, end) of this view in order
+    void forEachPiece(int start, int end, PieceTable.PieceConsumer consumer) {
+        PieceTable.forEachPiece(root, 0, offset + start, offset + end, consumer);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length);
+        forEachPiece(0, length, (buffer, start, end) -> {
+            if (buffer instanceof AppendBuffer)
+                ((AppendBuffer) buffer).appendTo(builder, start, end);
+            else
+                builder.append(buffer, start, end);
+        });
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,423 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Document stored as a sequence of pieces, each pointing into either the
+// original text or an append-only buffer of inserted text. Pieces live in an
+// implicit treap ordered by document position, so edits are O(log n).
+// Nodes are never modified after construction: an edit builds new nodes along
+// the affected path, which makes every old root a free snapshot.
+public class PieceTable implements Document {
+
+    private final TextBuffer original;
+    private int originalLength;
+    private final AppendBuffer added = new AppendBuffer();
+    private final List<DocumentListener> listeners = new ArrayList<>();
+    private Node root;
+    private PieceSequence view;
+
+    public PieceTable(CharSequence original) {
+        this.original = original instanceof TextBuffer ? (TextBuffer) original : new HeapText(original.toString());
+        originalLength = original.length();
+        root = originalLength == 0 ? null : leaf(this.original, 0, originalLength);
+    }
+
+    // EDITING
+
+    @Override
+    public void replace(int start, int end, CharSequence text) {
+        if (start < 0 || end < start || end > length())
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length());
+        if (start == end && text.length() == 0)
+            return;
+
+        Node before = root;
+        Node[] tail = split(root, end);
+        Node[] head = split(tail[0], start);
+        Node left = head[0];
+        CharSequence inserted = "";
+        Node own = ownPieces(text);
+
+        if (own != null) {
+            left = merge(left, own);
+            inserted = new PieceSequence(own, 0, own.size);
+        } else if (text.length() > 0) {
+            int addStart = added.append(text);
+            Node piece = leaf(added, addStart, text.length());
+            inserted = new PieceSequence(piece, 0, piece.length);
+
+            // typing appends to the buffer in order, so keep extending the last piece
+            Node last = rightmost(left);
+            if (last != null && last.buffer == added && last.start + last.length == addStart) {
+                left = split(left, size(left) - last.length)[0];
+                piece = leaf(added, last.start, last.length + text.length());
+            }
+            left = merge(left, piece);
+        }
+
+        root = merge(left, tail[1]);
+        view = null;
+        fire(new Edit(start, new PieceSequence(before, start, end), inserted));
+    }
+
+    // A view of text this table held at some point, such as the text an undo
+    // puts back, goes back in as the same pieces instead of being copied into
+    // the added buffer again. Returns null for any other text.
+    private Node ownPieces(CharSequence text) {
+        if (!(text instanceof PieceSequence))
+            return null;
+        Node pieces = ((PieceSequence) text).pieces();
+        return pieces != null && owns(pieces) ? pieces : null;
+    }
+
+    private boolean owns(Node node) {
+        for (; node != null; node = node.right) {
+            if (node.buffer != original && node.buffer != added)
+                return false;
+            if (!owns(node.left))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void replace(ReplaceBatch batch) {
+        int count = batch.size();
+        if (count == 0)
+            return;
+        int first = batch.getStart(0);
+        int last = batch.getEnd(count - 1);
+        if (first < 0 || last > length())
+            throw new IndexOutOfBoundsException("range [" + first + ", " + last + "), length " + length());
+
+        Node before = root;
+        Node[] tail = split(root, last);
+        Node[] head = split(tail[0], first);
+
+        // walk through the old text between first and last, keeping the gaps
+        // between ranges and putting a piece of the added buffer in for each range
+        int addStart = added.append(batch.getText());
+        Node rest = head[1];
+        Node middle = null;
+        int position = first;
+        for (int i = 0; i < count; i++) {
+            Node[] gap = split(rest, batch.getStart(i) - position);
+            Node[] replaced = split(gap[1], batch.getEnd(i) - batch.getStart(i));
+            middle = merge(middle, gap[0]);
+            int textLength = batch.getTextEnd(i) - batch.getTextStart(i);
+            if (textLength > 0)
+                middle = merge(middle, leaf(added, addStart + batch.getTextStart(i), textLength));
+            rest = replaced[1];
+            position = batch.getEnd(i);
+        }
+
+        root = merge(merge(head[0], middle), tail[1]);
+        view = null;
+        fire(new Edit(first, new PieceSequence(before, first, last), new PieceSequence(root, first, first + size(middle))));
+    }
+
+    // The original text may still be growing, e.g. a mapped file that is being
+    // indexed. Appends whatever became available since the last call to the end
+    // of the document as an external edit.
+    public void appendOriginal() {
+        int available = original.length();
+        if (available <= originalLength)
+            return;
+
+        Node piece = leaf(original, originalLength, available - originalLength);
+        int offset = length();
+        originalLength = available;
+        root = merge(root, piece);
+        view = null;
+        fire(new Edit(offset, "", new PieceSequence(piece, 0, piece.length), true));
+    }
+
+    // the text the document started out as, of which the first
+    // getOriginalLength() chars are in it so far
+    TextBuffer getOriginal() {
+        return original;
+    }
+
+    int getOriginalLength() {
+        return originalLength;
+    }
+
+    @Override
+    public void releaseMemory() {
+        original.releaseMemory();
+    }
+
+    @Override
+    public boolean isLossy() {
+        return original.isLossy();
+    }
+
+    // the buffers the pieces point into, not the pieces themselves
+    @Override
+    public long heapBytes() {
+        return original.heapBytes() + added.heapBytes();
+    }
+
+    private void fire(Edit edit) {
+        for (DocumentListener listener : new ArrayList<>(listeners))
+            listener.documentChanged(edit);
+    }
+
+    @Override
+    public void addListener(DocumentListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(DocumentListener listener) {
+        listeners.remove(listener);
+    }
+
+    // READING
+
+    private PieceSequence view() {
+        if (view == null)
+            view = new PieceSequence(root, 0, size(root));
+        return view;
+    }
+
+    @Override
+    public CharSequence snapshot() {
+        return view();
+    }
+
+    @Override
+    public boolean contentEquals(CharSequence other) {
+        // snapshots taken since the last edit share our root
+        if (other instanceof PieceSequence && ((PieceSequence) other).spans(root))
+            return true;
+        return Document.super.contentEquals(other);
+    }
+
+    @Override
+    public int length() {
+        return size(root);
+    }
+
+    @Override
+    public char charAt(int index) {
+        return view().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return view().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return view().toString();
+    }
+
+    // LINES
+
+    @Override
+    public int getLineCount() {
+        return lineFeeds(root) + 1;
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        if (line < 0 || line >= getLineCount())
+            throw new IndexOutOfBoundsException("line " + line + ", line count " + getLineCount());
+        return line == 0 ? 0 : lineStart(root, line);
+    }
+
+    @Override
+    public int getLineOfOffset(int offset) {
+        if (offset < 0 || offset > length())
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length());
+        return lineOf(root, offset);
+    }
+
+
+    /* * * * * * * * *\
+     *  PIECE TREE   *
+    \* * * * * * * * */
+
+    static final class Node {
+        final TextBuffer buffer;
+        final int start;
+        final int length;
+        final int lineFeeds;
+        final int priority;
+        final Node left;
+        final Node right;
+        final int size;
+        final int subtreeLineFeeds;
+
+        Node(TextBuffer buffer, int start, int length, int lineFeeds, int priority, Node left, Node right) {
+            this.buffer = buffer;
+            this.start = start;
+            this.length = length;
+            this.lineFeeds = lineFeeds;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = size(left) + length + size(right);
+            this.subtreeLineFeeds = lineFeeds(left) + lineFeeds + lineFeeds(right);
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(buffer, start, length, lineFeeds, priority, left, right);
+        }
+    }
+
+    // receives the pieces of a range in document order
+    @FunctionalInterface
+    interface PieceConsumer {
+        void accept(CharSequence buffer, int start, int end);
+    }
+
+    static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    static int lineFeeds(Node node) {
+        return node == null ? 0 : node.subtreeLineFeeds;
+    }
+
+    private static Node leaf(TextBuffer buffer, int start, int length) {
+        int lineFeeds = buffer.lineFeedsBefore(start + length) - buffer.lineFeedsBefore(start);
+        return new Node(buffer, start, length, lineFeeds, ThreadLocalRandom.current().nextInt(), null, null);
+    }
+
+    private static Node rightmost(Node node) {
+        if (node != null)
+            while (node.right != null)
+                node = node.right;
+        return node;
+    }
+
+    // splits node into the first offset characters and the rest
+    private static Node[] split(Node node, int offset) {
+        if (node == null)
+            return new Node[] {null, null};
+
+        int leftSize = size(node.left);
+        if (offset <= leftSize) {
+            Node[] parts = split(node.left, offset);
+            return new Node[] {parts[0], node.with(parts[1], node.right)};
+        }
+        if (offset >= leftSize + node.length) {
+            Node[] parts = split(node.right, offset - leftSize - node.length);
+            return new Node[] {node.with(node.left, parts[0]), parts[1]};
+        }
+
+        int cut = offset - leftSize;
+        Node head = leaf(node.buffer, node.start, cut);
+        Node tail = leaf(node.buffer, node.start + cut, node.length - cut);
+        return new Node[] {merge(node.left, head), merge(tail, node.right)};
+    }
+
+    // the pieces of [start, end), sharing the nodes they don't cut through
+    static Node slice(Node node, int start, int end) {
+        return split(split(node, end)[0], start)[1];
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (left.priority > right.priority)
+            return left.with(left.left, merge(left.right, right));
+        return right.with(merge(left, right.left), right.right);
+    }
+
+    // returns the node holding index along with its document offset in start
+    static Node pieceAt(Node node, int index, int[] start) {
+        int base = 0;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < base + leftSize) {
+                node = node.left;
+            } else if (index < base + leftSize + node.length) {
+                start[0] = base + leftSize;
+                return node;
+            } else {
+                base += leftSize + node.length;
+                node = node.right;
+            }
+        }
+        throw new IndexOutOfBoundsException("index " + index);
+    }
+
+    // offset just past the line-th line feed, i.e. where that line starts
+    static int lineStart(Node node, int line) {
+        int base = 0;
+        int remaining = line;
+        while (node != null) {
+            int leftFeeds = lineFeeds(node.left);
+            if (remaining <= leftFeeds) {
+                node = node.left;
+                continue;
+            }
+
+            remaining -= leftFeeds;
+            int nodeStart = base + size(node.left);
+            if (remaining <= node.lineFeeds) {
+                TextBuffer buffer = node.buffer;
+                int lineFeed = buffer.lineFeedAt(buffer.lineFeedsBefore(node.start) + remaining - 1);
+                return nodeStart + lineFeed - node.start + 1;
+            }
+            remaining -= node.lineFeeds;
+            base = nodeStart + node.length;
+            node = node.right;
+        }
+        throw new IndexOutOfBoundsException("line " + line);
+    }
+
+    // number of line feeds before offset, i.e. the line offset is on
+    static int lineOf(Node node, int offset) {
+        int base = 0;
+        int lineFeeds = 0;
+        while (node != null) {
+            int nodeStart = base + size(node.left);
+            if (offset < nodeStart) {
+                node = node.left;
+                continue;
+            }
+
+            lineFeeds += lineFeeds(node.left);
+            if (offset <= nodeStart + node.length) {
+                TextBuffer buffer = node.buffer;
+                return lineFeeds + buffer.lineFeedsBefore(node.start + offset - nodeStart)
+                        - buffer.lineFeedsBefore(node.start);
+            }
+            lineFeeds += node.lineFeeds;
+            base = nodeStart + node.length;
+            node = node.right;
+        }
+        return lineFeeds;
+    }
+
+    // visits the pieces covering [start, end) of the tree rooted at node, whose
+    // first character sits at document offset base
+    static void forEachPiece(Node node, int base, int start, int end, PieceConsumer consumer) {
+        while (node != null && start < end) {
+            int nodeStart = base + size(node.left);
+            int nodeEnd = nodeStart + node.length;
+            if (start < nodeStart)
+                forEachPiece(node.left, base, start, Math.min(end, nodeStart), consumer);
+
+            int from = Math.max(start, nodeStart);
+            int to = Math.min(end, nodeEnd);
+            if (from < to)
+                consumer.accept(node.buffer, node.start + from - nodeStart, node.start + to - nodeStart);
+
+            // continue down the right subtree without recursing
+            start = Math.max(start, nodeEnd);
+            base = nodeEnd;
+            node = node.right;
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package editor;
+
+// Many replacements to be made to a document in one edit, e.g. by Replace
+// All. Ranges are kept in order and must not overlap; the replacement texts
+// are stored one after another in a single builder.
+public class ReplaceBatch {
+
+    private final IntArray starts = new IntArray();
+    private final IntArray ends = new IntArray();
+    private final IntArray textEnds = new IntArray();
+    private final StringBuilder text = new StringBuilder();
+
+    // [start, end) is replaced by replacement
+    public void add(int start, int end, CharSequence replacement) {
+        text.append(replacement);
+        add(start, end);
+    }
+
+    // [start, end) is replaced by whatever was appended to getText() since the last range
+    void add(int start, int end) {
+        add(start, end, text.length());
+    }
+
+    // appends the ranges of a batch that comes after this one
+    public void addAll(ReplaceBatch other) {
+        int base = text.length();
+        text.append(other.text);
+        for (int i = 0; i < other.size(); i++)
+            add(other.getStart(i), other.getEnd(i), base + other.getTextEnd(i));
+    }
+
+    private void add(int start, int end, int textEnd) {
+        if (size() > 0 && start < ends.get(size() - 1))
+            throw new IllegalArgumentException("ranges must be in order: " + start);
+        starts.add(start);
+        ends.add(end);
+        textEnds.add(textEnd);
+    }
+
+    public int size() {
+        return starts.size();
+    }
+
+    public int getStart(int index) {
+        return starts.get(index);
+    }
+
+    public int getEnd(int index) {
+        return ends.get(index);
+    }
+
+    // where the replacement for range index starts and ends in getText()
+    public int getTextStart(int index) {
+        return index == 0 ? 0 : textEnds.get(index - 1);
+    }
+
+    public int getTextEnd(int index) {
+        return textEnds.get(index);
+    }
+
+    StringBuilder getText() {
+        return text;
+    }
+
+}
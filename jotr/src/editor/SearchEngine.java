@@ -0,0 +1,423 @@
+package editor;
+
+import javafx.application.Platform;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs finder searches on a worker thread over an immutable view of the
+// document. Only one search runs at a time: starting a new one cancels the
+// one before it, and a cancelled search never reports back.
+public class SearchEngine {
+
+    private static final int CACHED_PATTERNS = 32;
+
+    // how far a backward search reads before it looks at the next block
+    private static final int BACKWARD_BLOCK = 1 << 16;
+
+    // how much text each Replace All task takes on, give or take a line
+    private static final int REPLACE_CHUNK = 1 << 20;
+
+    // regex constructs that can match a line break, or might
+    private static final String[] MULTILINE_TOKENS = {
+            "\\n", "\\s", "\\W", "\\D", "\\H", "\\R", "\\v", "\\p", "\\P", "\\X", "\\x", "\\u", "\\0",
+            "\\c", "\\N", "[^"
+    };
+
+    // an inline flag group that might turn on DOTALL, such as (?s), (?is) or (?ms:
+    private static final Pattern INLINE_DOTALL = Pattern.compile("\\(\\?[a-zA-Z-]*s");
+
+    // how many characters are read between checks for cancellation
+    private static final int CANCEL_CHECK_INTERVAL = 1 << 12;
+
+    private final Map<String, Pattern> patterns = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > CACHED_PATTERNS;
+        }
+    };
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Search current;
+
+    // compiled patterns are kept, so searching again for the same thing skips
+    // the compile; throws PatternSyntaxException for an invalid regex
+    public Pattern compile(String query, boolean regex, boolean matchCase) {
+        int flags = 0;
+        if (!matchCase)
+            flags |= Pattern.CASE_INSENSITIVE;
+        if (!regex)
+            flags |= Pattern.LITERAL;
+
+        String key = flags + ":" + query;
+        Pattern pattern = patterns.get(key);
+        if (pattern == null) {
+            pattern = Pattern.compile(query, flags);
+            patterns.put(key, pattern);
+        }
+        return pattern;
+    }
+
+    // Looks for the first match at or after from, or when searching backward
+    // the match that starts closest before from and ends by it, and passes
+    // {start, end} to onResult on the application thread, or {-1, 0} when
+    // there is none.
+    public void find(CharSequence text, Pattern pattern, int from, boolean backward, boolean wrapAround,
+                     Consumer<int[]> onResult) {
+        cancel();
+        Search search = new Search();
+        current = search;
+
+        worker.execute(() -> {
+            Metrics.Timing timing = Metrics.SEARCH.start(pattern);
+            int[] bounds;
+            try {
+                bounds = findMatch(text, pattern, from, backward, wrapAround, () -> search.cancelled);
+            } catch (CancellationException e) {
+                return;
+            }
+            timing.end();
+
+            Platform.runLater(() -> {
+                if (search.cancelled)
+                    return;
+                current = null;
+                onResult.accept(bounds);
+            });
+        });
+    }
+
+    // Works out every replacement Replace All would make in text and passes
+    // them to onResult on the application thread as one batch. A bad group
+    // reference in the replacement ends up in onError, and a run cancelled
+    // before it is done in onCancelled.
+    public void replaceAll(CharSequence text, Pattern pattern, String replacement,
+                           Consumer<ReplaceBatch> onResult, Consumer<RuntimeException> onError,
+                           Runnable onCancelled) {
+        cancel();
+        Search search = new Search();
+        current = search;
+
+        worker.execute(() -> {
+            ReplaceBatch batch;
+            try {
+                batch = replaceAllMatches(text, pattern, replacement, () -> search.cancelled);
+            } catch (CancellationException e) {
+                Platform.runLater(onCancelled);
+                return;
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                Platform.runLater(() -> {
+                    if (search.cancelled)
+                        onCancelled.run();
+                    else
+                        onError.accept(e);
+                });
+                return;
+            }
+
+            Platform.runLater(() -> {
+                if (search.cancelled) {
+                    onCancelled.run();
+                    return;
+                }
+                current = null;
+                onResult.accept(batch);
+            });
+        });
+    }
+
+    public void cancel() {
+        if (current != null) {
+            current.cancelled = true;
+            current = null;
+        }
+    }
+
+    public boolean isSearching() {
+        return current != null;
+    }
+
+    private static class Search {
+        private volatile boolean cancelled;
+    }
+
+    // SEARCHING
+
+    // What find() reports, worked out on the calling thread, which needs no
+    // toolkit. Throws CancellationException once cancelled says so.
+    public static int[] findMatch(CharSequence text, Pattern pattern, int from, boolean backward, boolean wrapAround,
+                                  BooleanSupplier cancelled) {
+        CharSequence content = new CancellableText(text, cancelled);
+        int[] bounds = backward ? findBackward(content, pattern, from) : findForward(content, pattern, from);
+        if (bounds[0] == -1 && wrapAround)
+            bounds = backward ? findBackward(content, pattern, text.length()) : findForward(content, pattern, 0);
+        return bounds;
+    }
+
+    private static int[] findForward(CharSequence text, Pattern pattern, int from) {
+        Matcher matcher = pattern.matcher(text);
+        if (matcher.find(from))
+            return new int[] {matcher.start(), matcher.end()};
+        return new int[] {-1, 0};
+    }
+
+    // Walks back from from a block at a time and, within a block, tries
+    // each start position from the last one down, so the first match
+    // found is the last one in the block and the scan stops at the block
+    // nearest the caret that has one. Every position is tried once, the
+    // same work a forward find does over that stretch of text.
+    private static int[] findBackward(CharSequence text, Pattern pattern, int from) {
+        Matcher matcher = pattern.matcher(text)
+                .useTransparentBounds(true)
+                .useAnchoringBounds(false);
+
+        // a literal can only match where its first character is
+        boolean literal = (pattern.flags() & Pattern.LITERAL) != 0 && !pattern.pattern().isEmpty();
+        boolean ignoreCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        char first = literal ? pattern.pattern().charAt(0) : 0;
+
+        for (int blockEnd = from; blockEnd > 0; blockEnd -= BACKWARD_BLOCK) {
+            int blockStart = Math.max(0, blockEnd - BACKWARD_BLOCK);
+            for (int start = blockEnd - 1; start >= blockStart; start--) {
+                if (literal && !sameChar(text.charAt(start), first, ignoreCase))
+                    continue;
+                matcher.region(start, from);
+                if (matcher.lookingAt() && matcher.end() > start)
+                    return new int[] {start, matcher.end()};
+            }
+        }
+        return new int[] {-1, 0};
+    }
+
+    // What replaceAll() reports, worked out on the calling thread. Patterns
+    // that can't match across a line break run over line-aligned chunks in
+    // parallel on the fork/join pool, anything else goes through the text in
+    // one pass. Throws IllegalArgumentException or IndexOutOfBoundsException
+    // for a bad group reference, and CancellationException once cancelled
+    // says so.
+    public static ReplaceBatch replaceAllMatches(CharSequence text, Pattern pattern, String replacement,
+                                                 BooleanSupplier cancelled) {
+        int[] chunks = staysOnOneLine(pattern) ? lineChunks(text) : new int[] {0, text.length()};
+        return ForkJoinPool.commonPool().invoke(new ReplaceTask(
+                text, pattern, replacement, chunks, 0, chunks.length - 1, cancelled));
+    }
+
+    private static class ReplaceTask extends RecursiveTask<ReplaceBatch> {
+        private final CharSequence text;
+        private final Pattern pattern;
+        private final String replacement;
+        private final int[] chunks;
+        private final int from;
+        private final int to;
+        private final BooleanSupplier cancelled;
+
+        // replaces in chunks [from, to), chunk i being text[chunks[i], chunks[i + 1])
+        ReplaceTask(CharSequence text, Pattern pattern, String replacement, int[] chunks, int from, int to,
+                    BooleanSupplier cancelled) {
+            this.text = text;
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected ReplaceBatch compute() {
+            if (to - from == 1)
+                return replaceChunk(chunks[from], chunks[to]);
+
+            int middle = (from + to) >>> 1;
+            ReplaceTask left = new ReplaceTask(text, pattern, replacement, chunks, from, middle, cancelled);
+            left.fork();
+            ReplaceBatch right = new ReplaceTask(text, pattern, replacement, chunks, middle, to, cancelled).compute();
+            ReplaceBatch batch = left.join();
+            batch.addAll(right);
+            return batch;
+        }
+
+        private ReplaceBatch replaceChunk(int start, int end) {
+            ReplaceBatch batch = new ReplaceBatch();
+            // a view of its own, threads sharing one would keep evicting each other's cached piece
+            CharSequence view = new CancellableText(text.subSequence(0, text.length()), cancelled);
+            Matcher matcher = pattern.matcher(view)
+                    .useTransparentBounds(true)
+                    .useAnchoringBounds(false)
+                    .region(start, end);
+            boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+
+            while (matcher.find()) {
+                // an empty match right at the end belongs to the next chunk
+                if (matcher.start() == end && end < text.length())
+                    break;
+                if (literal)
+                    batch.getText().append(replacement);
+                else
+                    appendReplacement(matcher, replacement, batch.getText());
+                batch.add(matcher.start(), matcher.end());
+            }
+            return batch;
+        }
+    }
+
+    // Chunk boundaries of about REPLACE_CHUNK characters, each one just after a
+    // line break, so a match that stays on one line never straddles two chunks.
+    private static int[] lineChunks(CharSequence text) {
+        IntArray bounds = new IntArray();
+        bounds.add(0);
+        int length = text.length();
+        int position = REPLACE_CHUNK;
+        while (position < length) {
+            while (position < length && text.charAt(position - 1) != '\n')
+                position++;
+            if (position < length)
+                bounds.add(position);
+            position += REPLACE_CHUNK;
+        }
+        bounds.add(length);
+        return bounds.toArray();
+    }
+
+    // Whether no match of the pattern can hold a line break. This only reads
+    // the pattern's source, so it says no to anything it isn't sure about.
+    static boolean staysOnOneLine(Pattern pattern) {
+        String source = pattern.pattern();
+        if (source.indexOf('\n') >= 0)
+            return false;
+        if ((pattern.flags() & Pattern.LITERAL) != 0)
+            return true;
+        if ((pattern.flags() & Pattern.DOTALL) != 0)
+            return false;
+        for (String token : MULTILINE_TOKENS)
+            if (source.contains(token))
+                return false;
+        return !INLINE_DOTALL.matcher(source).find() && !hasRangeOverLineBreak(source);
+    }
+
+    // Whether a character class in source has a range that takes in '\n',
+    // the way [\t-\r] does and [a-z] doesn't. A range with an escape at
+    // either end counts as one, as it isn't worth reading.
+    private static boolean hasRangeOverLineBreak(String source) {
+        int depth = 0;
+        for (int i = 0; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']' && depth > 0) {
+                depth--;
+            } else if (c == '-' && depth > 0 && i > 0 && i + 1 < source.length()) {
+                char low = source.charAt(i - 1);
+                char high = source.charAt(i + 1);
+                if (low == '[' || high == ']')
+                    continue;
+                boolean escaped = (i >= 2 && source.charAt(i - 2) == '\\') || high == '\\';
+                if (escaped || (low <= '\n' && '\n' <= high))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds the replacement for the current match to out, expanding $n, ${name}
+    // and \ escapes the way Matcher.appendReplacement does. The matcher's own
+    // method would also copy all the text since the start of its region.
+    private static void appendReplacement(Matcher matcher, String replacement, StringBuilder out) {
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == replacement.length())
+                    throw new IllegalArgumentException("character to be escaped is missing");
+                out.append(replacement.charAt(i));
+            } else if (c == '$') {
+                if (++i == replacement.length())
+                    throw new IllegalArgumentException("Illegal group reference: group index is missing");
+                String group;
+                if (replacement.charAt(i) == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close == -1)
+                        throw new IllegalArgumentException("named capturing group is missing trailing '}'");
+                    group = matcher.group(replacement.substring(i + 1, close));
+                    i = close;
+                } else {
+                    int number = replacement.charAt(i) - '0';
+                    if (number < 0 || number > 9)
+                        throw new IllegalArgumentException("Illegal group reference");
+                    // further digits belong to the reference for as long as they name a group
+                    while (i + 1 < replacement.length()) {
+                        int digit = replacement.charAt(i + 1) - '0';
+                        if (digit < 0 || digit > 9 || number * 10 + digit > matcher.groupCount())
+                            break;
+                        number = number * 10 + digit;
+                        i++;
+                    }
+                    group = matcher.group(number);
+                }
+                if (group != null)
+                    out.append(group);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static boolean sameChar(char a, char b, boolean ignoreCase) {
+        return a == b || ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b);
+    }
+
+    // A Matcher can't be interrupted, but it can be made to trip over the
+    // text it reads: every so often this view checks whether its search was
+    // cancelled and throws if it was.
+    static class CancellableText implements CharSequence {
+        private final CharSequence text;
+        private final BooleanSupplier cancelled;
+        private int reads;
+
+        CancellableText(CharSequence text, BooleanSupplier cancelled) {
+            this.text = text;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads == CANCEL_CHECK_INTERVAL) {
+                reads = 0;
+                if (cancelled.getAsBoolean())
+                    throw new CancellationException();
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new CancellableText(text.subSequence(start, end), cancelled);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+}
@@ -0,0 +1,343 @@
+package editor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.zip.CRC32C;
+
+// What the editor remembers from one run to the next, under ~/.jotr/session:
+// the settings every window shares, such as the zoom and the finder's last
+// query, the files the windows had open, where the caret was in each
+// file, and the line index of each large file. An index is only used again
+// while the file has the same size, modification time and content hash, so
+// reopening a large file that hasn't changed skips the pass over it. The
+// hash is of samples spread over the file, hashing all of it would take as
+// long as indexing it. Settings and file states are written on the journal
+// thread, which the application waits for when it ends. An editor that
+// can't tell whether another one is running keeps its session to itself.
+public class SessionStore {
+
+    private static final int INDEX_MAGIC = 0x4A4F5449;
+    private static final int INDEX_VERSION = 2;
+
+    // the head and tail of the file and this many blocks in between go into its hash
+    private static final int HASH_EDGE = 1 << 16;
+    private static final int HASH_BLOCKS = 16;
+    private static final int HASH_BLOCK = 1 << 12;
+
+    // the states of the files used least recently go once there are more than this
+    private static final int KEPT_FILE_STATES = 500;
+
+    private final ScheduledExecutorService writer;
+    private final Path settingsFile;
+    private final Path stateDirectory;
+    private final Path indexDirectory;
+
+    // only touched on the application thread, a copy goes to the writer
+    private final Properties settings = new Properties();
+
+    // reads what is kept but writes nothing back
+    private volatile boolean readOnly;
+
+    public SessionStore(ScheduledExecutorService writer, Path directory) {
+        this.writer = writer;
+        settingsFile = directory.resolve("session.properties");
+        stateDirectory = directory.resolve("files");
+        indexDirectory = directory.resolve("index");
+        settings.putAll(read(settingsFile));
+    }
+
+    public void setReadOnly() {
+        readOnly = true;
+    }
+
+    // SETTINGS
+
+    public String get(String key, String defaultValue) {
+        return settings.getProperty(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(settings.getProperty(key, ""));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = settings.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public void put(String key, Object value) {
+        settings.setProperty(key, String.valueOf(value));
+        saveSettings();
+    }
+
+    public void put(Map<String, ?> values) {
+        for (Map.Entry<String, ?> entry : values.entrySet())
+            settings.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+        saveSettings();
+    }
+
+    // the files the windows had open when the application ended, in the
+    // order the windows closed and of their tabs
+    public List<Path> getOpenFiles() {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; settings.containsKey("open." + i); i++)
+            files.add(Paths.get(settings.getProperty("open." + i)));
+        return files;
+    }
+
+    public void setOpenFiles(List<Path> files) {
+        settings.keySet().removeIf(key -> key.toString().startsWith("open."));
+        for (int i = 0; i < files.size(); i++)
+            settings.setProperty("open." + i, files.get(i).toAbsolutePath().toString());
+        saveSettings();
+    }
+
+    private void saveSettings() {
+        if (readOnly)
+            return;
+        Properties copy = new Properties();
+        copy.putAll(settings);
+        writer.execute(() -> write(settingsFile, copy));
+    }
+
+    // FILE STATES
+
+    // where the caret and the view were in a file when it was last closed
+    public static final class FileState {
+        private final int anchor;
+        private final int caretPosition;
+        private final int topLine;
+
+        public FileState(int anchor, int caretPosition, int topLine) {
+            this.anchor = anchor;
+            this.caretPosition = caretPosition;
+            this.topLine = topLine;
+        }
+
+        public int getAnchor() {
+            return anchor;
+        }
+
+        public int getCaretPosition() {
+            return caretPosition;
+        }
+
+        public int getTopLine() {
+            return topLine;
+        }
+    }
+
+    // null if the file was never closed with the editor
+    public FileState getFileState(Path file) {
+        Properties state = read(stateFile(file));
+        if (!file.toAbsolutePath().toString().equals(state.getProperty("path")))
+            return null;
+        try {
+            return new FileState(Integer.parseInt(state.getProperty("anchor")),
+                    Integer.parseInt(state.getProperty("caret")),
+                    Integer.parseInt(state.getProperty("topLine")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void putFileState(Path file, FileState fileState) {
+        if (readOnly)
+            return;
+        Properties state = new Properties();
+        state.setProperty("path", file.toAbsolutePath().toString());
+        state.setProperty("anchor", String.valueOf(fileState.anchor));
+        state.setProperty("caret", String.valueOf(fileState.caretPosition));
+        state.setProperty("topLine", String.valueOf(fileState.topLine));
+        Path stateFile = stateFile(file);
+        writer.execute(() -> {
+            write(stateFile, state);
+            prune(stateDirectory, KEPT_FILE_STATES);
+        });
+    }
+
+    private Path stateFile(Path file) {
+        return stateDirectory.resolve(key(file) + ".properties");
+    }
+
+    // LINE INDEXES
+
+    // Fills in text's index from the one kept for the file, if it was kept
+    // and the file hasn't changed since. Returns whether it did.
+    public boolean restoreIndex(Path file, FileFormat format, MappedText text) {
+        Path indexFile = indexFile(file);
+        if (!Files.exists(indexFile))
+            return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || !in.readUTF().equals(file.toAbsolutePath().toString())
+                    || !in.readUTF().equals(format.getCharset().name())
+                    || in.readLong() != Files.size(file)
+                    || in.readLong() != Files.getLastModifiedTime(file).toMillis()
+                    || in.readLong() != contentHash(file))
+                return false;
+            text.readIndex(in);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Metrics.failed("Read index of " + file, e);
+            return false;
+        }
+    }
+
+    // Keeps the index of a text that has been indexed all the way, on the
+    // calling thread; a file changed in the meantime isn't kept.
+    public void keepIndex(Path file, FileFormat format, MappedText text) {
+        if (readOnly)
+            return;
+        Path indexFile = indexFile(file);
+        Path temp = null;
+        try {
+            FileTime modified = Files.getLastModifiedTime(file);
+            long size = Files.size(file);
+            if (size != text.getSize())
+                return;
+            Files.createDirectories(indexDirectory);
+            temp = Files.createTempFile(indexDirectory, "index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeUTF(file.toAbsolutePath().toString());
+                out.writeUTF(format.getCharset().name());
+                out.writeLong(size);
+                out.writeLong(modified.toMillis());
+                out.writeLong(contentHash(file));
+                text.writeIndex(out);
+            }
+            if (!Files.getLastModifiedTime(file).equals(modified))
+                return;
+            move(temp, indexFile);
+            prune(indexDirectory, KEPT_FILE_STATES);
+        } catch (IOException | RuntimeException e) {
+            Metrics.failed("Keep index of " + file, e);
+        } finally {
+            try {
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Path indexFile(Path file) {
+        return indexDirectory.resolve(key(file) + ".index");
+    }
+
+    // CRC32C of the head and tail of the file and blocks spread evenly in between
+    static long contentHash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            hashRange(channel, crc, 0, HASH_EDGE);
+            for (int i = 1; i <= HASH_BLOCKS; i++)
+                hashRange(channel, crc, size / (HASH_BLOCKS + 1) * i, HASH_BLOCK);
+            hashRange(channel, crc, Math.max(0, size - HASH_EDGE), HASH_EDGE);
+            return crc.getValue() ^ size << 32;
+        }
+    }
+
+    private static void hashRange(FileChannel channel, CRC32C crc, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - position)));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        crc.update(buffer.flip());
+    }
+
+    // FILES
+
+    // the same file always gets the same name, without its path showing in it
+    private static String key(Path file) {
+        return UUID.nameUUIDFromBytes(file.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private static Properties read(Path file) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException | IllegalArgumentException e) {
+            Metrics.failed("Read " + file, e);
+        }
+        return properties;
+    }
+
+    // written whole and then moved into place, a crash leaves the old one
+    private void write(Path file, Properties properties) {
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), "session", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, null);
+            }
+            move(temp, file);
+        } catch (IOException e) {
+            Metrics.failed("Write " + file, e);
+        } finally {
+            try {
+                if (temp != null)
+                    Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // deletes the files modified least recently once there are more than kept
+    private static void prune(Path directory, int kept) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream)
+                files.add(file);
+            if (files.size() <= kept)
+                return;
+            files.sort(Comparator.comparing(file -> file.toFile().lastModified()));
+            for (Path file : files.subList(0, files.size() - kept))
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Metrics.failed("Prune " + directory, e);
+        }
+    }
+
+}
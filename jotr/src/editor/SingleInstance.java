@@ -0,0 +1,197 @@
+package editor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Lets one running editor open the files every later launch is given, so
+// opening a file from the shell costs a JVM start at most and no JavaFX
+// start. The first instance holds a lock on ~/.jotr/instance.lock for as
+// long as it runs and listens on a loopback port, which it writes with a
+// random token to a file only the user can read. A later launch that finds
+// the lock taken sends the token and its files there and exits once they
+// are taken; if that doesn't work out it ends with an error.
+public class SingleInstance {
+
+    private static final Path DIRECTORY = Paths.get(System.getProperty("user.home"), ".jotr");
+    private static final Path LOCK_FILE = DIRECTORY.resolve("instance.lock");
+    private static final Path PORT_FILE = DIRECTORY.resolve("instance");
+
+    // how long a later launch waits for the first one to be listening, and then to answer
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+    private static final int REPLY_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+    // a launch that hands over its files is answered with this once they are taken
+    private static final String OK = "OK";
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ServerSocket server;
+    private final String token;
+
+    private SingleInstance(FileChannel lockChannel, FileLock lock, ServerSocket server, String token) {
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.server = server;
+        this.token = token;
+    }
+
+    // This process as the one running instance, already taking connections
+    // that are answered once listen() is called, or null if another one runs.
+    public static SingleInstance claim() throws IOException {
+        Files.createDirectories(DIRECTORY);
+        FileChannel channel = FileChannel.open(LOCK_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            ServerSocket server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+            String token = newToken();
+            writePortFile(server.getLocalPort(), token);
+            return new SingleInstance(channel, lock, server, token);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes)
+            token.append(String.format("%02x", b));
+        return token.toString();
+    }
+
+    // written whole and then moved into place, and only readable by the user where that can be said
+    private static void writePortFile(int port, String token) throws IOException {
+        Path temp = Files.createTempFile(DIRECTORY, "instance", ".tmp");
+        try {
+            try {
+                Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            Files.write(temp, List.of(port + " " + token), StandardCharsets.UTF_8);
+            Files.move(temp, PORT_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Listening
+
+    // Passes the files each later launch hands over to onOpen, on a thread of
+    // its own; an empty list is a launch without files, which wants a window.
+    public void listen(Consumer<List<Path>> onOpen) {
+        Thread thread = new Thread(() -> {
+            while (!server.isClosed()) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(REPLY_TIMEOUT);
+                    List<Path> files = readRequest(socket);
+                    if (files == null)
+                        continue;
+                    reply(socket, OK);
+                    onOpen.accept(files);
+                } catch (IOException e) {
+                    if (!server.isClosed())
+                        Metrics.failed("Single instance", e);
+                }
+            }
+        }, "editor-instance");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // the token and then a file a line up to an empty line, or null if the token is wrong
+    private List<Path> readRequest(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.UTF_8));
+        if (!token.equals(reader.readLine()))
+            return null;
+        List<Path> files = new ArrayList<>();
+        for (String line = reader.readLine(); line != null && !line.isEmpty(); line = reader.readLine())
+            files.add(Paths.get(line));
+        return files;
+    }
+
+    private static void reply(Socket socket, String text) throws IOException {
+        Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        writer.write(text + "\n");
+        writer.flush();
+    }
+
+    // stops taking files, e.g. once the last window is closed and the application is ending
+    public void close() {
+        try {
+            server.close();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Handing over
+
+    // Sends the files to the running instance and returns whether it took
+    // them. Until it has written where it listens, or while it is still
+    // getting to the connection, this keeps trying for a few seconds.
+    public static boolean handOver(List<Path> files) {
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (true) {
+            try {
+                String[] portAndToken = Files.readString(PORT_FILE, StandardCharsets.UTF_8).trim().split(" ");
+                return send(Integer.parseInt(portAndToken[0]), portAndToken[1], files);
+            } catch (IOException | RuntimeException e) {
+                if (System.currentTimeMillis() > deadline)
+                    return false;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean send(int port, String token, List<Path> files) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), REPLY_TIMEOUT);
+            socket.setSoTimeout(REPLY_TIMEOUT);
+            StringBuilder request = new StringBuilder(token).append('\n');
+            for (Path file : files)
+                request.append(file.toAbsolutePath()).append('\n');
+            request.append('\n');
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(request.toString());
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            return OK.equals(reader.readLine());
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+package editor;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Styles the lines of a document by a Grammar. A line is lexed when it is
+// shown, starting from the state it starts in. Only a grammar that carries
+// state from line to line needs more than that: the highlighter keeps the
+// state of every line that doesn't start in state 0, as two sorted int
+// arrays, since most lines do. An edit re-lexes the lines it touched and
+// carries on only until the states agree with the ones kept; past a
+// screenful the rest is lexed on a background thread, so typing costs the
+// same whatever the size of the file. Used from the application thread only.
+public class SyntaxHighlighter implements DocumentListener {
+
+    // lines longer than this are left plain
+    private static final int LINE_LIMIT = 1 << 13;
+
+    // an edit re-lexes up to this many lines or chars straight away, the rest in the background
+    private static final int EDIT_LINE_LIMIT = 256;
+    private static final int EDIT_CHAR_LIMIT = 1 << 16;
+
+    private static final ExecutorService lexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "editor-syntax");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Runnable> listeners = new ArrayList<>();
+
+    private Document document;
+    private Grammar grammar;
+    private int lineCount;
+
+    // lines that don't start in state 0, and their states
+    private int[] stateLines = new int[0];
+    private int[] states = new int[0];
+    private int count;
+
+    private Pass pass;
+
+    // null for either leaves the text plain
+    public void setDocument(Document document, Grammar grammar) {
+        if (this.document != null)
+            this.document.removeListener(this);
+        this.document = document;
+        this.grammar = document == null ? null : grammar;
+        if (document != null)
+            document.addListener(this);
+
+        if (pass != null)
+            pass.cancelled = true;
+        pass = null;
+        count = 0;
+        lineCount = document == null ? 0 : document.getLineCount();
+        if (this.grammar != null && this.grammar.carriesState())
+            startPass(0);
+        fireChanged();
+    }
+
+    public Grammar getGrammar() {
+        return grammar;
+    }
+
+    // Passes the styled spans of a line to action, with offsets into text,
+    // which holds the line without its line break.
+    public void forEachSpan(int line, CharSequence text, Grammar.SpanConsumer action) {
+        if (grammar == null || line >= lineCount || text.length() > LINE_LIMIT)
+            return;
+        grammar.lex(text, 0, text.length(), stateAt(line), action);
+    }
+
+    // called when lines may be styled differently without the text having changed
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private void fireChanged() {
+        for (Runnable listener : new ArrayList<>(listeners))
+            listener.run();
+    }
+
+    // Edits
+
+    @Override
+    public void documentChanged(Edit edit) {
+        int lineDelta = document.getLineCount() - lineCount;
+        lineCount = document.getLineCount();
+        if (grammar == null || !grammar.carriesState())
+            return;
+
+        int firstLine = document.getLineOfOffset(edit.getOffset());
+        int lastLine = document.getLineOfOffset(edit.getOffset() + edit.getInsertedLength());
+        int oldLastLine = lastLine - lineDelta;
+
+        // a running pass read the text from before this edit, it starts over
+        int passFrom = -1;
+        if (pass != null) {
+            pass.cancelled = true;
+            passFrom = pass.from <= firstLine ? pass.from
+                    : pass.from > oldLastLine ? pass.from + lineDelta : firstLine;
+            pass = null;
+        }
+
+        // the lines the edit replaced lose their states, the ones after it keep theirs
+        int first = firstLineAfter(firstLine);
+        int last = firstLineAfter(oldLastLine);
+        System.arraycopy(stateLines, last, stateLines, first, count - last);
+        System.arraycopy(states, last, states, first, count - last);
+        count -= last - first;
+        for (int i = first; i < count; i++)
+            stateLines[i] += lineDelta;
+
+        int stopped = relex(firstLine, lastLine);
+        if (stopped >= 0 || passFrom >= 0)
+            startPass(stopped < 0 ? passFrom : passFrom < 0 ? stopped : Math.min(stopped, passFrom));
+    }
+
+    // Re-lexes from line on until, past lastLine, the next line's state comes
+    // out as kept. Returns the line it got to if it stopped at the limit
+    // instead, -1 otherwise.
+    private int relex(int line, int lastLine) {
+        int state = stateAt(line);
+        int lexedChars = 0;
+        for (int lexed = 0; line + 1 < lineCount; line++, lexed++) {
+            if (lexed == EDIT_LINE_LIMIT || lexedChars > EDIT_CHAR_LIMIT)
+                return line;
+            int start = document.getLineStart(line);
+            int end = document.getLineEnd(line);
+            int next = grammar.lex(document.subSequence(start, end), 0, end - start, state, null);
+            lexedChars += end - start;
+            if (line >= lastLine && next == stateAt(line + 1))
+                return -1;
+            setState(line + 1, next);
+            state = next;
+        }
+        return -1;
+    }
+
+    // Background pass
+
+    private void startPass(int from) {
+        Pass pass = new Pass(from);
+        this.pass = pass;
+        CharSequence text = document.snapshot();
+        int start = document.getLineStart(from);
+        int state = stateAt(from);
+        Grammar grammar = this.grammar;
+        lexer.execute(() -> pass.run(text, start, state, grammar));
+    }
+
+    // lexes every line from one on to the end of the text
+    private class Pass {
+        private final int from;
+        private volatile boolean cancelled;
+
+        Pass(int from) {
+            this.from = from;
+        }
+
+        void run(CharSequence text, int start, int state, Grammar grammar) {
+            IntArray lines = new IntArray();
+            IntArray found = new IntArray();
+            int length = text.length();
+            int line = from;
+            for (int lineStart = start; !cancelled; ) {
+                int lineEnd = lineStart;
+                while (lineEnd < length && text.charAt(lineEnd) != '\n')
+                    lineEnd++;
+                if (lineEnd == length)
+                    break;
+                int textEnd = lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+                state = grammar.lex(text, lineStart, textEnd, state, null);
+                line++;
+                if (state != 0) {
+                    lines.add(line);
+                    found.add(state);
+                }
+                lineStart = lineEnd + 1;
+            }
+            if (cancelled)
+                return;
+
+            Platform.runLater(() -> {
+                if (cancelled)
+                    return;
+                pass = null;
+                // the pass found every state after from
+                count = firstLineAfter(from);
+                ensureCapacity(count + lines.size());
+                for (int i = 0; i < lines.size(); i++) {
+                    stateLines[count] = lines.get(i);
+                    states[count] = found.get(i);
+                    count++;
+                }
+                fireChanged();
+            });
+        }
+    }
+
+    // States
+
+    private int stateAt(int line) {
+        int index = firstLineAtOrAfter(line);
+        return index < count && stateLines[index] == line ? states[index] : 0;
+    }
+
+    private void setState(int line, int state) {
+        int index = firstLineAtOrAfter(line);
+        boolean kept = index < count && stateLines[index] == line;
+        if (kept && state != 0) {
+            states[index] = state;
+        } else if (kept) {
+            System.arraycopy(stateLines, index + 1, stateLines, index, count - index - 1);
+            System.arraycopy(states, index + 1, states, index, count - index - 1);
+            count--;
+        } else if (state != 0) {
+            ensureCapacity(count + 1);
+            System.arraycopy(stateLines, index, stateLines, index + 1, count - index);
+            System.arraycopy(states, index, states, index + 1, count - index);
+            stateLines[index] = line;
+            states[index] = state;
+            count++;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (stateLines.length >= capacity)
+            return;
+        int length = Math.max(16, capacity + (capacity >> 1));
+        stateLines = Arrays.copyOf(stateLines, length);
+        states = Arrays.copyOf(states, length);
+    }
+
+    private int firstLineAfter(int line) {
+        return firstLineAtOrAfter(line + 1);
+    }
+
+    private int firstLineAtOrAfter(int line) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (stateLines[mid] < line)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,25 @@
+package editor;
+
+// Text a piece can point into. Buffers know where their line feeds are so the
+// piece tree can count lines without scanning characters.
+interface TextBuffer extends CharSequence {
+
+    // number of '\n' characters in [0, index)
+    int lineFeedsBefore(int index);
+
+    // position of the n-th '\n', counting from 0
+    int lineFeedAt(int n);
+
+    // drops decoded text that can be decoded again
+    default void releaseMemory() {
+    }
+
+    // roughly what the text and its line index take up on the heap
+    long heapBytes();
+
+    // whether some bytes of the file weren't valid in its charset and read as U+FFFD
+    default boolean isLossy() {
+        return false;
+    }
+
+}
@@ -1,18 +1,63 @@
 package editor;
 
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleStringProperty;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.util.List;
 
 public class TextFile {
     private final Path file;
-    private final List<String> content;
+    private final Document document;
+    private final FileFormat format;
+    private final ModificationTracker tracker;
+    private final DocumentListener trackerListener;
     private final SimpleStringProperty fileName;
+    private final SimpleBooleanProperty loading = new SimpleBooleanProperty(this, "loading");
+    private final ReadOnlyBooleanWrapper modified = new ReadOnlyBooleanWrapper(this, "modified");
+    private Journal journal;
+    // saving a lossy document was agreed to
+    private boolean lossAccepted;
+    // set for a binary file, which is only viewed
+    private final PagedFile bytes;
+    // set for a delimited file shown as a table, which is only viewed as well
+    private final CsvTable table;
 
-    public TextFile(Path file, List<String> content) {
+    public TextFile(Path file, Document document) {
+        this(file, document, FileFormat.DEFAULT);
+    }
+
+    public TextFile(Path file, Document document, FileFormat format) {
+        this(file, document, format, null, null);
+    }
+
+    // a binary file, shown as hex; its document stays empty and it is never saved
+    public TextFile(PagedFile bytes) {
+        this(bytes.getFile(), new PieceTable(""), FileFormat.DEFAULT, bytes, null);
+    }
+
+    // a delimited file, shown as a table; its document stays empty too
+    public TextFile(CsvTable table, FileFormat format) {
+        this(table.getBytes().getFile(), new PieceTable(""), format, table.getBytes(), table);
+    }
+
+    private TextFile(Path file, Document document, FileFormat format, PagedFile bytes, CsvTable table) {
         this.file = file;
-        this.content = content;
+        this.bytes = bytes;
+        this.table = table;
+        this.document = document;
+        this.format = format;
+        this.tracker = new ModificationTracker(document);
+        // registered after the tracker, so it sees the edit already counted
+        this.trackerListener = edit -> {
+            boolean wasModified = modified.get();
+            modified.set(tracker.isModified());
+            if (journal != null)
+                journal.edited(edit, wasModified);
+        };
+        document.addListener(trackerListener);
         fileName = new SimpleStringProperty(
                 file == null ? "Untitled" : file.getFileName().toString());
 
@@ -23,14 +68,124 @@ public class TextFile {
         return file;
     }
 
-    public List<String> getContent() {
-        return content;
+    public Document getDocument() {
+        return document;
+    }
+
+    public boolean isBinary() {
+        return bytes != null && table == null;
+    }
+
+    public boolean isTable() {
+        return table != null;
+    }
+
+    // text that is only looked at, as hex or as a table
+    public boolean isViewOnly() {
+        return bytes != null;
+    }
+
+    // the rows of a file shown as a table, null otherwise
+    public CsvTable getTable() {
+        return table;
+    }
+
+    // the bytes of a binary file, null for text
+    public PagedFile getBytes() {
+        return bytes;
+    }
+
+    // some of the file didn't decode, so saving it won't give back the same bytes
+    public boolean isLossy() {
+        return document.isLossy();
+    }
+
+    public boolean isLossAccepted() {
+        return lossAccepted;
+    }
+
+    public void acceptLoss() {
+        lossAccepted = true;
+    }
+
+    // how the file is encoded and which line break it uses, saving keeps to it
+    public FileFormat getFormat() {
+        return format;
+    }
+
+    public boolean isModified() {
+        return modified.get();
+    }
+
+    public ReadOnlyBooleanProperty modifiedProperty() {
+        return modified.getReadOnlyProperty();
+    }
+
+    // the document now matches the file on disk
+    public void markSaved() {
+        markSaved(tracker.checkpoint());
+    }
+
+    // the file on disk now holds the text as it was at the checkpoint
+    public void markSaved(ModificationTracker.Checkpoint checkpoint) {
+        tracker.markSaved(checkpoint);
+        modified.set(tracker.isModified());
+        if (journal != null)
+            journal.saved();
+    }
+
+    // the document has yet to be written to this file
+    public void markModified() {
+        tracker.markModified();
+        modified.set(true);
+    }
+
+    public ModificationTracker.Checkpoint checkpoint() {
+        return tracker.checkpoint();
+    }
+
+    // records unsaved edits from now on, a document that already has some starts with a checkpoint
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+        if (isModified() && !journal.isActive())
+            journal.checkpoint();
+    }
+
+    // the unsaved edits are given up on, they won't be recovered
+    public void discardChanges() {
+        if (journal != null)
+            journal.discard();
+    }
+
+    // stops following the document, which may live on in another TextFile;
+    // a journal of unsaved edits stays for the next start
+    public void dispose() {
+        if (journal != null)
+            journal.close();
+        tracker.dispose();
+        document.removeListener(trackerListener);
+        if (table != null)
+            table.close();
+        if (bytes != null) {
+            try {
+                bytes.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // true while text is still going into the document in the background,
+    // the file being read or a long paste
+    public SimpleBooleanProperty loadingProperty() {
+        return loading;
+    }
+
+    public boolean isLoading() {
+        return loading.get();
     }
 
-    //TODO: Use this later to display in window title
     public SimpleStringProperty getFileName() {
         return fileName;
     }
 
 }
-
@@ -0,0 +1,866 @@
+package editor;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.geometry.Bounds;
+import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.geometry.Point2D;
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.control.IndexRange;
+import javafx.scene.control.IndexedCell;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.skin.VirtualFlow;
+import javafx.scene.input.InputMethodRequests;
+import javafx.scene.input.InputMethodEvent;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Background;
+import javafx.scene.layout.BackgroundFill;
+import javafx.scene.layout.CornerRadii;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Path;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+// Editable view of a Document. Only the lines inside the viewport get nodes:
+// a VirtualFlow recycles one cell per visible line, and every cell reads its
+// line straight from the document, so layout cost doesn't grow with the file.
+public class TextView extends Region {
+
+    // room left for the vertical scroll bar and cell padding when wrapping
+    private static final double WRAP_MARGIN = 24;
+    private static final double CARET_MARGIN = 20;
+    private static final int MAX_HIGHLIGHT_ELEMENTS = 4096;
+
+    // A cell lays out at most this much of a line, a part of it around the
+    // caret or else its start; the part moves in steps of half of it, so it
+    // only changes once the caret gets near its edge.
+    private static final int MAX_SHOWN_LENGTH = 1 << 16;
+
+    private final VirtualFlow<LineCell> flow = new VirtualFlow<>();
+
+    private Document document = new PieceTable("");
+
+    private final DocumentListener documentListener = this::onDocumentChanged;
+
+    private MatchIndex highlights;
+
+    private final Runnable highlightsListener = this::markHighlightsStale;
+
+    private SyntaxHighlighter syntax;
+
+    private final Runnable syntaxListener = this::markCellsStale;
+
+    private final ReadOnlyIntegerWrapper caretPosition = new ReadOnlyIntegerWrapper(this, "caretPosition");
+
+    private final ReadOnlyIntegerWrapper anchor = new ReadOnlyIntegerWrapper(this, "anchor");
+
+    private final ObjectProperty<Font> font = new SimpleObjectProperty<>(this, "font", Font.getDefault());
+
+    private final BooleanProperty wrapText = new SimpleBooleanProperty(this, "wrapText");
+
+    private final BooleanProperty editable = new SimpleBooleanProperty(this, "editable", true);
+
+    // column to return to when moving up and down through shorter lines
+    private int preferredColumn = -1;
+
+    // what Enter inserts
+    private String lineSeparator = "\n";
+
+    // run when the keyboard or the mouse moves the caret, but not when an edit does
+    private Runnable onCaretMoved = () -> {};
+
+    // What changed since the last layout pass. Edits, caret moves and new
+    // matches only mark the cells stale; the next pulse brings the visible
+    // cells up to date and scrolls once, however many came in before it.
+    private boolean cellsStale;
+    private boolean selectionStale;
+    private boolean highlightsStale;
+    private boolean scrollPending;
+
+
+    // Constructor
+
+    public TextView() {
+        getStyleClass().add("text-view");
+        setFocusTraversable(true);
+        setBackground(new Background(new BackgroundFill(Color.WHITE, CornerRadii.EMPTY, Insets.EMPTY)));
+
+        flow.setCellFactory(f -> new LineCell());
+        getChildren().add(flow);
+
+        font.addListener(observable -> updateLayout());
+        wrapText.addListener(observable -> updateLayout());
+        focusedProperty().addListener(observable -> markSelectionStale());
+
+        addEventHandler(KeyEvent.KEY_PRESSED, this::onKeyPressed);
+        addEventHandler(KeyEvent.KEY_TYPED, this::onKeyTyped);
+        addEventHandler(MouseEvent.MOUSE_PRESSED, this::onMousePressed);
+        addEventHandler(MouseEvent.MOUSE_DRAGGED, this::onMouseDragged);
+        addEventHandler(InputMethodEvent.INPUT_METHOD_TEXT_CHANGED, this::onInputMethodTextChanged);
+        setInputMethodRequests(new CaretInputMethodRequests());
+
+        setDocument(document);
+        updateLayout();
+    }
+
+
+    // Document
+
+    public Document getDocument() {
+        return document;
+    }
+
+    public void setDocument(Document document) {
+        this.document.removeListener(documentListener);
+        this.document = document;
+        document.addListener(documentListener);
+
+        preferredColumn = -1;
+        anchor.set(0);
+        caretPosition.set(0);
+        flow.setCellCount(document.getLineCount());
+        flow.setPosition(0);
+        markCellsStale();
+    }
+
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    public void setLineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+    }
+
+    // marks every match of the index that falls inside the viewport, null for none
+    public void setHighlights(MatchIndex highlights) {
+        if (this.highlights != null)
+            this.highlights.removeListener(highlightsListener);
+        this.highlights = highlights;
+        if (highlights != null)
+            highlights.addListener(highlightsListener);
+        markHighlightsStale();
+    }
+
+    public MatchIndex getHighlights() {
+        return highlights;
+    }
+
+    // colours each line by the highlighter's grammar, null for plain text
+    public void setSyntaxHighlighter(SyntaxHighlighter syntax) {
+        if (this.syntax != null)
+            this.syntax.removeListener(syntaxListener);
+        this.syntax = syntax;
+        if (syntax != null)
+            syntax.addListener(syntaxListener);
+        markCellsStale();
+    }
+
+    private static Color styleColor(Grammar.Style style) {
+        switch (style) {
+            case ERROR: return Color.FIREBRICK;
+            case WARNING: return Color.DARKORANGE;
+            case INFO: return Color.SEAGREEN;
+            case DEBUG: return Color.GRAY;
+            case TIMESTAMP: return Color.STEELBLUE;
+            case KEY: return Color.DARKMAGENTA;
+            case STRING: return Color.DARKGREEN;
+            case NUMBER: return Color.MEDIUMBLUE;
+            case LITERAL: return Color.DARKCYAN;
+            case PUNCTUATION: return Color.GRAY;
+            case COLUMN_1: return Color.BLACK;
+            case COLUMN_2: return Color.MEDIUMBLUE;
+            case COLUMN_3: return Color.DARKGREEN;
+            case COLUMN_4: return Color.DARKMAGENTA;
+            case COLUMN_5: return Color.SADDLEBROWN;
+            default: return Color.TEAL;
+        }
+    }
+
+    private void onDocumentChanged(Edit edit) {
+        anchor.set(adjust(anchor.get(), edit));
+        caretPosition.set(adjust(caretPosition.get(), edit));
+        markCellsStale();
+    }
+
+    // where an offset ends up after edit, offsets inside the removed text move to its start
+    private static int adjust(int offset, Edit edit) {
+        if (offset >= edit.getOffset() + edit.getRemovedLength())
+            return offset + edit.getInsertedLength() - edit.getRemovedLength();
+        return Math.min(offset, edit.getOffset());
+    }
+
+
+    // Editing
+
+    public void replaceText(int start, int end, String text) {
+        document.replace(start, end, text);
+        positionCaret(start + text.length());
+    }
+
+    public void replaceSelection(String text) {
+        IndexRange selection = getSelection();
+        replaceText(selection.getStart(), selection.getEnd(), text);
+    }
+
+    public CharSequence getSelectedText() {
+        IndexRange selection = getSelection();
+        return document.subSequence(selection.getStart(), selection.getEnd());
+    }
+
+
+    // Caret and selection
+
+    public ReadOnlyIntegerProperty caretPositionProperty() {
+        return caretPosition.getReadOnlyProperty();
+    }
+
+    public int getCaretPosition() {
+        return caretPosition.get();
+    }
+
+    public ReadOnlyIntegerProperty anchorProperty() {
+        return anchor.getReadOnlyProperty();
+    }
+
+    public int getAnchor() {
+        return anchor.get();
+    }
+
+    public IndexRange getSelection() {
+        return IndexRange.normalize(anchor.get(), caretPosition.get());
+    }
+
+    public void positionCaret(int position) {
+        selectRange(position, position);
+    }
+
+    public void selectRange(int anchor, int caretPosition) {
+        this.anchor.set(clamp(anchor));
+        this.caretPosition.set(clamp(caretPosition));
+        preferredColumn = -1;
+        markSelectionStale();
+        scrollToCaret();
+    }
+
+    public void selectAll() {
+        selectRange(0, document.length());
+    }
+
+    public void setOnCaretMoved(Runnable onCaretMoved) {
+        this.onCaretMoved = onCaretMoved;
+    }
+
+    private int clamp(int offset) {
+        return Math.max(0, Math.min(offset, document.length()));
+    }
+
+    // brings the caret into the viewport with the next layout pass
+    public void scrollToCaret() {
+        scrollPending = true;
+        requestLayout();
+    }
+
+    // the first line in the viewport, for coming back to the same place later
+    public int getTopLine() {
+        LineCell cell = flow.getFirstVisibleCell();
+        return cell == null ? 0 : cell.getIndex();
+    }
+
+    // brings line to the top of the viewport, a caret scroll after it only moves as far as it needs to
+    public void scrollToTopLine(int line) {
+        flow.scrollToTop(Math.max(0, Math.min(line, document.getLineCount() - 1)));
+    }
+
+    // scrolls as little as possible
+    private void scrollCaretIntoView() {
+        int line = document.getLineOfOffset(getCaretPosition());
+        flow.scrollTo(line);
+        if (isWrapText())
+            return;
+
+        flow.layout();
+        LineCell cell = flow.getVisibleCell(line);
+        ScrollBar bar = horizontalScrollBar();
+        if (cell == null || bar == null)
+            return;
+
+        double caretX = flow.sceneToLocal(cell.caretSceneX(), 0).getX();
+        if (caretX < CARET_MARGIN)
+            bar.setValue(Math.max(bar.getMin(), bar.getValue() + caretX - CARET_MARGIN));
+        else if (caretX > flow.getWidth() - CARET_MARGIN * 2)
+            bar.setValue(Math.min(bar.getMax(), bar.getValue() + caretX - flow.getWidth() + CARET_MARGIN * 2));
+    }
+
+    // the flow doesn't expose its scroll bars, but they are ordinary children
+    private ScrollBar horizontalScrollBar() {
+        for (Node node : flow.lookupAll(".scroll-bar"))
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.HORIZONTAL)
+                return (ScrollBar) node;
+        return null;
+    }
+
+
+    // Properties
+
+    public final ObjectProperty<Font> fontProperty() {
+        return font;
+    }
+
+    public final Font getFont() {
+        return font.get();
+    }
+
+    public final void setFont(Font font) {
+        this.font.set(font);
+    }
+
+    public final BooleanProperty wrapTextProperty() {
+        return wrapText;
+    }
+
+    public final boolean isWrapText() {
+        return wrapText.get();
+    }
+
+    public final void setWrapText(boolean wrapText) {
+        this.wrapText.set(wrapText);
+    }
+
+    public final BooleanProperty editableProperty() {
+        return editable;
+    }
+
+    public final boolean isEditable() {
+        return editable.get();
+    }
+
+    public final void setEditable(boolean editable) {
+        this.editable.set(editable);
+    }
+
+
+    // Layout
+
+    @Override
+    protected void layoutChildren() {
+        flow.resizeRelocate(0, 0, getWidth(), getHeight());
+        flush();
+    }
+
+    @Override
+    protected double computePrefWidth(double height) {
+        return 400;
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        return 300;
+    }
+
+    private void updateLayout() {
+        // unwrapped lines all have the same height, which lets the flow skip measuring them
+        if (isWrapText()) {
+            flow.setFixedCellSize(-1);
+        } else {
+            Text probe = new Text("X");
+            probe.setFont(getFont());
+            flow.setFixedCellSize(Math.ceil(probe.getLayoutBounds().getHeight()));
+        }
+        markCellsStale();
+        scrollToCaret();
+    }
+
+    private void markCellsStale() {
+        cellsStale = true;
+        requestLayout();
+    }
+
+    private void markSelectionStale() {
+        selectionStale = true;
+        requestLayout();
+    }
+
+    private void markHighlightsStale() {
+        highlightsStale = true;
+        requestLayout();
+    }
+
+    // Brings the cells up to date with whatever was marked stale, and makes
+    // any pending scroll. Called by the layout pass, and before anything that
+    // reads offsets back from the cells.
+    private void flush() {
+        if (cellsStale) {
+            // refreshing a cell redraws its matches and selection too
+            cellsStale = false;
+            selectionStale = false;
+            highlightsStale = false;
+            if (flow.getCellCount() != document.getLineCount())
+                flow.setCellCount(document.getLineCount());
+            forEachVisibleCell(LineCell::refresh);
+            flow.requestLayout();
+        }
+        if (highlightsStale) {
+            highlightsStale = false;
+            forEachVisibleCell(LineCell::updateHighlights);
+        }
+        if (selectionStale) {
+            selectionStale = false;
+            forEachVisibleCell(LineCell::updateSelection);
+        }
+        if (scrollPending) {
+            scrollPending = false;
+            scrollCaretIntoView();
+        }
+    }
+
+    private void forEachVisibleCell(Consumer<LineCell> action) {
+        LineCell first = flow.getFirstVisibleCell();
+        LineCell last = flow.getLastVisibleCell();
+        if (first == null || last == null)
+            return;
+        for (int i = first.getIndex(); i <= last.getIndex(); i++) {
+            LineCell cell = flow.getVisibleCell(i);
+            if (cell != null)
+                action.accept(cell);
+        }
+    }
+
+    private int visibleLineCount() {
+        LineCell first = flow.getFirstVisibleCell();
+        LineCell last = flow.getLastVisibleCell();
+        return first == null || last == null ? 1 : Math.max(1, last.getIndex() - first.getIndex());
+    }
+
+    // document offset under a point in the scene, clamped to the visible lines
+    private int offsetAt(double sceneX, double sceneY) {
+        flush();
+        LineCell first = flow.getFirstVisibleCell();
+        LineCell last = flow.getLastVisibleCell();
+        if (first == null || last == null)
+            return 0;
+
+        LineCell below = null;
+        for (int i = first.getIndex(); i <= last.getIndex(); i++) {
+            LineCell cell = flow.getVisibleCell(i);
+            if (cell == null || cell.isEmpty())
+                continue;
+            Bounds bounds = cell.localToScene(cell.getLayoutBounds());
+            if (sceneY < bounds.getMaxY() || i == first.getIndex() && sceneY < bounds.getMinY())
+                return cell.offsetAt(sceneX, Math.max(sceneY, bounds.getMinY()));
+            below = cell;
+        }
+        return below == null ? document.length() : below.offsetAt(sceneX, below.localToScene(0, 0).getY());
+    }
+
+
+    /* * * * * * * *\
+     *  KEYBOARD   *
+    \* * * * * * * */
+
+    private void onKeyPressed(KeyEvent event) {
+        boolean extend = event.isShiftDown();
+        boolean word = event.isShortcutDown();
+        IndexRange selection = getSelection();
+        int caret = getCaretPosition();
+
+        switch (event.getCode()) {
+            case LEFT:
+                if (selection.getLength() > 0 && !extend)
+                    moveCaret(selection.getStart(), false);
+                else
+                    moveCaret(word ? previousWord(caret) : previousPosition(caret), extend);
+                break;
+            case RIGHT:
+                if (selection.getLength() > 0 && !extend)
+                    moveCaret(selection.getEnd(), false);
+                else
+                    moveCaret(word ? nextWord(caret) : nextPosition(caret), extend);
+                break;
+            case UP:
+                moveVertically(-1, extend);
+                break;
+            case DOWN:
+                moveVertically(1, extend);
+                break;
+            case PAGE_UP:
+                moveVertically(-visibleLineCount(), extend);
+                break;
+            case PAGE_DOWN:
+                moveVertically(visibleLineCount(), extend);
+                break;
+            case HOME:
+                moveCaret(word ? 0 : document.getLineStart(document.getLineOfOffset(caret)), extend);
+                break;
+            case END:
+                moveCaret(word ? document.length() : document.getLineEnd(document.getLineOfOffset(caret)), extend);
+                break;
+            case ENTER:
+                if (isEditable())
+                    replaceSelection(lineSeparator);
+                break;
+            case TAB:
+                if (isEditable() && !event.isShortcutDown())
+                    replaceSelection("\t");
+                break;
+            case BACK_SPACE:
+                if (isEditable())
+                    replaceText(selection.getLength() > 0 ? selection.getStart() : previousPosition(caret),
+                            selection.getEnd(), "");
+                break;
+            case DELETE:
+                if (isEditable())
+                    replaceText(selection.getStart(),
+                            selection.getLength() > 0 ? selection.getEnd() : nextPosition(caret), "");
+                break;
+            default:
+                return;
+        }
+        event.consume();
+    }
+
+    private void onKeyTyped(KeyEvent event) {
+        String character = event.getCharacter();
+        if (!isEditable() || character.isEmpty())
+            return;
+        // shortcuts are left to the menus, but AltGr (control + alt) still types
+        if ((event.isControlDown() || event.isAltDown() || event.isMetaDown())
+                && !(event.isControlDown() && event.isAltDown()))
+            return;
+        // line breaks, tabs and backspace are handled on key press
+        char c = character.charAt(0);
+        if (c < 0x20 || c == 0x7F)
+            return;
+
+        replaceSelection(character);
+        event.consume();
+    }
+
+    private void onInputMethodTextChanged(InputMethodEvent event) {
+        if (isEditable() && !event.getCommitted().isEmpty())
+            replaceSelection(event.getCommitted());
+    }
+
+    private void moveCaret(int position, boolean extend) {
+        selectRange(extend ? getAnchor() : position, position);
+        onCaretMoved.run();
+    }
+
+    private void moveVertically(int lines, boolean extend) {
+        int caret = getCaretPosition();
+        int line = document.getLineOfOffset(caret);
+        int column = preferredColumn >= 0 ? preferredColumn : caret - document.getLineStart(line);
+        int target = Math.max(0, Math.min(line + lines, document.getLineCount() - 1));
+
+        moveCaret(Math.min(document.getLineStart(target) + column, document.getLineEnd(target)), extend);
+        preferredColumn = column;
+    }
+
+    // steps over line breaks and surrogate pairs as a whole
+    private int previousPosition(int offset) {
+        if (offset == 0)
+            return 0;
+        int previous = offset - 1;
+        char c = document.charAt(previous);
+        if (previous > 0 && (c == '\n' && document.charAt(previous - 1) == '\r'
+                || Character.isLowSurrogate(c) && Character.isHighSurrogate(document.charAt(previous - 1))))
+            previous--;
+        return previous;
+    }
+
+    private int nextPosition(int offset) {
+        if (offset >= document.length())
+            return document.length();
+        int next = offset + 1;
+        char c = document.charAt(offset);
+        if (next < document.length() && (c == '\r' && document.charAt(next) == '\n'
+                || Character.isHighSurrogate(c) && Character.isLowSurrogate(document.charAt(next))))
+            next++;
+        return next;
+    }
+
+    private int previousWord(int offset) {
+        while (offset > 0 && Character.isWhitespace(document.charAt(offset - 1)))
+            offset--;
+        while (offset > 0 && isWordChar(document.charAt(offset - 1)))
+            offset--;
+        return offset;
+    }
+
+    private int nextWord(int offset) {
+        while (offset < document.length() && isWordChar(document.charAt(offset)))
+            offset++;
+        while (offset < document.length() && Character.isWhitespace(document.charAt(offset)))
+            offset++;
+        return offset;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+
+    /* * * * * * * *\
+     *    MOUSE    *
+    \* * * * * * * */
+
+    private void onMousePressed(MouseEvent event) {
+        if (isOnScrollBar(event))
+            return;
+        requestFocus();
+        if (event.getButton() != MouseButton.PRIMARY)
+            return;
+
+        int offset = offsetAt(event.getSceneX(), event.getSceneY());
+        if (event.getClickCount() == 2) {
+            selectRange(previousWord(offset), nextWordEnd(offset));
+            onCaretMoved.run();
+        } else if (event.getClickCount() >= 3) {
+            int line = document.getLineOfOffset(offset);
+            selectRange(document.getLineStart(line), document.getLineEnd(line));
+            onCaretMoved.run();
+        } else {
+            moveCaret(offset, event.isShiftDown());
+        }
+    }
+
+    private void onMouseDragged(MouseEvent event) {
+        if (isOnScrollBar(event) || event.getButton() != MouseButton.PRIMARY)
+            return;
+
+        // keep selecting past the top and bottom edges
+        Point2D point = sceneToLocal(event.getSceneX(), event.getSceneY());
+        if (point.getY() < 0)
+            flow.scrollPixels(point.getY());
+        else if (point.getY() > getHeight())
+            flow.scrollPixels(point.getY() - getHeight());
+
+        moveCaret(offsetAt(event.getSceneX(), event.getSceneY()), true);
+    }
+
+    private int nextWordEnd(int offset) {
+        while (offset < document.length() && isWordChar(document.charAt(offset)))
+            offset++;
+        return offset;
+    }
+
+    private static boolean isOnScrollBar(MouseEvent event) {
+        for (Node node = event.getPickResult().getIntersectedNode(); node != null; node = node.getParent())
+            if (node instanceof ScrollBar)
+                return true;
+        return false;
+    }
+
+    private class CaretInputMethodRequests implements InputMethodRequests {
+        @Override
+        public Point2D getTextLocation(int offset) {
+            flush();
+            LineCell cell = flow.getVisibleCell(document.getLineOfOffset(getCaretPosition()));
+            return cell == null ? localToScreen(0, 0) : cell.localToScreen(0, cell.getHeight());
+        }
+
+        @Override
+        public int getLocationOffset(int x, int y) {
+            return 0;
+        }
+
+        @Override
+        public void cancelLatestCommittedText() {
+        }
+
+        @Override
+        public String getSelectedText() {
+            return TextView.this.getSelectedText().toString();
+        }
+    }
+
+
+    /* * * * * * * *\
+     *  LINE CELL  *
+    \* * * * * * * */
+
+    // A line is a TextFlow of Text pieces, one for every run of text in the
+    // same style; plain text is a single piece. A line longer than
+    // MAX_SHOWN_LENGTH only shows part of itself, unstyled, as styling
+    // starts at the beginning of a line.
+    private class LineCell extends IndexedCell<String> {
+
+        private final TextFlow text = new TextFlow();
+
+        // pieces in use while the line is split up
+        private int pieceCount;
+        private int styledEnd;
+
+        private final Path selection = new Path();
+
+        private final Path caret = new Path();
+
+        private final Path matches = new Path();
+
+        private int lineStart;
+
+        private int lineEnd;
+
+        // the part of the line the cell shows
+        private int shownStart;
+
+        private int shownEnd;
+
+        LineCell() {
+            getStyleClass().add("line-cell");
+            setPadding(new Insets(0, 4, 0, 4));
+            setBackground(Background.EMPTY);
+
+            text.prefWidthProperty().bind(Bindings.when(TextView.this.wrapText)
+                    .then(TextView.this.widthProperty().subtract(WRAP_MARGIN)).otherwise(Region.USE_COMPUTED_SIZE));
+
+            selection.setStroke(null);
+            selection.setFill(Color.LIGHTSKYBLUE);
+            selection.setManaged(false);
+            caret.setStrokeWidth(1);
+            caret.setManaged(false);
+            matches.setStroke(null);
+            matches.setFill(Color.KHAKI);
+            matches.setManaged(false);
+
+            setGraphic(new Group(matches, selection, text, caret));
+            setText(null);
+        }
+
+        @Override
+        public void updateIndex(int index) {
+            super.updateIndex(index);
+            refresh();
+        }
+
+        void refresh() {
+            int line = getIndex();
+            if (line < 0 || line >= document.getLineCount()) {
+                updateItem(null, true);
+                return;
+            }
+            lineStart = document.getLineStart(line);
+            lineEnd = document.getLineEnd(line);
+            shownStart = shownStart();
+            shownEnd = Math.min(lineEnd, shownStart + MAX_SHOWN_LENGTH);
+            updateItem(document.subSequence(shownStart, shownEnd).toString(), false);
+        }
+
+        private int shownStart() {
+            int position = getCaretPosition();
+            if (lineEnd - lineStart <= MAX_SHOWN_LENGTH || position < lineStart || position > lineEnd)
+                return lineStart;
+            int step = MAX_SHOWN_LENGTH / 2;
+            int steps = Math.max(0, position - lineStart - step / 2) / step;
+            return Math.min(lineStart + steps * step, lineEnd - MAX_SHOWN_LENGTH);
+        }
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            setPieces(empty ? "" : item);
+            updateHighlights();
+            updateSelection();
+        }
+
+        private void setPieces(String line) {
+            pieceCount = 0;
+            styledEnd = 0;
+            if (syntax != null && !line.isEmpty() && shownEnd - shownStart == lineEnd - lineStart) {
+                syntax.forEachSpan(getIndex(), line, (start, end, style) -> {
+                    if (start < styledEnd)
+                        return;
+                    if (start > styledEnd)
+                        setPiece(line.substring(styledEnd, start), Color.BLACK);
+                    setPiece(line.substring(start, end), styleColor(style));
+                    styledEnd = end;
+                });
+            }
+            if (styledEnd < line.length() || pieceCount == 0)
+                setPiece(line.substring(styledEnd), Color.BLACK);
+
+            List<Node> pieces = text.getChildren();
+            if (pieces.size() > pieceCount)
+                pieces.subList(pieceCount, pieces.size()).clear();
+        }
+
+        // the next piece, reusing the one the cell had there
+        private void setPiece(String content, Color color) {
+            List<Node> pieces = text.getChildren();
+            Text piece;
+            if (pieceCount < pieces.size()) {
+                piece = (Text) pieces.get(pieceCount);
+            } else {
+                piece = new Text();
+                piece.fontProperty().bind(TextView.this.font);
+                pieces.add(piece);
+            }
+            piece.setText(content);
+            piece.setFill(color);
+            pieceCount++;
+        }
+
+        void updateHighlights() {
+            matches.getElements().clear();
+            if (isEmpty() || highlights == null)
+                return;
+            highlights.forEachMatch(shownStart, shownEnd, (start, end) -> {
+                int from = Math.max(start, shownStart);
+                int to = Math.min(end, shownEnd);
+                // a very long line could hold more matches than are worth drawing
+                if (from < to && matches.getElements().size() < MAX_HIGHLIGHT_ELEMENTS)
+                    matches.getElements().addAll(text.rangeShape(from - shownStart, to - shownStart));
+            });
+        }
+
+        void updateSelection() {
+            // the caret moved far enough along a long line to show another part of it
+            if (!isEmpty() && shownStart() != shownStart) {
+                refresh();
+                return;
+            }
+            IndexRange range = getSelection();
+            int from = Math.max(range.getStart(), shownStart);
+            int to = Math.min(range.getEnd(), shownEnd);
+            if (!isEmpty() && from < to)
+                selection.getElements().setAll(text.rangeShape(from - shownStart, to - shownStart));
+            else
+                selection.getElements().clear();
+
+            int position = getCaretPosition();
+            if (!isEmpty() && TextView.this.isFocused() && position >= shownStart && position <= shownEnd)
+                caret.getElements().setAll(text.caretShape(position - shownStart, true));
+            else
+                caret.getElements().clear();
+        }
+
+        int offsetAt(double sceneX, double sceneY) {
+            Point2D point = text.sceneToLocal(sceneX, sceneY);
+            Bounds bounds = text.getLayoutBounds();
+            double y = Math.max(bounds.getMinY(), Math.min(point.getY(), bounds.getMaxY() - 1));
+            int index = text.hitTest(new Point2D(point.getX(), y)).getInsertionIndex();
+            return shownStart + Math.min(index, shownEnd - shownStart);
+        }
+
+        double caretSceneX() {
+            int position = Math.max(shownStart, Math.min(getCaretPosition(), shownEnd));
+            Bounds bounds = new Path(text.caretShape(position - shownStart, true)).getLayoutBounds();
+            return text.localToScene(bounds.getMinX(), 0).getX();
+        }
+
+    }
+
+}
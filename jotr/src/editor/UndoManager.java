@@ -0,0 +1,266 @@
+package editor;
+
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+// Undo and redo history of a document. An entry is just where an edit
+// happened, the text it took out and how long the text it put in was; the
+// removed text is a view of the document's buffers, not a copy, and undoing
+// splices those pieces back in rather than copying their text. Applying an
+// entry gives back its inverse for the other stack, so undo and redo cost
+// about as much as the edit itself. Consecutive typing and deleting is
+// merged into one entry, and the oldest entries are dropped once the history
+// holds more removed text than its budget.
+public class UndoManager implements DocumentListener {
+
+    public static final long DEFAULT_BUDGET = 64L << 20;
+
+    // rough size of an entry apart from its text
+    private static final int ENTRY_OVERHEAD = 64;
+
+    // typing and deleting only merge up to this many characters, and not after a pause
+    private static final int COALESCE_LIMIT = 1 << 10;
+    private static final long COALESCE_PAUSE = TimeUnit.MILLISECONDS.toNanos(1500);
+
+    private final Document document;
+    private final long budget;
+    private final Deque<Entry> undoStack = new ArrayDeque<>();
+    private final Deque<Entry> redoStack = new ArrayDeque<>();
+    private long used;
+
+    // the edit fired while an entry is applied, it becomes the inverse entry
+    private boolean applying;
+    private Edit applied;
+
+    private long lastEditTime;
+    private boolean coalesce;
+
+    // the entry edits go into between beginGroup() and endGroup()
+    private boolean grouping;
+    private Entry group;
+
+    private final ReadOnlyBooleanWrapper canUndo = new ReadOnlyBooleanWrapper(this, "canUndo");
+    private final ReadOnlyBooleanWrapper canRedo = new ReadOnlyBooleanWrapper(this, "canRedo");
+
+    public UndoManager(Document document) {
+        this(document, DEFAULT_BUDGET);
+    }
+
+    // budget is in bytes of removed text kept around, the latest entry is kept whatever its size
+    public UndoManager(Document document, long budget) {
+        this.document = document;
+        this.budget = budget;
+        document.addListener(this);
+    }
+
+    @Override
+    public void documentChanged(Edit edit) {
+        if (applying) {
+            applied = edit;
+            return;
+        }
+        if (edit.isExternal())
+            return;
+
+        clear(redoStack);
+        long now = System.nanoTime();
+        Entry last = undoStack.peek();
+        if (group != null && group == last && last.extend(edit)) {
+            used += last.updateCost();
+        } else if (coalesce && last != null && now - lastEditTime < COALESCE_PAUSE && last.absorb(edit)) {
+            used += last.updateCost();
+        } else {
+            Entry entry = new Entry(edit.getOffset(), edit.getRemoved(), edit.getInsertedLength());
+            used += entry.updateCost();
+            undoStack.push(entry);
+        }
+        lastEditTime = now;
+        coalesce = true;
+        if (grouping)
+            group = undoStack.peek();
+        evict();
+        updateState();
+    }
+
+    // the next edit starts an entry of its own, e.g. after the caret was moved
+    public void breakCoalescing() {
+        coalesce = false;
+    }
+
+    // Edits until endGroup() that carry on right after the text the first one
+    // put in are undone together with it, e.g. a long paste put in a chunk at
+    // a time; anything else still starts an entry of its own.
+    public void beginGroup() {
+        grouping = true;
+        group = null;
+        coalesce = false;
+    }
+
+    public void endGroup() {
+        grouping = false;
+        group = null;
+        coalesce = false;
+    }
+
+    public boolean canUndo() {
+        return canUndo.get();
+    }
+
+    public ReadOnlyBooleanProperty canUndoProperty() {
+        return canUndo.getReadOnlyProperty();
+    }
+
+    public boolean canRedo() {
+        return canRedo.get();
+    }
+
+    public ReadOnlyBooleanProperty canRedoProperty() {
+        return canRedo.getReadOnlyProperty();
+    }
+
+    // what the history counts against its budget
+    public long getMemoryUsed() {
+        return used;
+    }
+
+    // reverts the last edit and returns the edit that did so, or null if there is nothing to undo
+    public Edit undo() {
+        return apply(undoStack, redoStack);
+    }
+
+    // makes the last undone edit again and returns it, or null if there is nothing to redo
+    public Edit redo() {
+        return apply(redoStack, undoStack);
+    }
+
+    private Edit apply(Deque<Entry> from, Deque<Entry> to) {
+        Entry entry = from.poll();
+        if (entry == null)
+            return null;
+        used -= entry.cost;
+
+        applying = true;
+        applied = null;
+        try {
+            document.replace(entry.offset, entry.offset + entry.insertedLength, entry.removed);
+        } finally {
+            applying = false;
+        }
+
+        Edit edit = applied;
+        if (edit != null) {
+            Entry inverse = new Entry(edit.getOffset(), edit.getRemoved(), edit.getInsertedLength());
+            used += inverse.updateCost();
+            to.push(inverse);
+        }
+        coalesce = false;
+        evict();
+        updateState();
+        return edit;
+    }
+
+    // oldest first, keeping at least the entry for the latest edit or undo
+    private void evict() {
+        while (used > budget) {
+            Entry oldest;
+            if (undoStack.size() > 1 || !undoStack.isEmpty() && !redoStack.isEmpty())
+                oldest = undoStack.pollLast();
+            else if (redoStack.size() > 1)
+                oldest = redoStack.pollLast();
+            else
+                break;
+            used -= oldest.cost;
+        }
+    }
+
+    private void clear(Deque<Entry> stack) {
+        for (Entry entry : stack)
+            used -= entry.cost;
+        stack.clear();
+    }
+
+    private void updateState() {
+        canUndo.set(!undoStack.isEmpty());
+        canRedo.set(!redoStack.isEmpty());
+    }
+
+    public void dispose() {
+        document.removeListener(this);
+        clear(undoStack);
+        clear(redoStack);
+        updateState();
+    }
+
+    // Replaces [offset, offset + insertedLength) with removed to revert an edit.
+    private static final class Entry {
+        int offset;
+        CharSequence removed;
+        int insertedLength;
+        long cost;
+
+        Entry(int offset, CharSequence removed, int insertedLength) {
+            this.offset = offset;
+            this.removed = removed;
+            this.insertedLength = insertedLength;
+        }
+
+        // Merges the edit into this entry if it carries on from it: another
+        // character typed right after the text this entry inserted, or another
+        // one deleted next to the text it removed.
+        boolean absorb(Edit edit) {
+            int removedLength = edit.getRemovedLength();
+            int insertedLength = edit.getInsertedLength();
+            if (removedLength + insertedLength > 2 || removed.length() + this.insertedLength >= COALESCE_LIMIT)
+                return false;
+
+            if (removedLength == 0) {
+                // typing, a line break ends the entry
+                if (edit.getOffset() != offset + this.insertedLength || hasLineBreak(edit.getInserted()))
+                    return false;
+                this.insertedLength += insertedLength;
+                return true;
+            }
+            if (insertedLength != 0 || this.insertedLength != 0)
+                return false;
+            if (edit.getOffset() + removedLength == offset) {
+                // backspace
+                removed = edit.getRemoved() + removed.toString();
+                offset = edit.getOffset();
+                return true;
+            }
+            if (edit.getOffset() == offset) {
+                // delete
+                removed = removed.toString() + edit.getRemoved();
+                return true;
+            }
+            return false;
+        }
+
+        // merges an insert that starts where the text this entry inserted ends, whatever its size
+        boolean extend(Edit edit) {
+            if (edit.getRemovedLength() != 0 || edit.getOffset() != offset + insertedLength)
+                return false;
+            insertedLength += edit.getInsertedLength();
+            return true;
+        }
+
+        // returns by how much the cost changed
+        long updateCost() {
+            long previous = cost;
+            cost = ENTRY_OVERHEAD + 2L * removed.length();
+            return cost - previous;
+        }
+
+        private static boolean hasLineBreak(CharSequence text) {
+            for (int i = 0; i < text.length(); i++)
+                if (text.charAt(i) == '\n')
+                    return true;
+            return false;
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 module jotr {
     requires javafx.fxml;
     requires javafx.controls;
+    requires jdk.jfr;
 
     opens editor;
 }
\ No newline at end of file